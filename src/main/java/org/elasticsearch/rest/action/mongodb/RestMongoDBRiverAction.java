@@ -171,6 +171,7 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
             source.put("settings", hit.getSource());
             source.put("lastTimestamp", lastTimestamp);
             source.put("indexCount", MongoDBRiver.getIndexCount(esClient, definition));
+            source.put("bulk", MongoDBRiverHelper.getBulkStatus(esClient, riverName));
             if (logger.isTraceEnabled()) {
                 logger.trace("source: {}", hit.getSourceAsString());
             }
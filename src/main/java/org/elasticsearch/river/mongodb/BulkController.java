@@ -0,0 +1,177 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Bulk actions, bulk size and concurrent requests of the river tuned at
+ * runtime with an AIMD scheme, from the feedback of the cluster.
+ *
+ * They grow additively while bulks complete within the target latency, and
+ * are halved when a bulk is slow, when requests are rejected by the bulk
+ * thread pool or when its queue is nearly full. The bulk settings of the
+ * river are the upper bounds, and the initial values.
+ *
+ * The concurrent requests bound the bulks in flight across all the bulk
+ * processors of the river.
+ */
+class BulkController {
+
+    static final String BULK_ACTIONS_FIELD = "bulk_actions";
+    static final String BULK_SIZE_FIELD = "bulk_size";
+    static final String CONCURRENT_REQUESTS_FIELD = "concurrent_requests";
+    static final String DECREASES_FIELD = "decreases";
+
+    static final int MIN_BULK_ACTIONS = 10;
+    static final long MIN_BULK_SIZE = 64 * 1024;
+    // Number of steps from the minimum to the maximum
+    static final int STEPS = 20;
+    static final double QUEUE_THRESHOLD = 0.9;
+    static final long STATUS_INTERVAL = 1000;
+
+    private final int maxBulkActions;
+    private final long maxBulkSize;
+    private final int maxConcurrentRequests;
+    private final long targetLatency;
+
+    private int bulkActions;
+    private long bulkSize;
+    private int concurrentRequests;
+    private long decreases;
+    private int inFlight;
+    // Incremented on each change of the values
+    private long changes;
+    private long publishedChanges;
+    private long publishedTime;
+
+    BulkController(MongoDBRiverDefinition.Bulk bulk) {
+        this.maxBulkActions = Math.max(MIN_BULK_ACTIONS, bulk.getBulkActions());
+        this.maxBulkSize = Math.max(MIN_BULK_SIZE, bulk.getBulkSize().bytes());
+        this.maxConcurrentRequests = bulk.getConcurrentRequests();
+        this.targetLatency = bulk.getTargetLatency().millis();
+        this.bulkActions = maxBulkActions;
+        this.bulkSize = maxBulkSize;
+        this.concurrentRequests = maxConcurrentRequests;
+    }
+
+    /**
+     * Adjust the values after a bulk has been executed.
+     *
+     * @param tookMillis
+     *            the time taken by the bulk
+     * @param rejected
+     *            the number of bulk items rejected by the bulk thread pool
+     */
+    synchronized void onBulk(long tookMillis, int rejected) {
+        if (rejected > 0 || tookMillis > targetLatency) {
+            decrease();
+        } else {
+            increase();
+        }
+    }
+
+    /**
+     * Adjust the values after a whole bulk has been rejected.
+     */
+    synchronized void onRejected() {
+        decrease();
+    }
+
+    /**
+     * Adjust the values to the size of the bulk thread pool queue.
+     */
+    synchronized void onBulkQueue(long queue, long capacity) {
+        if (capacity > 0 && queue >= capacity * QUEUE_THRESHOLD) {
+            decrease();
+        }
+    }
+
+    private void decrease() {
+        bulkActions = Math.max(MIN_BULK_ACTIONS, bulkActions / 2);
+        bulkSize = Math.max(MIN_BULK_SIZE, bulkSize / 2);
+        if (maxConcurrentRequests > 0) {
+            concurrentRequests = Math.max(1, concurrentRequests / 2);
+        }
+        decreases++;
+        changes++;
+    }
+
+    private void increase() {
+        if (bulkActions == maxBulkActions && bulkSize == maxBulkSize && concurrentRequests == maxConcurrentRequests) {
+            return;
+        }
+        bulkActions = Math.min(maxBulkActions, bulkActions + Math.max(1, (maxBulkActions - MIN_BULK_ACTIONS) / STEPS));
+        bulkSize = Math.min(maxBulkSize, bulkSize + Math.max(1, (maxBulkSize - MIN_BULK_SIZE) / STEPS));
+        concurrentRequests = Math.min(maxConcurrentRequests, concurrentRequests + 1);
+        changes++;
+        notifyAll();
+    }
+
+    /**
+     * Wait until fewer bulks than the concurrent requests are in flight. Called
+     * before adding a request to a bulk processor, so the bulk it may execute
+     * does not exceed the limit.
+     */
+    synchronized void awaitInFlight() throws InterruptedException {
+        while (concurrentRequests > 0 && inFlight >= concurrentRequests) {
+            wait();
+        }
+    }
+
+    synchronized void onBulkStarted() {
+        inFlight++;
+    }
+
+    synchronized void onBulkCompleted() {
+        inFlight--;
+        notifyAll();
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    synchronized int getBulkActions() {
+        return bulkActions;
+    }
+
+    synchronized long getBulkSize() {
+        return bulkSize;
+    }
+
+    /**
+     * @return the number of bulks executed at once, 0 if they are executed
+     *         synchronously
+     */
+    synchronized int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    /**
+     * @return the current values to publish in the river status, or
+     *         {@code null} if they have not changed since they were last
+     *         published or were published less than a second ago
+     */
+    synchronized Map<String, Object> pollStatus(long now) {
+        if (changes == publishedChanges || now - publishedTime < STATUS_INTERVAL) {
+            return null;
+        }
+        publishedChanges = changes;
+        publishedTime = now;
+        return getStatus();
+    }
+
+    /**
+     * @return the current values, for the river status
+     */
+    synchronized Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put(BULK_ACTIONS_FIELD, bulkActions);
+        status.put(BULK_SIZE_FIELD, new ByteSizeValue(bulkSize).toString());
+        status.put(CONCURRENT_REQUESTS_FIELD, concurrentRequests);
+        status.put(DECREASES_FIELD, decreases);
+        return status;
+    }
+}
@@ -0,0 +1,149 @@
+package org.elasticsearch.river.mongodb;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.threadpool.ThreadPool.Info;
+import org.elasticsearch.threadpool.ThreadPoolStats.Stats;
+
+/**
+ * Fill level of the bulk thread pool queue of the cluster, polled on a timer
+ * rather than before each bulk. The bulk processors of the river wait before
+ * adding requests while the queue is nearly full, and the adaptive bulk limits
+ * are decreased.
+ */
+class BulkQueue {
+
+    static final long DEFAULT_CAPACITY = 50;
+    static final long POLL_INTERVAL = 1000;
+    // Fraction of the queue which must be free to add requests
+    static final double MIN_AVAILABILITY = 0.1;
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+    private final Client client;
+    private final String indexName;
+    // Null if bulks are not adaptive
+    private final BulkController controller;
+    private long capacity;
+    private boolean available = true;
+    private ScheduledExecutorService timer;
+
+    BulkQueue(Client client, String indexName, BulkController controller) {
+        this.client = client;
+        this.indexName = indexName;
+        this.controller = controller;
+    }
+
+    /**
+     * @return {@code true} if more than {@link #MIN_AVAILABILITY} of the queue
+     *         is free
+     */
+    static boolean isAvailable(long queue, long capacity) {
+        return capacity <= 0 || 1.0 - (double) queue / capacity > MIN_AVAILABILITY;
+    }
+
+    /**
+     * Record the number of bulks queued on the most loaded node.
+     */
+    synchronized void update(long queue, long capacity) {
+        available = isAvailable(queue, capacity);
+        if (controller != null) {
+            controller.onBulkQueue(queue, capacity);
+        }
+        logger.trace("Bulk queue [{}] / [{}] - available [{}]", queue, capacity, available);
+        if (available) {
+            notifyAll();
+        }
+    }
+
+    synchronized boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * Wait until the queue has room for more bulks.
+     */
+    synchronized void awaitAvailable() throws InterruptedException {
+        while (!available) {
+            logger.debug("Waiting for bulk queue to empty...");
+            wait();
+        }
+    }
+
+    synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mongodb_river_bulk_queue:" + indexName));
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, 0, POLL_INTERVAL, MILLISECONDS);
+    }
+
+    /*
+     * Requests are let through once closed, or when the stats cannot be read:
+     * the bulks rejected are retried anyway.
+     */
+    synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+        available = true;
+        notifyAll();
+    }
+
+    private void poll() {
+        try {
+            if (capacity == 0) {
+                capacity = getCapacity();
+            }
+            update(getQueue(), capacity);
+        } catch (Exception e) {
+            logger.debug("Cannot read the bulk queue: {}", e.toString());
+            update(0, capacity);
+        }
+    }
+
+    private long getCapacity() {
+        NodesInfoResponse response = client.admin().cluster().prepareNodesInfo().setThreadPool(true).get();
+        for (NodeInfo node : response.getNodes()) {
+            Iterator<Info> iterator = node.getThreadPool().iterator();
+            while (iterator.hasNext()) {
+                Info info = iterator.next();
+                if ("bulk".equals(info.getName())) {
+                    return info.getQueueSize().getSingles();
+                }
+            }
+        }
+        return DEFAULT_CAPACITY;
+    }
+
+    private long getQueue() {
+        NodesStatsResponse response = client.admin().cluster().prepareNodesStats().setThreadPool(true).get();
+        long queue = 0;
+        for (NodeStats nodeStats : response.getNodes()) {
+            Iterator<Stats> iterator = nodeStats.getThreadPool().iterator();
+            while (iterator.hasNext()) {
+                Stats stats = iterator.next();
+                if ("bulk".equals(stats.getName())) {
+                    queue = Math.max(queue, stats.getQueue());
+                }
+            }
+        }
+        return queue;
+    }
+}
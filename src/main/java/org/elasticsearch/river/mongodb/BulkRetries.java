@@ -0,0 +1,270 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.transport.ReceiveTimeoutTransportException;
+
+/**
+ * Bulk items being retried, shared by the bulk processors of the river.
+ *
+ * Items rejected by the bulk thread pool, or failing on a timeout or an
+ * unavailable shard, are added again to their bulk processor after an
+ * exponential backoff with jitter. The river checkpoints (last timestamp,
+ * initial import checkpoint) are held until the bulk they were added to and
+ * all the bulks executed before it have completed, and no item is being
+ * retried, so a saved checkpoint never gets ahead of the documents.
+ */
+@SuppressWarnings("rawtypes")
+class BulkRetries {
+
+    static final TimeValue MAX_BACKOFF = TimeValue.timeValueMinutes(1);
+
+    /*
+     * Checkpoint held until the bulk it was removed from has completed.
+     */
+    private static class Held {
+
+        private final BulkProcessor processor;
+        private final BulkRequest bulk;
+        private final ActionRequest request;
+        private final long number;
+        private boolean completed;
+
+        Held(BulkProcessor processor, BulkRequest bulk, ActionRequest request, long number) {
+            this.processor = processor;
+            this.bulk = bulk;
+            this.request = request;
+            this.number = number;
+        }
+    }
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+    private final int maxRetries;
+    private final long backoff;
+    private final Random random = new Random();
+    private final ScheduledExecutorService scheduler;
+    // Number of attempts of the items being retried
+    private final Map<ActionRequest, Integer> attempts = new IdentityHashMap<ActionRequest, Integer>();
+    // Checkpoints released, let through by the next bulk
+    private final Set<ActionRequest> released = Collections.newSetFromMap(new IdentityHashMap<ActionRequest, Boolean>());
+    private final List<Held> held = new ArrayList<Held>();
+    // Bulks being executed, numbered in execution order
+    private final Map<BulkRequest, Long> executing = new IdentityHashMap<BulkRequest, Long>();
+    private long bulks;
+
+    BulkRetries(MongoDBRiverDefinition.Bulk bulk, String indexName) {
+        this.maxRetries = bulk.getMaxRetries();
+        this.backoff = Math.max(1, bulk.getRetryBackoff().millis());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mongodb_river_bulk_retry:"
+                + indexName));
+    }
+
+    /**
+     * @return {@code true} if a bulk item failing with this status can
+     *         succeed later
+     */
+    static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE
+                || status == RestStatus.GATEWAY_TIMEOUT || status == RestStatus.REQUEST_TIMEOUT;
+    }
+
+    /**
+     * @return {@code true} if a whole bulk failing with this exception can
+     *         succeed later
+     */
+    static boolean isRetryable(Throwable failure) {
+        Throwable cause = ExceptionsHelper.unwrapCause(failure);
+        return cause instanceof ElasticsearchTimeoutException || cause instanceof ReceiveTimeoutTransportException
+                || isRetryable(ExceptionsHelper.status(cause));
+    }
+
+    /**
+     * @return the delay before the given attempt: the backoff doubled on each
+     *         attempt, up to {@link #MAX_BACKOFF}, minus a random jitter of up
+     *         to a half
+     */
+    long getBackoff(int attempt) {
+        long delay = backoff << Math.min(attempt - 1, 30);
+        if (delay <= 0 || delay > MAX_BACKOFF.millis()) {
+            delay = MAX_BACKOFF.millis();
+        }
+        long jitter;
+        synchronized (random) {
+            jitter = (long) (random.nextDouble() * (delay / 2));
+        }
+        return delay - jitter;
+    }
+
+    /**
+     * Add a failed item again to its bulk processor, after a backoff.
+     *
+     * @return {@code false} if the item has been retried too many times
+     */
+    synchronized boolean retry(final BulkProcessor processor, final ActionRequest request, final Object payload) {
+        Integer previous = attempts.get(request);
+        int attempt = previous == null ? 1 : previous + 1;
+        if (attempt > maxRetries) {
+            attempts.remove(request);
+            return false;
+        }
+        attempts.put(request, attempt);
+        long delay = getBackoff(attempt);
+        logger.debug("Retry bulk item in {} ms - attempt {} of {}", delay, attempt, maxRetries);
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                processor.add(request, payload);
+            }
+        }, delay);
+        return true;
+    }
+
+    synchronized boolean isRetrying() {
+        return !attempts.isEmpty();
+    }
+
+    /**
+     * @return the number of checkpoints held
+     */
+    synchronized int getHeld() {
+        return held.size();
+    }
+
+    /**
+     * Forget an item: it has been indexed, or given up.
+     */
+    synchronized void remove(ActionRequest request) {
+        attempts.remove(request);
+        notifyAll();
+    }
+
+    /**
+     * Wait for the bulks being executed and the items being retried.
+     *
+     * @return {@code true} if they have all completed, {@code false} if the
+     *         timeout elapsed first
+     */
+    synchronized boolean awaitCompleted(long timeout) throws InterruptedException {
+        if (!executing.isEmpty() || !attempts.isEmpty()) {
+            wait(timeout);
+        }
+        return executing.isEmpty() && attempts.isEmpty();
+    }
+
+    /**
+     * Number a bulk about to be executed, by any bulk processor of the river.
+     */
+    synchronized void started(BulkRequest bulk) {
+        executing.put(bulk, bulks++);
+    }
+
+    /*
+     * Number of the oldest bulk being executed
+     */
+    private long getOldestExecuting() {
+        long oldest = Long.MAX_VALUE;
+        for (long number : executing.values()) {
+            oldest = Math.min(oldest, number);
+        }
+        return oldest;
+    }
+
+    /**
+     * Hold a checkpoint removed from a bulk about to be executed, once the
+     * bulk has been {@link #started(BulkRequest) numbered}.
+     *
+     * @return {@code false} if the checkpoint has been released or is being
+     *         retried, and must be left in the bulk
+     */
+    synchronized boolean hold(BulkProcessor processor, BulkRequest bulk, ActionRequest request) {
+        if (released.remove(request) || attempts.containsKey(request)) {
+            return false;
+        }
+        Long number = executing.get(bulk);
+        held.add(new Held(processor, bulk, request, number != null ? number : bulks));
+        return true;
+    }
+
+    /**
+     * Mark a bulk as completed, releasing the checkpoints held before it once
+     * the bulks executed before theirs have completed and no item is being
+     * retried.
+     */
+    synchronized void completed(BulkRequest bulk) {
+        executing.remove(bulk);
+        notifyAll();
+        for (Held item : held) {
+            if (item.bulk == bulk) {
+                item.completed = true;
+            }
+        }
+        if (!attempts.isEmpty()) {
+            return;
+        }
+        // In order: a checkpoint is not saved before an older one
+        long oldest = getOldestExecuting();
+        Iterator<Held> iterator = held.iterator();
+        while (iterator.hasNext()) {
+            final Held item = iterator.next();
+            if (!item.completed || item.number > oldest) {
+                break;
+            }
+            iterator.remove();
+            released.add(item.request);
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    item.processor.add(item.request);
+                }
+            }, 0);
+        }
+    }
+
+    /**
+     * Run a task on the retry thread, outside of the bulk listeners.
+     */
+    void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    /*
+     * Tasks are dropped once the river is closed: the items and checkpoints
+     * not saved are replayed from the oplog when it starts again.
+     */
+    private void schedule(Runnable task, long delay) {
+        if (scheduler.isShutdown()) {
+            logger.debug("Bulk retries closed, drop task");
+            return;
+        }
+        try {
+            scheduler.schedule(task, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Bulk retries closed, drop task");
+        }
+    }
+
+    void close() {
+        scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,113 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decides when the last timestamps of the river are saved.
+ *
+ * The indexer records the timestamps it has reached after each burst of the
+ * stream, and they are only saved once the checkpoint interval has elapsed
+ * since the last save, or once enough entries have been processed. This
+ * keeps the writes to the river document bounded under steady load.
+ */
+class CheckpointScheduler {
+
+    /**
+     * Timestamps to save, of the river and of the shards which moved.
+     */
+    static class Checkpoint {
+
+        private final Timestamp<?> timestamp;
+        private final Map<String, Timestamp<?>> shardTimestamps;
+
+        Checkpoint(Timestamp<?> timestamp, Map<String, Timestamp<?>> shardTimestamps) {
+            this.timestamp = timestamp;
+            this.shardTimestamps = shardTimestamps;
+        }
+
+        /**
+         * @return the last timestamp of the river, {@code null} if it has not
+         *         moved
+         */
+        Timestamp<?> getTimestamp() {
+            return timestamp;
+        }
+
+        Map<String, Timestamp<?>> getShardTimestamps() {
+            return shardTimestamps;
+        }
+    }
+
+    private final long interval;
+    private final int documents;
+    private Timestamp<?> timestamp;
+    private final Map<String, Timestamp<?>> shardTimestamps = new LinkedHashMap<String, Timestamp<?>>();
+    private long pendingDocuments;
+    private long savedTime;
+
+    CheckpointScheduler(MongoDBRiverDefinition definition) {
+        this(definition.getCheckpointInterval().millis(), definition.getCheckpointDocuments());
+    }
+
+    CheckpointScheduler(long interval, int documents) {
+        this.interval = interval;
+        this.documents = documents;
+    }
+
+    /**
+     * Record the timestamps reached.
+     *
+     * @param timestamp
+     *            the last timestamp of the river, {@code null} if it has not
+     *            moved
+     * @param documents
+     *            the number of stream entries processed to reach them
+     */
+    synchronized void update(Timestamp<?> timestamp, Map<String, Timestamp<?>> shardTimestamps, long documents) {
+        if (timestamp != null) {
+            this.timestamp = timestamp;
+        }
+        this.shardTimestamps.putAll(shardTimestamps);
+        this.pendingDocuments += documents;
+    }
+
+    synchronized boolean isPending() {
+        return timestamp != null || !shardTimestamps.isEmpty();
+    }
+
+    /**
+     * @return whether the recorded timestamps should be saved now
+     */
+    synchronized boolean isDue(long now) {
+        return isPending() && (now - savedTime >= interval || (documents > 0 && pendingDocuments >= documents));
+    }
+
+    /**
+     * @param force
+     *            take the recorded timestamps even if they are not due yet
+     * @return the timestamps to save, {@code null} if there are none or they
+     *         are not due
+     */
+    synchronized Checkpoint poll(long now, boolean force) {
+        if (!isPending() || (!force && !isDue(now))) {
+            return null;
+        }
+        Checkpoint checkpoint = new Checkpoint(timestamp, Collections.unmodifiableMap(new LinkedHashMap<String, Timestamp<?>>(
+                shardTimestamps)));
+        timestamp = null;
+        shardTimestamps.clear();
+        pendingDocuments = 0;
+        savedTime = now;
+        return checkpoint;
+    }
+
+    /**
+     * @return the interval at which pending timestamps are saved while the
+     *         stream is idle
+     */
+    long getInterval() {
+        return interval;
+    }
+}
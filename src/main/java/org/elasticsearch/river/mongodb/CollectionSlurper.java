@@ -1,26 +1,49 @@
 package org.elasticsearch.river.mongodb;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.bson.BasicBSONObject;
 import org.bson.types.ObjectId;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableList;
 import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.collect.ImmutableSet;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
-import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
 import com.google.common.base.Preconditions;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
+import com.mongodb.CommandResult;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCursorNotFoundException;
+import com.mongodb.MongoException;
 import com.mongodb.MongoInterruptedException;
 import com.mongodb.MongoSocketException;
 import com.mongodb.MongoTimeoutException;
@@ -31,6 +54,78 @@ import com.mongodb.gridfs.GridFSFile;
 
 class CollectionSlurper {
 
+    /*
+     * Range of _id values read by one cursor of a parallel import. Bounds are
+     * inclusive / exclusive, null when unbounded. Since MongoDB only compares
+     * values of the same type, an extra range reads the documents whose _id
+     * type differs from the split keys, when there are some.
+     */
+    private static class ImportRange {
+
+        private final int number;
+        private final Object min;
+        private final Object max;
+        private final int[] otherTypes;
+        private volatile Object lastId;
+        // Last _id added to the stream
+        private volatile Object streamedId;
+        private volatile long count;
+
+        ImportRange(int number, Object min, Object max, int[] otherTypes, Object lastId) {
+            this.number = number;
+            this.min = min;
+            this.max = max;
+            this.otherTypes = otherTypes;
+            this.lastId = lastId;
+            this.streamedId = lastId;
+        }
+
+        DBObject getQuery() {
+            if (otherTypes != null) {
+                BasicDBList types = new BasicDBList();
+                for (int type : otherTypes) {
+                    types.add(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.TYPE, type)));
+                }
+                // Resumed from an _id index bound, see importRange
+                return new BasicDBObject(QueryOperators.NOR, types);
+            }
+            BasicDBObject id = new BasicDBObject();
+            if (lastId != null) {
+                id.put(QueryOperators.GT, lastId);
+            } else if (min != null) {
+                id.put(QueryOperators.GTE, min);
+            }
+            if (max != null) {
+                id.put(QueryOperators.LT, max);
+            }
+            return new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id);
+        }
+
+        @Override
+        public String toString() {
+            return otherTypes != null ? "#" + number + " [other _id types]" : "#" + number + " [" + min + ", " + max + ")";
+        }
+    }
+
+    private static final String SPLIT_VECTOR_COMMAND = "splitVector";
+    private static final int SAMPLE_BATCH_SIZE = 10000;
+    // BSON type numbers
+    private static final int[] OBJECT_ID_TYPES = { 7 };
+    private static final int[] STRING_TYPES = { 2 };
+    private static final int[] NUMBER_TYPES = { 1, 16, 18 };
+
+    private static final String REFRESH_INTERVAL_SETTING = "index.refresh_interval";
+    private static final Map<String, String> BULK_LOAD_SETTINGS = ImmutableMap.of(
+            "index.number_of_replicas", "0",
+            REFRESH_INTERVAL_SETTING, "-1",
+            "index.translog.flush_threshold_size", "1gb",
+            "index.translog.flush_threshold_period", "1h");
+    private static final Map<String, String> DEFAULT_INDEX_SETTINGS = ImmutableMap.of(
+            "index.number_of_replicas", "1",
+            REFRESH_INTERVAL_SETTING, "1s",
+            "index.translog.flush_threshold_size", "200mb",
+            "index.translog.flush_threshold_period", "30m");
+
     private static final ESLogger logger = ESLoggerFactory.getLogger(CollectionSlurper.class.getName());
 
     private final MongoDBRiverDefinition definition;
@@ -38,7 +133,12 @@ class CollectionSlurper {
     private final Client esClient;
     private final MongoClient mongoClient;
     private final DB slurpedDb;
+    // null when the fields are filtered on the client
+    private final DBObject fieldsProjection;
     private final AtomicLong totalDocuments = new AtomicLong();
+    private final AtomicInteger refreshDisabled = new AtomicInteger();
+    private volatile String refreshInterval;
+    private volatile long lastCheckpoint;
 
     public CollectionSlurper(MongoClient mongoClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient) {
         this.definition = definition;
@@ -46,16 +146,22 @@ class CollectionSlurper {
         this.esClient = esClient;
         this.mongoClient = mongoClient;
         this.slurpedDb = mongoClient.getDB(definition.getMongoDb());
+        this.fieldsProjection = MongoDBHelper.getFieldsProjection(definition.getIncludeFields(), definition.getExcludeFields());
     }
 
     /**
      * Import initial contents from the {@code definition}
      *
-     * @param timestamp the timestamp to use for the last imported document
+     * @param checkpoint the progress of the import, holding the timestamp to
+     *            use for the last imported document
      */
-    public void importInitial(Timestamp<?> timestamp) {
+    public void importInitial(ImportCheckpoint checkpoint) {
+        Timestamp<?> timestamp = checkpoint.getTimestamp();
+        boolean completed = false;
         try {
-            if (!isIndexEmpty()) {
+            if (checkpoint.isResumed()) {
+                logger.info("Resume initial import of {} with timestamp {}", definition.getMongoOplogNamespace(), timestamp);
+            } else if (!isIndexEmpty()) {
                 // MongoDB would delete the index and re-attempt the import
                 // We should probably do that too or at least have an option for it
                 // https://groups.google.com/d/msg/mongodb-user/hrOuS-lpMeI/opP6l0gndSEJ
@@ -64,16 +170,42 @@ class CollectionSlurper {
                         esClient, definition.getRiverName(), Status.INITIAL_IMPORT_FAILED);
                 return;
             }
+            if (definition.isBulkLoad()) {
+                applyBulkLoadSettings(checkpoint);
+            }
+            addCheckpointToStream(checkpoint);
             if (definition.isImportAllCollections()) {
+                List<String> names = new ArrayList<String>();
                 for (String name : slurpedDb.getCollectionNames()) {
                     if (name.length() < 7 || !name.substring(0, 7).equals("system.")) {
+                        if (checkpoint.isCompleted(name)) {
+                            logger.info("Skip collection {} already imported", name);
+                            continue;
+                        }
+                        names.add(name);
+                    }
+                }
+                if (definition.getInitialImportCollections() > 1 && names.size() > 1) {
+                    importCollections(names, checkpoint);
+                } else {
+                    for (String name : names) {
                         DBCollection collection = slurpedDb.getCollection(name);
-                        importCollection(collection, timestamp);
+                        importCollection(collection, timestamp, checkpoint);
                     }
                 }
-            } else {
+            } else if (!checkpoint.isCompleted(definition.getMongoCollection())) {
                 DBCollection collection = slurpedDb.getCollection(definition.getMongoCollection());
-                importCollection(collection, timestamp);
+                importCollection(collection, timestamp, checkpoint);
+            }
+            if (context.getStatus() == Status.RUNNING) {
+                // Saves the timestamp and removes the checkpoint
+                BasicDBObject data = new BasicDBObject();
+                if (checkpoint.getIndexSettings() != null) {
+                    // Restored by the indexer once the imported documents are indexed
+                    data.put(ImportCheckpoint.INDEX_SETTINGS_FIELD, checkpoint.getIndexSettings());
+                }
+                context.getStream().put(new MongoDBRiver.QueueEntry(timestamp, Operation.IMPORT_CHECKPOINT, data, null));
+                completed = true;
             }
             logger.debug("Before waiting for 500 ms");
             Thread.sleep(500);
@@ -95,6 +227,10 @@ class CollectionSlurper {
             logger.error("Exception while looping in cursor", e);
             Thread.currentThread().interrupt();
             return;
+        } finally {
+            if (!completed && checkpoint.getIndexSettings() != null) {
+                restoreIndexSettings(esClient, definition, checkpoint.getIndexSettings(), false);
+            }
         }
     }
 
@@ -111,19 +247,36 @@ class CollectionSlurper {
      *             if the blocking queue stream is interrupted while waiting
      */
     public void importCollection(DBCollection collection, Timestamp<?> timestamp) throws InterruptedException {
+        importCollection(collection, timestamp, null);
+    }
+
+    private void importCollection(DBCollection collection, Timestamp<?> timestamp, ImportCheckpoint checkpoint)
+            throws InterruptedException {
         // TODO: ensure the index type is empty
         // DBCollection slurpedCollection =
         // slurpedDb.getCollection(definition.getMongoCollection());
 
         logger.info("MongoDBRiver is beginning initial import of " + collection.getFullName());
+        if (!definition.isMongoGridFS() && definition.getInitialImportPartitions() > 1) {
+            List<ImportRange> ranges = checkpoint != null ? getImportRanges(checkpoint.getRanges(collection.getName())) : null;
+            if (ranges == null) {
+                ranges = getImportRanges(collection, definition.getInitialImportPartitions());
+            }
+            if (ranges != null) {
+                importRanges(collection, ranges, timestamp, checkpoint);
+                return;
+            }
+            logger.info("Cannot split {} into _id ranges. Import it with a single cursor.", collection.getFullName());
+        }
         boolean inProgress = true;
-        String lastId = null;
+        Object lastId = checkpoint != null ? checkpoint.getLastId(collection.getName()) : null;
+        if (lastId != null) {
+            logger.info("Resume initial import of {} after _id {}", collection.getFullName(), lastId);
+        }
         while (inProgress) {
             DBCursor cursor = null;
             try {
-                if (definition.isDisableIndexRefresh()) {
-                    updateIndexRefresh(definition.getIndexName(), -1L);
-                }
+                disableIndexRefresh();
                 if (!definition.isMongoGridFS()) {
                     if (logger.isTraceEnabled()) {
                         // Note: collection.count() is expensive on TokuMX
@@ -131,19 +284,25 @@ class CollectionSlurper {
                     }
                     long count = 0;
                     cursor = collection
-                            .find(getFilterForInitialImport(definition.getMongoCollectionFilter(), lastId))
+                            .find(getFilterForInitialImport(definition.getMongoCollectionFilter(), lastId), fieldsProjection)
                             .sort(new BasicDBObject("_id", 1));
                     while (cursor.hasNext() && context.getStatus() == Status.RUNNING) {
                         DBObject object = cursor.next();
                         count++;
                         if (cursor.hasNext()) {
-                          lastId = addInsertToStream(null, applyFieldFilter(object), collection.getName());
+                          addInsertToStream(null, applyFieldFilter(object), collection.getName());
                         } else {
                           logger.debug("Last entry for initial import of {} - add timestamp: {}", collection.getFullName(), timestamp);
-                          lastId = addInsertToStream(timestamp, applyFieldFilter(object), collection.getName());
+                          addInsertToStream(timestamp, applyFieldFilter(object), collection.getName());
+                        }
+                        lastId = object.get(MongoDBRiver.MONGODB_ID_FIELD);
+                        if (checkpoint != null && isCheckpointDue()) {
+                            checkpoint.setLastId(collection.getName(), lastId);
+                            addCheckpointToStream(checkpoint);
                         }
                     }
                     inProgress = false;
+                    setCompleted(collection, checkpoint);
                     logger.info("Number of documents indexed in initial import of {}: {}", collection.getFullName(), count);
                 } else {
                     // TODO: To be optimized.
@@ -165,6 +324,7 @@ class CollectionSlurper {
                         }
                     }
                     inProgress = false;
+                    setCompleted(collection, checkpoint);
                 }
             } catch (MongoSocketException | MongoTimeoutException | MongoCursorNotFoundException e) {
                 logger.info("Initial import - {} - {}. Will retry.", e.getClass().getSimpleName(), e.getMessage());
@@ -175,14 +335,381 @@ class CollectionSlurper {
                     logger.trace("Closing initial import cursor");
                     cursor.close();
                 }
-                if (definition.isDisableIndexRefresh()) {
-                    updateIndexRefresh(definition.getIndexName(), TimeValue.timeValueSeconds(1));
+                enableIndexRefresh();
+            }
+        }
+    }
+
+    /**
+     * Import several collections at once, the largest ones first so that they
+     * do not delay the end of the import. Documents are added to the stream
+     * without timestamp: it is saved by the final checkpoint entry, once all
+     * the collections are imported.
+     */
+    private void importCollections(List<String> names, final ImportCheckpoint checkpoint) throws InterruptedException {
+        final Map<String, Long> sizes = new HashMap<String, Long>();
+        for (String name : names) {
+            sizes.put(name, getCollectionSize(slurpedDb.getCollection(name)));
+        }
+        List<String> sortedNames = new ArrayList<String>(names);
+        Collections.sort(sortedNames, new Comparator<String>() {
+            @Override
+            public int compare(String name1, String name2) {
+                return Long.compare(sizes.get(name2), sizes.get(name1));
+            }
+        });
+
+        int threads = Math.min(definition.getInitialImportCollections(), sortedNames.size());
+        logger.info("Import {} collections of {} with {} threads", sortedNames.size(), slurpedDb.getName(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                EsExecutors.daemonThreadFactory("mongodb_river_import_collections:" + definition.getIndexName()));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (String name : sortedNames) {
+                final DBCollection collection = slurpedDb.getCollection(name);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        importCollection(collection, null, checkpoint);
+                        return null;
+                    }
+                }));
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                for (Future<?> future : futures) {
+                    if (future.isDone()) {
+                        // Fail fast
+                        future.get();
+                    }
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new RuntimeException("Initial import of " + slurpedDb.getName() + " failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+     * Data size from collStats, 0 if not available
+     */
+    private long getCollectionSize(DBCollection collection) {
+        try {
+            return collection.getStats().getLong("size", 0);
+        } catch (MongoException e) {
+            logger.debug("Cannot get size of {}: {}", collection.getFullName(), e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Import the ranges of a collection concurrently. The last document of
+     * each range is held back until all the ranges are read, so the timestamp
+     * is still given to the very last document added to the stream.
+     */
+    private void importRanges(final DBCollection collection, List<ImportRange> ranges, Timestamp<?> timestamp,
+            ImportCheckpoint checkpoint) throws InterruptedException {
+        int threads = Math.max(1, Math.min(definition.getInitialImportThreads(), ranges.size()));
+        logger.info("Import {} with {} ranges and {} threads", collection.getFullName(), ranges.size(), threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                EsExecutors.daemonThreadFactory("mongodb_river_import:" + definition.getIndexName()));
+        List<DBObject> lastObjects = new ArrayList<DBObject>();
+        try {
+            disableIndexRefresh();
+            if (checkpoint != null) {
+                // Resume with the same ranges
+                checkpoint.setRanges(collection.getName(), getCheckpointRanges(ranges));
+                addCheckpointToStream(checkpoint);
+            }
+            List<Future<DBObject>> futures = new ArrayList<Future<DBObject>>();
+            for (final ImportRange range : ranges) {
+                futures.add(executor.submit(new Callable<DBObject>() {
+                    @Override
+                    public DBObject call() throws Exception {
+                        return importRange(collection, range);
+                    }
+                }));
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                for (Future<DBObject> future : futures) {
+                    if (future.isDone()) {
+                        // Fail fast
+                        future.get();
+                    }
+                }
+                if (checkpoint != null && isCheckpointDue()) {
+                    checkpoint.setRanges(collection.getName(), getCheckpointRanges(ranges));
+                    addCheckpointToStream(checkpoint);
+                }
+            }
+            for (Future<DBObject> future : futures) {
+                DBObject object = future.get();
+                if (object != null) {
+                    lastObjects.add(object);
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof InterruptedException) {
+                throw (InterruptedException) e.getCause();
+            }
+            throw new RuntimeException("Initial import of " + collection.getFullName() + " failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            enableIndexRefresh();
+        }
+
+        long count = 0;
+        for (ImportRange range : ranges) {
+            count += range.count;
+        }
+        for (int i = 0; i < lastObjects.size(); i++) {
+            if (i == lastObjects.size() - 1) {
+                logger.debug("Last entry for initial import of {} - add timestamp: {}", collection.getFullName(), timestamp);
+                addInsertToStream(timestamp, applyFieldFilter(lastObjects.get(i)), collection.getName());
+            } else {
+                addInsertToStream(null, applyFieldFilter(lastObjects.get(i)), collection.getName());
+            }
+        }
+        setCompleted(collection, checkpoint);
+        logger.info("Number of documents indexed in initial import of {}: {}", collection.getFullName(), count);
+    }
+
+    /**
+     * Read a range and add its documents to the stream, except the last one
+     * which is returned.
+     */
+    private DBObject importRange(DBCollection collection, ImportRange range) throws InterruptedException {
+        DBObject last = null;
+        while (true) {
+            DBCursor cursor = null;
+            try {
+                BasicDBObject filter = definition.getMongoCollectionFilter();
+                DBObject query = filter.equals(new BasicDBObject()) ? range.getQuery() : new BasicDBObject(QueryOperators.AND,
+                        ImmutableList.of(filter, range.getQuery()));
+                cursor = collection.find(query, fieldsProjection).sort(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1));
+                // $gt only matches _id values of the type of lastId, while the
+                // range holds several types: start from its position in the
+                // _id index instead, skipping lastId itself
+                Object resumedId = range.otherTypes != null ? range.lastId : null;
+                if (resumedId != null) {
+                    cursor = cursor.hint(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1)).min(
+                            new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, resumedId));
+                }
+                while (cursor.hasNext() && context.getStatus() == Status.RUNNING) {
+                    DBObject object = cursor.next();
+                    if (resumedId != null && resumedId.equals(object.get(MongoDBRiver.MONGODB_ID_FIELD))) {
+                        resumedId = null;
+                        continue;
+                    }
+                    if (last != null) {
+                        addInsertToStream(null, applyFieldFilter(last), collection.getName());
+                        range.streamedId = last.get(MongoDBRiver.MONGODB_ID_FIELD);
+                    }
+                    last = object;
+                    range.lastId = object.get(MongoDBRiver.MONGODB_ID_FIELD);
+                    range.count++;
+                }
+                logger.info("Initial import of {} - range {} done: {} documents", collection.getFullName(), range, range.count);
+                return last;
+            } catch (MongoSocketException | MongoTimeoutException | MongoCursorNotFoundException e) {
+                logger.info("Initial import of {} - range {} - {} - {}. Will retry from {}.", collection.getFullName(), range, e
+                        .getClass().getSimpleName(), e.getMessage(), range.lastId);
+                Thread.sleep(MongoDBRiver.MONGODB_RETRY_ERROR_DELAY_MS);
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Split the _id keyspace of a collection, using the splitVector command or
+     * sampling the _id index when it is not available (i.e. through mongos).
+     *
+     * @return the ranges or {@code null} if the collection cannot be split
+     */
+    private List<ImportRange> getImportRanges(DBCollection collection, int partitions) {
+        CommandResult stats = collection.getStats();
+        long count = stats.getLong("count", 0);
+        if (count < partitions) {
+            return null;
+        }
+        List<Object> splitKeys = getSplitVector(collection, stats.getLong("size", 0) / partitions);
+        if (splitKeys == null) {
+            splitKeys = sampleSplitKeys(collection, count, partitions);
+        }
+        if (splitKeys.isEmpty()) {
+            return null;
+        }
+        int[] types = getBsonTypes(splitKeys.get(0));
+        if (types == null) {
+            return null;
+        }
+
+        // Keep partitions - 1 keys of the same type
+        List<Object> keys = new ArrayList<Object>();
+        for (Object key : splitKeys) {
+            if (Arrays.equals(getBsonTypes(key), types)) {
+                keys.add(key);
+            }
+        }
+        List<Object> bounds = new ArrayList<Object>();
+        double step = (double) (keys.size() + 1) / partitions;
+        for (int i = 1; i < partitions; i++) {
+            Object key = keys.get(Math.min(keys.size() - 1, Math.max(0, (int) (i * step) - 1)));
+            if (bounds.isEmpty() || !bounds.get(bounds.size() - 1).equals(key)) {
+                bounds.add(key);
+            }
+        }
+
+        List<ImportRange> ranges = new ArrayList<ImportRange>();
+        Object min = null;
+        for (Object bound : bounds) {
+            ranges.add(new ImportRange(ranges.size(), min, bound, null, null));
+            min = bound;
+        }
+        ranges.add(new ImportRange(ranges.size(), min, null, null, null));
+        if (hasOtherBsonTypes(collection, types)) {
+            ranges.add(new ImportRange(ranges.size(), null, null, types, null));
+        }
+        return ranges;
+    }
+
+    /*
+     * The _id index is ordered by type first, and the given types compare
+     * with each other: the collection has _id values of other types if its
+     * first or last _id is of another type. Two index lookups instead of a
+     * $type query, which would read the whole collection.
+     */
+    private boolean hasOtherBsonTypes(DBCollection collection, int[] types) {
+        DBObject keys = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1);
+        for (int order : new int[] { 1, -1 }) {
+            try (DBCursor cursor = collection.find(new BasicDBObject(), keys)
+                    .sort(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, order)).limit(1)) {
+                if (cursor.hasNext() && !Arrays.equals(getBsonTypes(cursor.next().get(MongoDBRiver.MONGODB_ID_FIELD)), types)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Ranges of an interrupted import
+     */
+    private List<ImportRange> getImportRanges(List<ImportCheckpoint.Range> checkpointRanges) {
+        if (checkpointRanges == null) {
+            return null;
+        }
+        List<ImportRange> ranges = new ArrayList<ImportRange>();
+        for (ImportCheckpoint.Range range : checkpointRanges) {
+            ranges.add(new ImportRange(ranges.size(), range.min, range.max, range.otherTypes, range.lastId));
+        }
+        return ranges;
+    }
+
+    private List<ImportCheckpoint.Range> getCheckpointRanges(List<ImportRange> ranges) {
+        List<ImportCheckpoint.Range> checkpointRanges = new ArrayList<ImportCheckpoint.Range>();
+        for (ImportRange range : ranges) {
+            checkpointRanges.add(new ImportCheckpoint.Range(range.min, range.max, range.otherTypes, range.streamedId));
+        }
+        return checkpointRanges;
+    }
+
+    private boolean isCheckpointDue() {
+        long interval = definition.getInitialImportCheckpointInterval().millis();
+        return interval > 0 && System.currentTimeMillis() - lastCheckpoint >= interval;
+    }
+
+    private void setCompleted(DBCollection collection, ImportCheckpoint checkpoint) throws InterruptedException {
+        if (checkpoint != null && context.getStatus() == Status.RUNNING) {
+            checkpoint.setCompleted(collection.getName());
+            addCheckpointToStream(checkpoint);
+        }
+    }
+
+    /*
+     * The checkpoint is saved by the indexer once the documents added before
+     * it to the stream have been sent.
+     */
+    private void addCheckpointToStream(ImportCheckpoint checkpoint) throws InterruptedException {
+        if (definition.getInitialImportCheckpointInterval().millis() <= 0) {
+            return;
+        }
+        try {
+            context.getStream().put(new MongoDBRiver.QueueEntry(null, Operation.IMPORT_CHECKPOINT, checkpoint.toSource(), null));
+            lastCheckpoint = System.currentTimeMillis();
+        } catch (IOException e) {
+            logger.warn("Cannot save initial import checkpoint", e);
+        }
+    }
+
+    private List<Object> getSplitVector(DBCollection collection, long maxChunkSizeBytes) {
+        DBObject command = new BasicDBObject(SPLIT_VECTOR_COMMAND, collection.getFullName())
+                .append("keyPattern", new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1))
+                .append("maxChunkSizeBytes", Math.max(maxChunkSizeBytes, 1));
+        CommandResult result = collection.getDB().command(command);
+        if (!result.ok() || !(result.get("splitKeys") instanceof List)) {
+            logger.debug("Command {} failed on {}: {}", SPLIT_VECTOR_COMMAND, collection.getFullName(), result.getErrorMessage());
+            return null;
+        }
+        List<Object> keys = new ArrayList<Object>();
+        for (Object key : (List<?>) result.get("splitKeys")) {
+            keys.add(((DBObject) key).get(MongoDBRiver.MONGODB_ID_FIELD));
+        }
+        return keys;
+    }
+
+    /*
+     * One pass over the _id index, the query being covered by it, taking a key
+     * every count / partitions keys: the cost grows with the count only, and
+     * not with the number of ranges as one skip per key would.
+     */
+    private List<Object> sampleSplitKeys(DBCollection collection, long count, int partitions) {
+        List<Object> keys = new ArrayList<Object>();
+        BasicDBObject idIndex = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1);
+        try (DBCursor cursor = collection.find(new BasicDBObject(), idIndex).sort(idIndex).hint(idIndex)
+                .batchSize(SAMPLE_BATCH_SIZE)) {
+            long position = 0;
+            long next = count / partitions;
+            while (keys.size() < partitions - 1 && cursor.hasNext()) {
+                DBObject key = cursor.next();
+                if (position++ >= next) {
+                    keys.add(key.get(MongoDBRiver.MONGODB_ID_FIELD));
+                    next = count * (keys.size() + 1) / partitions;
                 }
             }
         }
+        return keys;
     }
 
-    private BasicDBObject getFilterForInitialImport(BasicDBObject filter, String id) {
+    /*
+     * BSON types which compare with the given _id value, null if ranges of
+     * that type are not supported.
+     */
+    private static int[] getBsonTypes(Object id) {
+        if (id instanceof ObjectId) {
+            return OBJECT_ID_TYPES;
+        }
+        if (id instanceof String) {
+            return STRING_TYPES;
+        }
+        if (id instanceof Integer || id instanceof Long || id instanceof Double) {
+            return NUMBER_TYPES;
+        }
+        return null;
+    }
+
+    private BasicDBObject getFilterForInitialImport(BasicDBObject filter, Object id) {
         Preconditions.checkNotNull(filter);
         if (id == null) {
             return filter;
@@ -194,8 +721,80 @@ class CollectionSlurper {
         return new BasicDBObject(QueryOperators.AND, ImmutableList.of(filter, idFilter));
     }
 
-    private void updateIndexRefresh(String name, Object value) {
-        esClient.admin().indices().prepareUpdateSettings(name).setSettings(ImmutableMap.of("index.refresh_interval", value)).get();
+    /*
+     * Collections imported concurrently share the index: refresh is enabled
+     * again when the last of them is done. The bulk load settings already
+     * disable it for the whole import.
+     */
+    private void disableIndexRefresh() {
+        if (definition.isDisableIndexRefresh() && !definition.isBulkLoad() && refreshDisabled.getAndIncrement() == 0) {
+            refreshInterval = getIndexSettings(ImmutableSet.of(REFRESH_INTERVAL_SETTING)).get(REFRESH_INTERVAL_SETTING);
+            updateIndexSettings(ImmutableMap.of(REFRESH_INTERVAL_SETTING, "-1"));
+        }
+    }
+
+    private void enableIndexRefresh() {
+        if (definition.isDisableIndexRefresh() && !definition.isBulkLoad() && refreshDisabled.decrementAndGet() == 0) {
+            updateIndexSettings(ImmutableMap.of(REFRESH_INTERVAL_SETTING, refreshInterval));
+        }
+    }
+
+    /*
+     * The original settings are saved in the checkpoint first, so they are
+     * still known if the import is interrupted and resumed.
+     */
+    private void applyBulkLoadSettings(ImportCheckpoint checkpoint) {
+        if (checkpoint.getIndexSettings() == null) {
+            checkpoint.setIndexSettings(getIndexSettings(BULK_LOAD_SETTINGS.keySet()));
+        }
+        logger.info("Apply bulk load settings {} to index {}", BULK_LOAD_SETTINGS, definition.getIndexName());
+        updateIndexSettings(BULK_LOAD_SETTINGS);
+    }
+
+    /*
+     * Called by the slurper when the import failed or has been interrupted:
+     * the flag is cleared for the settings request. Once the import is
+     * complete, the indexer calls it when the imported documents have been
+     * indexed, and the index can be optimized.
+     */
+    static void restoreIndexSettings(Client client, MongoDBRiverDefinition definition, Map<String, String> settings,
+            boolean optimize) {
+        boolean interrupted = Thread.interrupted();
+        try {
+            logger.info("Restore settings {} of index {}", settings, definition.getIndexName());
+            client.admin().indices().prepareUpdateSettings(definition.getIndexName())
+                    .setSettings(ImmutableSettings.settingsBuilder().put(settings)).get();
+            if (optimize && definition.getBulkLoadMaxSegments() > 0) {
+                logger.info("Optimize index {} to {} segments", definition.getIndexName(), definition.getBulkLoadMaxSegments());
+                client.admin().indices().prepareOptimize(definition.getIndexName())
+                        .setMaxNumSegments(definition.getBulkLoadMaxSegments()).setWaitForMerge(false).get();
+            }
+        } catch (Exception e) {
+            logger.warn("Cannot restore settings {} of index {}", e, settings, definition.getIndexName());
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /*
+     * Current values of the given settings, Elasticsearch defaults for the
+     * ones not set on the index.
+     */
+    private Map<String, String> getIndexSettings(Set<String> names) {
+        GetSettingsResponse response = esClient.admin().indices().prepareGetSettings(definition.getIndexName()).get();
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (String name : names) {
+            String value = response.getSetting(definition.getIndexName(), name);
+            settings.put(name, value != null ? value : DEFAULT_INDEX_SETTINGS.get(name));
+        }
+        return settings;
+    }
+
+    private void updateIndexSettings(Map<String, String> settings) {
+        esClient.admin().indices().prepareUpdateSettings(definition.getIndexName())
+                .setSettings(ImmutableSettings.settingsBuilder().put(settings)).get();
     }
 
     private DBObject applyFieldFilter(DBObject object) {
@@ -205,7 +804,7 @@ class CollectionSlurper {
             if (metadata != null) {
                 file.setMetaData(applyFieldFilter(metadata));
             }
-        } else {
+        } else if (fieldsProjection == null) {
             object = MongoDBHelper.applyExcludeFields(object, definition.getExcludeFields());
             object = MongoDBHelper.applyIncludeFields(object, definition.getIncludeFields());
         }
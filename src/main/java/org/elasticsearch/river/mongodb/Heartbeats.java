@@ -0,0 +1,77 @@
+package org.elasticsearch.river.mongodb;
+
+/**
+ * Decides when an oplog slurper adds a heartbeat to the stream.
+ *
+ * A heartbeat is only added while the slurper waits for entries, all the ones
+ * it read being in the stream, and when no entry of the river follows the
+ * last one read. It carries the end of the oplog read by the previous
+ * heartbeat, so the entries before it have had time to become visible.
+ */
+class Heartbeats {
+
+    /**
+     * Oplog of the slurper, and destination of the heartbeats.
+     */
+    interface Oplog {
+
+        /**
+         * @return the timestamp of the last entry of the oplog
+         */
+        Timestamp<?> getCurrentOplogTimestamp();
+
+        /**
+         * @return whether entries of the river follow the given timestamp
+         */
+        boolean hasOplogEntries(Timestamp<?> after);
+
+        void add(Timestamp<?> heartbeat) throws InterruptedException;
+    }
+
+    private final Oplog oplog;
+    // Set while the slurper waits for entries, all the ones up to it being in the stream
+    private Timestamp<?> idleTimestamp;
+    // End of the oplog read by the previous heartbeat
+    private Timestamp<?> candidate;
+
+    Heartbeats(Oplog oplog) {
+        this.oplog = oplog;
+    }
+
+    /**
+     * The slurper waits for entries, the ones up to the given timestamp being
+     * in the stream.
+     */
+    synchronized void idle(Timestamp<?> timestamp) {
+        idleTimestamp = timestamp;
+    }
+
+    /**
+     * The slurper reads entries again. Waits for a heartbeat being added to
+     * the stream.
+     */
+    synchronized void busy() {
+        idleTimestamp = null;
+    }
+
+    /**
+     * Add a heartbeat to the stream if one is due.
+     *
+     * @return whether a heartbeat was added
+     */
+    synchronized boolean heartbeat() throws InterruptedException {
+        // TokuMX oplog entries cannot be filtered by namespace
+        if (idleTimestamp == null || idleTimestamp instanceof Timestamp.GTID) {
+            candidate = null;
+            return false;
+        }
+        Timestamp<?> heartbeat = candidate;
+        candidate = oplog.getCurrentOplogTimestamp();
+        if (heartbeat == null || Timestamp.compare(heartbeat, idleTimestamp) <= 0 || oplog.hasOplogEntries(idleTimestamp)) {
+            return false;
+        }
+        oplog.add(heartbeat);
+        idleTimestamp = heartbeat;
+        return true;
+    }
+}
@@ -0,0 +1,255 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * Progress of the initial import, saved in the river index so an interrupted
+ * import can be resumed: oplog timestamp of each shard when the import
+ * started, original index settings changed for the import, collections
+ * already imported and last _id added to the stream for
+ * each collection being imported (or for each of its ranges). Several
+ * collections may be in progress at once, so the methods are synchronized.
+ */
+class ImportCheckpoint {
+
+    static final String SHARDS_FIELD = "shards";
+    static final String INDEX_SETTINGS_FIELD = "index_settings";
+    static final String COMPLETED_COLLECTIONS_FIELD = "completed_collections";
+    static final String IN_PROGRESS_FIELD = "in_progress";
+    static final String COLLECTION_FIELD = "collection";
+    static final String LAST_ID_FIELD = "last_id";
+    static final String RANGES_FIELD = "ranges";
+    static final String MIN_FIELD = "min";
+    static final String MAX_FIELD = "max";
+    static final String OTHER_TYPES_FIELD = "other_types";
+
+    /*
+     * Progress of a range of a parallel import.
+     */
+    static class Range {
+
+        final Object min;
+        final Object max;
+        final int[] otherTypes;
+        final Object lastId;
+
+        Range(Object min, Object max, int[] otherTypes, Object lastId) {
+            this.min = min;
+            this.max = max;
+            this.otherTypes = otherTypes;
+            this.lastId = lastId;
+        }
+    }
+
+    /*
+     * Progress of a collection being imported: either lastId or ranges is set.
+     */
+    private static class Progress {
+
+        private Object lastId;
+        private List<Range> ranges;
+    }
+
+    private final boolean resumed;
+    private final Map<String, Timestamp<?>> shardTimestamps = new LinkedHashMap<String, Timestamp<?>>();
+    private Map<String, String> indexSettings;
+    private final Set<String> completedCollections = new LinkedHashSet<String>();
+    private final Map<String, Progress> inProgress = new LinkedHashMap<String, Progress>();
+
+    ImportCheckpoint() {
+        this(false);
+    }
+
+    private ImportCheckpoint(boolean resumed) {
+        this.resumed = resumed;
+    }
+
+    /**
+     * @return {@code true} if the checkpoint has been loaded from the river
+     *         index
+     */
+    boolean isResumed() {
+        return resumed;
+    }
+
+    synchronized void setShardTimestamp(String shard, Timestamp<?> timestamp) {
+        shardTimestamps.put(shard, timestamp);
+    }
+
+    synchronized Timestamp<?> getShardTimestamp(String shard) {
+        return shardTimestamps.get(shard);
+    }
+
+    /**
+     * @return the timestamp given to the last imported document: the oldest
+     *         shard timestamp
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    synchronized Timestamp<?> getTimestamp() {
+        Timestamp timestamp = null;
+        for (Timestamp<?> shardTimestamp : shardTimestamps.values()) {
+            if (timestamp == null || shardTimestamp.compareTo(timestamp) < 1) {
+                timestamp = shardTimestamp;
+            }
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return the index settings to restore at the end of the import, or
+     *         {@code null} if they have not been changed
+     */
+    synchronized Map<String, String> getIndexSettings() {
+        return indexSettings;
+    }
+
+    synchronized void setIndexSettings(Map<String, String> indexSettings) {
+        this.indexSettings = indexSettings;
+    }
+
+    synchronized boolean isCompleted(String collection) {
+        return completedCollections.contains(collection);
+    }
+
+    synchronized void setCompleted(String collection) {
+        completedCollections.add(collection);
+        inProgress.remove(collection);
+    }
+
+    synchronized Object getLastId(String collection) {
+        Progress progress = inProgress.get(collection);
+        return progress != null ? progress.lastId : null;
+    }
+
+    synchronized void setLastId(String collection, Object lastId) {
+        Progress progress = new Progress();
+        progress.lastId = lastId;
+        inProgress.put(collection, progress);
+    }
+
+    synchronized List<Range> getRanges(String collection) {
+        Progress progress = inProgress.get(collection);
+        return progress != null ? progress.ranges : null;
+    }
+
+    synchronized void setRanges(String collection, List<Range> ranges) {
+        Progress progress = new Progress();
+        progress.ranges = ranges;
+        inProgress.put(collection, progress);
+    }
+
+    /**
+     * @return the checkpoint as a river index document (without the
+     *         {@link MongoDBRiver#TYPE} root)
+     */
+    synchronized DBObject toSource() throws IOException {
+        BasicDBObject source = new BasicDBObject();
+        BasicDBObject shards = new BasicDBObject();
+        for (Map.Entry<String, Timestamp<?>> shard : shardTimestamps.entrySet()) {
+            XContentBuilder builder = jsonBuilder().startObject();
+            shard.getValue().saveFields(builder);
+            shards.put(shard.getKey(), XContentHelper.convertToMap(builder.endObject().bytes(), false).v2());
+        }
+        source.put(SHARDS_FIELD, shards);
+        if (indexSettings != null) {
+            source.put(INDEX_SETTINGS_FIELD, new LinkedHashMap<String, String>(indexSettings));
+        }
+        source.put(COMPLETED_COLLECTIONS_FIELD, new ArrayList<String>(completedCollections));
+        List<Map<String, Object>> collections = new ArrayList<Map<String, Object>>();
+        for (Map.Entry<String, Progress> entry : inProgress.entrySet()) {
+            Progress progress = entry.getValue();
+            Map<String, Object> collection = new LinkedHashMap<String, Object>();
+            collection.put(COLLECTION_FIELD, entry.getKey());
+            if (progress.lastId != null) {
+                collection.put(LAST_ID_FIELD, JSON.serialize(progress.lastId));
+            }
+            if (progress.ranges != null) {
+                List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+                for (Range range : progress.ranges) {
+                    Map<String, Object> item = new LinkedHashMap<String, Object>();
+                    item.put(MIN_FIELD, range.min == null ? null : JSON.serialize(range.min));
+                    item.put(MAX_FIELD, range.max == null ? null : JSON.serialize(range.max));
+                    if (range.otherTypes != null) {
+                        List<Integer> types = new ArrayList<Integer>();
+                        for (int type : range.otherTypes) {
+                            types.add(type);
+                        }
+                        item.put(OTHER_TYPES_FIELD, types);
+                    }
+                    item.put(LAST_ID_FIELD, range.lastId == null ? null : JSON.serialize(range.lastId));
+                    items.add(item);
+                }
+                collection.put(RANGES_FIELD, items);
+            }
+            collections.add(collection);
+        }
+        source.put(IN_PROGRESS_FIELD, collections);
+        return source;
+    }
+
+    @SuppressWarnings("unchecked")
+    static ImportCheckpoint fromSource(Map<String, Object> source) {
+        ImportCheckpoint checkpoint = new ImportCheckpoint(true);
+        Map<String, Object> shards = (Map<String, Object>) source.get(SHARDS_FIELD);
+        if (shards != null) {
+            for (Map.Entry<String, Object> shard : shards.entrySet()) {
+                checkpoint.setShardTimestamp(shard.getKey(), Timestamp.on((Map<String, Object>) shard.getValue()));
+            }
+        }
+        Map<String, Object> indexSettings = (Map<String, Object>) source.get(INDEX_SETTINGS_FIELD);
+        if (indexSettings != null) {
+            checkpoint.indexSettings = new LinkedHashMap<String, String>();
+            for (Map.Entry<String, Object> setting : indexSettings.entrySet()) {
+                checkpoint.indexSettings.put(setting.getKey(), String.valueOf(setting.getValue()));
+            }
+        }
+        List<String> completed = (List<String>) source.get(COMPLETED_COLLECTIONS_FIELD);
+        if (completed != null) {
+            checkpoint.completedCollections.addAll(completed);
+        }
+        List<Map<String, Object>> collections = (List<Map<String, Object>>) source.get(IN_PROGRESS_FIELD);
+        if (collections != null) {
+            for (Map<String, Object> collection : collections) {
+                Progress progress = new Progress();
+                progress.lastId = parse(collection.get(LAST_ID_FIELD));
+                List<Map<String, Object>> items = (List<Map<String, Object>>) collection.get(RANGES_FIELD);
+                if (items != null) {
+                    progress.ranges = new ArrayList<Range>();
+                    for (Map<String, Object> item : items) {
+                        int[] otherTypes = null;
+                        List<Number> types = (List<Number>) item.get(OTHER_TYPES_FIELD);
+                        if (types != null) {
+                            otherTypes = new int[types.size()];
+                            for (int i = 0; i < otherTypes.length; i++) {
+                                otherTypes[i] = types.get(i).intValue();
+                            }
+                        }
+                        progress.ranges.add(new Range(parse(item.get(MIN_FIELD)), parse(item.get(MAX_FIELD)), otherTypes,
+                                parse(item.get(LAST_ID_FIELD))));
+                    }
+                }
+                checkpoint.inProgress.put((String) collection.get(COLLECTION_FIELD), progress);
+            }
+        }
+        return checkpoint;
+    }
+
+    private static Object parse(Object value) {
+        return value == null ? null : JSON.parse(value.toString());
+    }
+}
@@ -5,17 +5,31 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-
-import org.bson.types.BasicBSONList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -24,18 +38,23 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
+import org.elasticsearch.script.CompiledScript;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.DBRef;
 import com.mongodb.gridfs.GridFSDBFile;
 
 class Indexer implements Runnable {
 
+    static final int WORKER_QUEUE_SIZE = 1000;
+    static final int CHILDREN_SCROLL_SIZE = 100;
+    static final TimeValue CHILDREN_SCROLL_TIMEOUT = TimeValue.timeValueMinutes(1);
+    static final String PARENT_FIELD = "_parent";
+
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
@@ -44,6 +63,28 @@ class Indexer implements Runnable {
     private final ScriptService scriptService;
 
     private final Map<SimpleEntry<String, String>, MongoDBRiverBulkProcessor> processors = Maps.newHashMap();
+    private final CompiledScript compiledScript;
+    // Shared by the bulk processors of the river, null if bulks are not adaptive
+    private final BulkController bulkController;
+    private final BulkRetries bulkRetries;
+    // Polled on a timer, shared by the bulk processors of the river
+    private final BulkQueue bulkQueue;
+    // Null if operations are not coalesced
+    private final OperationCoalescer coalescer;
+    // Executable scripts are not thread safe: one per indexer thread
+    private final ThreadLocal<ExecutableScript> executableScripts = new ThreadLocal<ExecutableScript>();
+    // Children to delete are collected by each indexer thread
+    private final ThreadLocal<CascadeDeletes> cascadeDeletes = new ThreadLocal<CascadeDeletes>();
+    // Only used with several workers
+    private final Watermark watermark = new Watermark();
+    private final Object watermarkLock = new Object();
+    // Entries processed in sequence when the watermark was last saved
+    private long watermarkSequence;
+    private final CheckpointScheduler checkpoints;
+    private final Object checkpointLock = new Object();
+    // Saves the pending checkpoint while the stream is idle, null if it is saved after each burst
+    private ScheduledExecutorService checkpointTimer;
+    private volatile Throwable failure;
 
     public Indexer(MongoDBRiver river, MongoDBRiverDefinition definition, SharedContext context, Client esClient, ScriptService scriptService) {
         this.river = river;
@@ -51,6 +92,13 @@ class Indexer implements Runnable {
         this.context = context;
         this.esClient = esClient;
         this.scriptService = scriptService;
+        this.compiledScript = hasScript() ? scriptService.compile(definition.getScriptType(), definition.getScript(),
+                ScriptService.ScriptType.INLINE) : null;
+        this.bulkController = definition.getBulk().isAdaptive() ? new BulkController(definition.getBulk()) : null;
+        this.bulkRetries = new BulkRetries(definition.getBulk(), definition.getIndexName());
+        this.bulkQueue = new BulkQueue(esClient, definition.getIndexName(), bulkController);
+        this.coalescer = definition.getBulk().isCoalesce() && !hasScript() ? new OperationCoalescer(definition, context) : null;
+        this.checkpoints = new CheckpointScheduler(definition);
         logger.debug(
                 "Create bulk processor with parameters - bulk actions: {} - concurrent request: {} - flush interval: {} - bulk size: {}",
                 definition.getBulk().getBulkActions(), definition.getBulk().getConcurrentRequests(), definition.getBulk()
@@ -58,25 +106,202 @@ class Indexer implements Runnable {
         getBulkProcessor(definition.getIndexName(), definition.getTypeName());
     }
 
+    /*
+     * Stream entry routed to a worker, numbered in stream order.
+     */
+    private static class SequencedEntry {
+
+        private final long sequence;
+        private final QueueEntry entry;
+
+        SequencedEntry(long sequence, QueueEntry entry) {
+            this.sequence = sequence;
+            this.entry = entry;
+        }
+    }
+
+    /*
+     * Parents deleted by an indexer thread over a bulk window. Their children
+     * are looked up with one search per index, type and routing when the
+     * window is flushed, instead of one search per parent.
+     */
+    private class CascadeDeletes {
+
+        // Parent ids by index, parent type and routing
+        private final Map<List<String>, Set<String>> parents = new LinkedHashMap<List<String>, Set<String>>();
+        // Documents indexed once the window started: they must not be deleted
+        private final Set<List<String>> indexed = new HashSet<List<String>>();
+        private int size;
+
+        void addParent(String index, String type, String routing, String id) {
+            List<String> key = Arrays.asList(index, type, routing);
+            Set<String> ids = parents.get(key);
+            if (ids == null) {
+                ids = new LinkedHashSet<String>();
+                parents.put(key, ids);
+            }
+            if (ids.add(id)) {
+                size++;
+            }
+        }
+
+        void addIndexed(String index, String type, String id) {
+            if (size > 0) {
+                indexed.add(Arrays.asList(index, type, id));
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean isFull() {
+            return size >= definition.getBulk().getBulkActions();
+        }
+
+        void flush() {
+            if (size == 0) {
+                return;
+            }
+            for (Map.Entry<List<String>, Set<String>> entry : parents.entrySet()) {
+                List<String> key = entry.getKey();
+                deleteChildren(key.get(0), key.get(1), key.get(2), entry.getValue());
+            }
+            parents.clear();
+            indexed.clear();
+            size = 0;
+        }
+
+        private void deleteChildren(final String index, String type, final String routing, Set<String> ids) {
+            logger.trace("Delete children of {} [{}] / [{}]", ids.size(), index, type);
+            scanChildren(esClient, index, type, routing, ids, new ChildVisitor() {
+                @Override
+                public void visit(String childType, String id, String parent) {
+                    if (!indexed.contains(Arrays.asList(index, childType, id))) {
+                        getBulkProcessor(index, childType).deleteBulkRequest(id, routing, parent);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Child document found by {@link Indexer#scanChildren}.
+     */
+    interface ChildVisitor {
+
+        void visit(String type, String id, String parent);
+    }
+
+    /**
+     * Find the children of the given parents with one has_parent / terms scan,
+     * and visit them page by page.
+     */
+    static void scanChildren(Client client, String index, String parentType, String routing, Set<String> parentIds,
+            ChildVisitor visitor) {
+        QueryBuilder builder = QueryBuilders.hasParentQuery(parentType, QueryBuilders.termsQuery(MongoDBRiver.MONGODB_ID_FIELD, parentIds));
+        SearchResponse response = client.prepareSearch(index).setSearchType(SearchType.SCAN).setScroll(CHILDREN_SCROLL_TIMEOUT)
+                .setQuery(builder).setRouting(routing).addField(PARENT_FIELD).setSize(CHILDREN_SCROLL_SIZE).execute().actionGet();
+        while (true) {
+            response = client.prepareSearchScroll(response.getScrollId()).setScroll(CHILDREN_SCROLL_TIMEOUT).execute().actionGet();
+            if (response.getHits().getHits().length == 0) {
+                break;
+            }
+            for (SearchHit hit : response.getHits().getHits()) {
+                SearchHitField parent = hit.field(PARENT_FIELD);
+                visitor.visit(hit.getType(), hit.getId(), parent != null ? parent.<String> getValue() : null);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+
+        private final BlockingQueue<SequencedEntry> queue = new ArrayBlockingQueue<SequencedEntry>(WORKER_QUEUE_SIZE);
+
+        @Override
+        public void run() {
+            int batchSize = getWindowSize();
+            List<SequencedEntry> batch = new ArrayList<SequencedEntry>(batchSize);
+            List<QueueEntry> entries = new ArrayList<QueueEntry>(batchSize);
+            // Processed entries waiting for the children of their parents to be deleted
+            List<SequencedEntry> processed = new ArrayList<SequencedEntry>();
+            try {
+                while (context.getStatus() == Status.RUNNING) {
+                    batch.clear();
+                    entries.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    for (SequencedEntry item : batch) {
+                        entries.add(item.entry);
+                    }
+                    processWindow(entries);
+                    processed.addAll(batch);
+                    if (queue.isEmpty() || getCascadeDeletes().isFull()) {
+                        getCascadeDeletes().flush();
+                    } else if (!getCascadeDeletes().isEmpty()) {
+                        continue;
+                    }
+                    for (SequencedEntry item : processed) {
+                        watermark.complete(item.sequence, item.entry.getOplogTimestamp(), item.entry.getShard());
+                    }
+                    processed.clear();
+                    // End of a burst: save the timestamp all the workers have passed
+                    if (queue.isEmpty()) {
+                        saveWatermark();
+                    }
+                }
+            } catch (InterruptedException e) {
+                logger.debug("river-mongodb indexer worker interrupted");
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                logger.error("river-mongodb indexer worker failed", t);
+                failure = t;
+            }
+        }
+    }
+
     @Override
     public void run() {
+        bulkQueue.start();
+        startCheckpointTimer();
+        if (definition.getIndexerWorkers() > 1) {
+            runWorkers();
+            return;
+        }
         while (context.getStatus() == Status.RUNNING) {
 
             try {
                 Timestamp<?> lastTimestamp = null;
+                Map<String, Timestamp<?>> shardTimestamps = new LinkedHashMap<String, Timestamp<?>>();
 
                 // 1. Attempt to fill as much of the bulk request as possible
+                int batchSize = getWindowSize();
+                List<QueueEntry> entries = new ArrayList<QueueEntry>(batchSize);
+                long documents = 0;
                 QueueEntry entry = context.getStream().take();
-                lastTimestamp = processBlockingQueue(entry);
-                while ((entry = context.getStream().poll(definition.getBulk().getFlushInterval().millis(), MILLISECONDS)) != null) {
-                    lastTimestamp = processBlockingQueue(entry);
+                while (entry != null) {
+                    entries.add(entry);
+                    documents++;
+                    if (entries.size() >= batchSize) {
+                        addShardTimestamps(entries, shardTimestamps);
+                        lastTimestamp = processWindow(entries);
+                        entries.clear();
+                        if (getCascadeDeletes().isFull()) {
+                            getCascadeDeletes().flush();
+                        }
+                    }
+                    entry = context.getStream().poll(definition.getBulk().getFlushInterval().millis(), MILLISECONDS);
                 }
-
-                // 2. Update the timestamp
-                if (lastTimestamp != null) {
-                    MongoDBRiver.setLastTimestamp(definition, lastTimestamp,
-                            getBulkProcessor(definition.getIndexName(), definition.getTypeName()).getBulkProcessor());
+                if (!entries.isEmpty()) {
+                    addShardTimestamps(entries, shardTimestamps);
+                    lastTimestamp = processWindow(entries);
                 }
+                // Children are deleted before the timestamp is saved
+                getCascadeDeletes().flush();
+
+                // 2. Update the timestamps
+                checkpoints.update(lastTimestamp, shardTimestamps, documents);
+                saveCheckpoint(false);
 
             } catch (InterruptedException e) {
                 logger.info("river-mongodb indexer interrupted");
@@ -87,27 +312,263 @@ class Indexer implements Runnable {
         }
     }
 
-    private MongoDBRiverBulkProcessor getBulkProcessor(String index, String type) {
+    /**
+     * Route the stream entries to the workers by document id. Entries which
+     * are not bound to a document (commands, drops, import checkpoints) are
+     * processed by this thread once all the entries before them are.
+     */
+    private void runWorkers() {
+        List<Thread> threads = new ArrayList<Thread>();
+        List<Worker> workers = new ArrayList<Worker>();
+        ThreadFactory threadFactory = EsExecutors.daemonThreadFactory("mongodb_river_indexer_worker:" + definition.getIndexName());
+        for (int i = 0; i < definition.getIndexerWorkers(); i++) {
+            Worker worker = new Worker();
+            workers.add(worker);
+            threads.add(threadFactory.newThread(worker));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long sequence = 0;
+        try {
+            while (context.getStatus() == Status.RUNNING) {
+                QueueEntry entry = context.getStream().take();
+                checkFailure();
+                Object id = getRoutingId(entry);
+                if (id != null) {
+                    workers.get((id.hashCode() & Integer.MAX_VALUE) % workers.size()).queue.put(new SequencedEntry(sequence++, entry));
+                } else {
+                    while (!watermark.await(sequence, 100)) {
+                        checkFailure();
+                    }
+                    Timestamp<?> timestamp = processBlockingQueue(entry);
+                    getCascadeDeletes().flush();
+                    watermark.complete(sequence++, timestamp, entry.getShard());
+                    saveWatermark();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.info("river-mongodb indexer interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            try {
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            releaseProcessors();
+        }
+    }
+
+    private Object getRoutingId(QueueEntry entry) {
+        Operation operation = entry.getOperation();
+        if (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.PARTIAL_UPDATE
+                || operation == Operation.DELETE) {
+            return entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD);
+        }
+        return null;
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Indexer worker failed", failure);
+        }
+    }
+
+    private void saveWatermark() {
+        // Serialized so the timestamps are recorded in order
+        synchronized (watermarkLock) {
+            long sequence = watermark.getSequence();
+            checkpoints.update(watermark.advance(), watermark.advanceShards(), sequence - watermarkSequence);
+            watermarkSequence = sequence;
+            saveCheckpoint(false);
+        }
+    }
+
+    /**
+     * Save the recorded timestamps if they are due. The bulk processors are
+     * flushed first, so the checkpoint is held until the bulks of all the
+     * documents before it have completed, whatever their index and type.
+     * 
+     * @param force
+     *            save them even if they are not due yet
+     */
+    private void saveCheckpoint(boolean force) {
+        synchronized (checkpointLock) {
+            CheckpointScheduler.Checkpoint checkpoint = checkpoints.poll(System.currentTimeMillis(), force);
+            if (checkpoint == null) {
+                return;
+            }
+            flushProcessors();
+            BulkProcessor bulkProcessor = getBulkProcessor(definition.getIndexName(), definition.getTypeName()).getBulkProcessor();
+            if (checkpoint.getTimestamp() != null) {
+                MongoDBRiver.setLastTimestamp(definition, checkpoint.getTimestamp(), bulkProcessor);
+            }
+            for (Map.Entry<String, Timestamp<?>> shardTimestamp : checkpoint.getShardTimestamps().entrySet()) {
+                MongoDBRiver.setLastTimestamp(definition, shardTimestamp.getKey(), shardTimestamp.getValue(), bulkProcessor);
+            }
+        }
+    }
+
+    private void flushProcessors() {
+        List<MongoDBRiverBulkProcessor> flushed;
+        synchronized (this) {
+            flushed = new ArrayList<MongoDBRiverBulkProcessor>(processors.values());
+        }
+        for (MongoDBRiverBulkProcessor processor : flushed) {
+            processor.getBulkProcessor().flush();
+        }
+    }
+
+    private void startCheckpointTimer() {
+        long interval = checkpoints.getInterval();
+        if (interval <= 0) {
+            return;
+        }
+        checkpointTimer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mongodb_river_checkpoint:"
+                + definition.getIndexName()));
+        checkpointTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (context.getStatus() != Status.RUNNING) {
+                    return;
+                }
+                try {
+                    saveCheckpoint(false);
+                } catch (Exception e) {
+                    logger.warn("Failed to save checkpoint", e);
+                }
+            }
+        }, interval, interval, MILLISECONDS);
+    }
+
+    private synchronized MongoDBRiverBulkProcessor getBulkProcessor(String index, String type) {
         SimpleEntry<String, String> entry = new SimpleEntry<String, String>(index, type);
         if (!processors.containsKey(entry)) {
             processors.put(new SimpleEntry<String, String>(index, type), new MongoDBRiverBulkProcessor.Builder(river, definition, esClient,
-                    index, type).build());
+                    index, type, bulkRetries).controller(bulkController).bulkQueue(bulkQueue).build());
         }
         return processors.get(entry);
     }
 
-    private void releaseProcessors() {
+    private synchronized void releaseProcessors() {
+        if (checkpointTimer != null) {
+            checkpointTimer.shutdownNow();
+        }
         for (MongoDBRiverBulkProcessor processor : processors.values()) {
             processor.getBulkProcessor().close();
         }
         processors.clear();
+        bulkRetries.close();
+        bulkQueue.close();
+    }
+
+    /*
+     * Entries are only processed in batches by advanced transformation
+     * scripts.
+     */
+    private int getBatchSize() {
+        return hasScript() && definition.isAdvancedTransformation() ? Math.max(1,
+                definition.getAdvancedTransformationBatchSize()) : 1;
+    }
+
+    /*
+     * Timestamp of the last entry of each shard
+     */
+    private static void addShardTimestamps(List<QueueEntry> entries, Map<String, Timestamp<?>> shardTimestamps) {
+        for (QueueEntry entry : entries) {
+            if (entry.getShard() != null && entry.getOplogTimestamp() != null) {
+                shardTimestamps.put(entry.getShard(), entry.getOplogTimestamp());
+            }
+        }
+    }
+
+    /*
+     * Entries are processed in windows of a bulk when operations are
+     * coalesced.
+     */
+    private int getWindowSize() {
+        return coalescer != null ? Math.max(getBatchSize(), definition.getBulk().getBulkActions()) : getBatchSize();
+    }
+
+    /**
+     * Process a window of entries, coalesced if enabled.
+     * 
+     * @return the timestamp of the last entry, carried forward if its
+     *         operation was coalesced
+     */
+    private Timestamp<?> processWindow(List<QueueEntry> entries) {
+        if (coalescer == null) {
+            return processBlockingQueue(entries);
+        }
+        Timestamp<?> lastTimestamp = processBlockingQueue(coalescer.coalesce(entries));
+        Timestamp<?> windowTimestamp = entries.get(entries.size() - 1).getOplogTimestamp();
+        return windowTimestamp != null ? windowTimestamp : lastTimestamp;
+    }
+
+    /**
+     * Process entries in order, passing consecutive entries for the advanced
+     * transformation script to a single invocation.
+     * 
+     * @return the timestamp of the last entry
+     */
+    private Timestamp<?> processBlockingQueue(List<QueueEntry> entries) {
+        if (entries.size() == 1) {
+            return processBlockingQueue(entries.get(0));
+        }
+        Timestamp<?> lastTimestamp = null;
+        List<QueueEntry> transformed = new ArrayList<QueueEntry>();
+        for (QueueEntry entry : entries) {
+            if (isTransformed(entry)) {
+                transformed.add(entry);
+                lastTimestamp = entry.getOplogTimestamp();
+            } else {
+                if (!transformed.isEmpty()) {
+                    applyAdvancedTransformation(transformed);
+                    transformed.clear();
+                }
+                lastTimestamp = processBlockingQueue(entry);
+            }
+        }
+        if (!transformed.isEmpty()) {
+            applyAdvancedTransformation(transformed);
+        }
+        return lastTimestamp;
+    }
+
+    /*
+     * Entries processBlockingQueue passes to the advanced transformation
+     */
+    private boolean isTransformed(QueueEntry entry) {
+        Operation operation = entry.getOperation();
+        if (!hasScript() || !definition.isAdvancedTransformation() || entry.isAttachment()
+                || operation == Operation.IMPORT_CHECKPOINT || operation == Operation.HEARTBEAT || operation == Operation.COMMAND) {
+            return false;
+        }
+        return entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) != null
+                || (operation != Operation.INSERT && operation != Operation.UPDATE && operation != Operation.PARTIAL_UPDATE
+                        && operation != Operation.DELETE);
     }
 
     @SuppressWarnings({ "unchecked" })
     private Timestamp<?> processBlockingQueue(QueueEntry entry) {
         Operation operation = entry.getOperation();
+        if (operation == Operation.IMPORT_CHECKPOINT) {
+            updateImportCheckpoint(entry);
+            return entry.getOplogTimestamp();
+        }
+        // Only moves the last timestamp
+        if (operation == Operation.HEARTBEAT) {
+            return entry.getOplogTimestamp();
+        }
         if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) == null
-                && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.DELETE)) {
+                && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.PARTIAL_UPDATE
+                        || operation == Operation.DELETE)) {
             logger.warn("Cannot get object id. Skip the current item: [{}]", entry.getData());
             return null;
         }
@@ -121,7 +582,7 @@ class Indexer implements Runnable {
         }
         if (operation == Operation.COMMAND) {
             try {
-                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null, null);
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
@@ -137,7 +598,8 @@ class Indexer implements Runnable {
         // advanced_transformation, include_collection for GridFS?
         if (entry.isAttachment()) {
             try {
-                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null,
+                        entry.getOplogTimestamp());
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
@@ -145,7 +607,7 @@ class Indexer implements Runnable {
         }
 
         if (hasScript() && definition.isAdvancedTransformation()) {
-            return applyAdvancedTransformation(entry, type);
+            return applyAdvancedTransformation(Collections.singletonList(entry));
         }
 
         if (logger.isTraceEnabled()) {
@@ -159,7 +621,7 @@ class Indexer implements Runnable {
         }
 
         Map<String, Object> ctx = new HashMap<>();
-        Map<String, Object> data = entry.getData().toMap();
+        DBObject data = entry.getData();
         if (hasScript()) {
             if (ctx != null) {
                 ctx.put("document", entry.getData());
@@ -172,8 +634,7 @@ class Indexer implements Runnable {
                     logger.trace("Context before script executed: {}", ctx);
                 }
                 try {
-                    ExecutableScript executableScript = scriptService.executable(definition.getScriptType(), definition.getScript(),
-                            ScriptService.ScriptType.INLINE, ImmutableMap.of("logger", logger));
+                    ExecutableScript executableScript = getExecutableScript();
                     executableScript.setNextVar("ctx", ctx);
                     executableScript.run();
                     // we need to unwrap the context object...
@@ -194,7 +655,7 @@ class Indexer implements Runnable {
                     ctx.put("operation", MongoDBRiver.OPLOG_DELETE_OPERATION);
                 }
                 if (ctx.containsKey("document")) {
-                    data = (Map<String, Object>) ctx.get("document");
+                    data = new BasicDBObject((Map<String, Object>) ctx.get("document"));
                     logger.trace("From script document: {}", data);
                 }
                 operation = extractOperation(ctx);
@@ -208,17 +669,65 @@ class Indexer implements Runnable {
             String parent = extractParent(ctx);
             String routing = extractRouting(ctx);
             objectId = extractObjectId(ctx, objectId);
-            updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+            updateBulkRequest(data, objectId, operation, index, type, routing, parent, entry.getOplogTimestamp());
         } catch (IOException e) {
             logger.warn("failed to parse {}", e, entry.getData());
         }
         return lastTimestamp;
     }
 
+    private void updateImportCheckpoint(QueueEntry entry) {
+        getCascadeDeletes().flush();
+        BulkProcessor bulkProcessor = getBulkProcessor(definition.getIndexName(), definition.getTypeName()).getBulkProcessor();
+        if (entry.getOplogTimestamp() != null) {
+            logger.trace("Initial import completed at {}", entry.getOplogTimestamp());
+            // Saved at once, before the import checkpoint is deleted
+            checkpoints.update(entry.getOplogTimestamp(), Collections.<String, Timestamp<?>> emptyMap(), 0);
+            saveCheckpoint(true);
+            MongoDBRiver.deleteImportCheckpoint(definition, bulkProcessor);
+            Object settings = entry.getData().get(ImportCheckpoint.INDEX_SETTINGS_FIELD);
+            if (settings instanceof Map) {
+                restoreIndexSettings((Map<?, ?>) settings);
+            }
+        } else {
+            // Held until the bulks of the documents imported before it have completed
+            flushProcessors();
+            MongoDBRiver.setImportCheckpoint(definition, entry.getData().toMap(), bulkProcessor);
+        }
+    }
+
+    /*
+     * The bulk load settings saved before the initial import are restored
+     * once the bulks of the imported documents have completed, so the
+     * optimize merges the segments of all of them.
+     */
+    private void restoreIndexSettings(Map<?, ?> saved) {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        for (Map.Entry<?, ?> setting : saved.entrySet()) {
+            settings.put(String.valueOf(setting.getKey()), String.valueOf(setting.getValue()));
+        }
+        try {
+            flushProcessors();
+            while (!bulkRetries.awaitCompleted(100) && context.getStatus() == Status.RUNNING) {
+                flushProcessors();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean optimize = !Thread.currentThread().isInterrupted() && context.getStatus() == Status.RUNNING;
+        CollectionSlurper.restoreIndexSettings(esClient, definition, settings, optimize);
+    }
+
+    /*
+     * When the entry has an oplog timestamp, its documents are indexed with an
+     * external version derived from it, so an older operation replayed after a
+     * newer one is rejected instead of overwriting it.
+     */
     private void updateBulkRequest(DBObject data, String objectId, Operation operation, String index, String type, String routing,
-            String parent) throws IOException {
+            String parent, Timestamp<?> timestamp) throws IOException {
         if (logger.isTraceEnabled()) {
-            logger.trace("Operation: {} - index: {} - type: {} - routing: {} - parent: {}", operation, index, type, routing, parent);
+            logger.trace("Operation: {} - index: {} - type: {} - routing: {} - parent: {} - timestamp: {}", operation, index, type,
+                    routing, parent, timestamp);
         }
 
         if (operation == Operation.UNKNOWN) {
@@ -231,19 +740,30 @@ class Indexer implements Runnable {
             if (logger.isTraceEnabled()) {
                 logger.trace("Insert operation - id: {} - contains attachment: {}", objectId, (data instanceof GridFSDBFile));
             }
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            addBulkRequest(data, objectId, index, type, routing, parent, timestamp);
         }
-        // UPDATE = DELETE + INSERT operation
         if (operation == Operation.UPDATE) {
             if (logger.isTraceEnabled()) {
                 logger.trace("Update operation - id: {} - contains attachment: {}", objectId, (data instanceof GridFSDBFile));
             }
-            deleteBulkRequest(objectId, index, type, routing, parent);
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            if (parent != null || isParentType(type)) {
+                // UPDATE = DELETE + INSERT: the children of the document are
+                // deleted too
+                deleteBulkRequest(objectId, index, type, routing, parent, null);
+                addBulkRequest(data, objectId, index, type, routing, parent, null);
+            } else {
+                // Indexing replaces the whole document
+                addBulkRequest(data, objectId, index, type, routing, parent, timestamp);
+            }
+        }
+        if (operation == Operation.PARTIAL_UPDATE) {
+            logger.trace("Partial update request [{}], [{}], [{}]", index, type, objectId);
+            getCascadeDeletes().addIndexed(index, type, objectId);
+            getBulkProcessor(index, type).updateBulkRequest(objectId, build(data, objectId), routing, parent);
         }
         if (operation == Operation.DELETE) {
             logger.trace("Delete request [{}], [{}], [{}]", index, type, objectId);
-            deleteBulkRequest(objectId, index, type, routing, parent);
+            deleteBulkRequest(objectId, index, type, routing, parent, timestamp);
         }
         if (operation == Operation.DROP_COLLECTION) {
             if (definition.isDropCollection()) {
@@ -255,44 +775,48 @@ class Indexer implements Runnable {
         }
     }
 
+    private void addBulkRequest(DBObject data, String objectId, String index, String type, String routing, String parent,
+            Timestamp<?> timestamp) throws IOException {
+        getCascadeDeletes().addIndexed(index, type, objectId);
+        if (timestamp != null) {
+            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent, timestamp);
+        } else {
+            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+        }
+    }
+
+    private boolean isParentType(String type) {
+        return definition.getParentTypes() != null && definition.getParentTypes().contains(type);
+    }
+
     /*
-     * Delete children when parent / child is used
+     * Delete children when parent / child is used: they are deleted with the
+     * children of the other parents deleted in the bulk window.
      */
-    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent) {
+    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent, Timestamp<?> timestamp) {
         if (logger.isTraceEnabled()) {
             logger.trace("bulkDeleteRequest - objectId: {} - index: {} - type: {} - routing: {} - parent: {}", objectId, index, type,
                     routing, parent);
         }
 
-        if (definition.getParentTypes() != null && definition.getParentTypes().contains(type)) {
-            QueryBuilder builder = QueryBuilders.hasParentQuery(type, QueryBuilders.termQuery(MongoDBRiver.MONGODB_ID_FIELD, objectId));
-            SearchResponse response = esClient.prepareSearch(index).setQuery(builder).setRouting(routing)
-                    .addField(MongoDBRiver.MONGODB_ID_FIELD).execute().actionGet();
-            for (SearchHit hit : response.getHits().getHits()) {
-                getBulkProcessor(index, hit.getType()).deleteBulkRequest(hit.getId(), routing, objectId);
-            }
+        if (isParentType(type)) {
+            getCascadeDeletes().addParent(index, type, routing, objectId);
+        }
+        if (timestamp != null) {
+            getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent, timestamp);
+        } else {
+            getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent);
         }
-        getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent);
     }
 
+    /*
+     * The documents of all the entries are passed at once to the script, in
+     * ctx.documents.
+     */
     @SuppressWarnings("unchecked")
-    private Timestamp<?> applyAdvancedTransformation(QueueEntry entry, String type) {
-
-        Timestamp<?> lastTimestamp = entry.getOplogTimestamp();
-        Operation operation = entry.getOperation();
-        String objectId = "";
-        if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) != null) {
-            objectId = entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD).toString();
-        }
-        if (logger.isTraceEnabled()) {
-            logger.trace("applyAdvancedTransformation for id: [{}], operation: [{}]", objectId, operation);
-        }
+    private Timestamp<?> applyAdvancedTransformation(List<QueueEntry> entries) {
 
-        if (!definition.getIncludeCollection().isEmpty()) {
-            logger.trace("About to include collection. set attribute {} / {} ", definition.getIncludeCollection(),
-                    definition.getMongoCollection());
-            entry.getData().put(definition.getIncludeCollection(), definition.getMongoCollection());
-        }
+        Timestamp<?> lastTimestamp = null;
         Map<String, Object> ctx = null;
         try {
             ctx = XContentFactory.xContent(XContentType.JSON).createParser("{}").mapAndClose();
@@ -300,25 +824,40 @@ class Indexer implements Runnable {
         }
 
         List<Object> documents = new ArrayList<Object>();
-        Map<String, Object> document = new HashMap<String, Object>();
+        for (QueueEntry entry : entries) {
+            lastTimestamp = entry.getOplogTimestamp();
+            Operation operation = entry.getOperation();
+            String objectId = "";
+            if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) != null) {
+                objectId = entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD).toString();
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("applyAdvancedTransformation for id: [{}], operation: [{}]", objectId, operation);
+            }
 
-        if (hasScript()) {
-            if (ctx != null && documents != null) {
+            if (!definition.getIncludeCollection().isEmpty()) {
+                logger.trace("About to include collection. set attribute {} / {} ", definition.getIncludeCollection(),
+                        definition.getMongoCollection());
+                entry.getData().put(definition.getIncludeCollection(), definition.getMongoCollection());
+            }
 
-                document.put("data", entry.getData().toMap());
-                if (!objectId.isEmpty()) {
-                    document.put("id", objectId);
-                }
-                document.put("_index", definition.getIndexName());
-                document.put("_type", type);
-                document.put("operation", operation.getValue());
+            Map<String, Object> document = new HashMap<String, Object>();
+            document.put("data", entry.getData().toMap());
+            if (!objectId.isEmpty()) {
+                document.put("id", objectId);
+            }
+            document.put("_index", definition.getIndexName());
+            document.put("_type", definition.isImportAllCollections() ? entry.getCollection() : definition.getTypeName());
+            document.put("operation", operation.getValue());
+            documents.add(document);
+        }
 
-                documents.add(document);
+        if (hasScript()) {
+            if (ctx != null && documents != null) {
 
                 ctx.put("documents", documents);
                 try {
-                    ExecutableScript executableScript = scriptService.executable(definition.getScriptType(), definition.getScript(),
-                            ScriptService.ScriptType.INLINE, ImmutableMap.of("logger", logger));
+                    ExecutableScript executableScript = getExecutableScript();
                     if (logger.isTraceEnabled()) {
                         logger.trace("Script to be executed: {} - {}", definition.getScriptType(), definition.getScript());
                         logger.trace("Context before script executed: {}", ctx);
@@ -347,13 +886,13 @@ class Indexer implements Runnable {
                             }
 
                             String index = extractIndex(item);
-                            type = extractType(item, type);
+                            String type = extractType(item, definition.getTypeName());
                             String parent = extractParent(item);
                             String routing = extractRouting(item);
-                            operation = extractOperation(item);
+                            Operation operation = extractOperation(item);
                             boolean ignore = isDocumentIgnored(item);
                             Map<String, Object> data = (Map<String, Object>) item.get("data");
-                            objectId = extractObjectId(data, objectId);
+                            String objectId = extractObjectId(data, item.get("id") != null ? item.get("id").toString() : "");
                             if (logger.isTraceEnabled()) {
                                 logger.trace(
                                         "#### - Id: {} - operation: {} - ignore: {} - index: {} - type: {} - routing: {} - parent: {}",
@@ -363,7 +902,7 @@ class Indexer implements Runnable {
                                 continue;
                             }
                             try {
-                                updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+                                updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent, null);
                             } catch (IOException ioEx) {
                                 logger.error("Update bulk failed.", ioEx);
                             }
@@ -381,46 +920,31 @@ class Indexer implements Runnable {
             logger.info("Add Attachment: {} to index {} / type {}", objectId, definition.getIndexName(), definition.getTypeName());
             return MongoDBHelper.serialize((GridFSDBFile) data);
         } else {
-            Map<String, Object> mapData = this.createObjectMap(data);
-            return XContentFactory.jsonBuilder().map(mapData);
+            return MongoDBHelper.toXContent(data);
         }
     }
 
-    /**
-     * Map a DBObject for indexing
-     * 
-     * @param dbObj
-     */
-    private Map<String, Object> createObjectMap(DBObject dbObj) {
-        Map<String, Object> mapData = new HashMap<String, Object>();
-        for (String key : dbObj.keySet()) {
-            Object value = dbObj.get(key);
-            if (value instanceof DBRef) {
-                mapData.put(key, this.convertDbRef((DBRef) value));
-            } else if (value instanceof BasicDBList) {
-                mapData.put(key, ((BasicBSONList) value).toArray());
-            } else if (value instanceof BasicDBObject) {
-                mapData.put(key, this.createObjectMap((DBObject) value));
-            } else {
-                mapData.put(key, value);
-            }
+    // One per indexer thread
+    private CascadeDeletes getCascadeDeletes() {
+        CascadeDeletes deletes = cascadeDeletes.get();
+        if (deletes == null) {
+            deletes = new CascadeDeletes();
+            cascadeDeletes.set(deletes);
         }
-
-        return mapData;
+        return deletes;
     }
 
-    /**
-     * Map a DBRef to a Map for indexing
-     * 
-     * @param ref
-     * @return
+    /*
+     * The script is compiled once and each thread reuses its executable
+     * instance: only ctx is set again for each document.
      */
-    private Map<String, Object> convertDbRef(DBRef ref) {
-        Map<String, Object> obj = new HashMap<String, Object>();
-        obj.put("id", ref.getId());
-        obj.put("ref", ref.getRef());
-
-        return obj;
+    private ExecutableScript getExecutableScript() {
+        ExecutableScript script = executableScripts.get();
+        if (script == null) {
+            script = scriptService.executable(compiledScript, ImmutableMap.<String, Object> of("logger", logger));
+            executableScripts.set(script);
+        }
+        return script;
     }
 
     private boolean hasScript() {
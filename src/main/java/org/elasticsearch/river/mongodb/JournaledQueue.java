@@ -0,0 +1,543 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bson.io.BasicOutputBuffer;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+
+/**
+ * Stream spilling to an append-only journal of memory-mapped segment files
+ * when its in-memory queue is full, so the slurpers keep reading the oplog
+ * while Elasticsearch is slow instead of letting it roll over.
+ *
+ * Once an entry has been journaled, the following ones are journaled too
+ * until the indexer has drained the journal: entries are taken in the order
+ * they were put. A segment read by the indexer is kept as a spare for the
+ * next segment, the others are deleted: a mapped file cannot be deleted on
+ * Windows, and its space is only released once the mapping is collected, so
+ * the deletions failing are retried later. The journal does not survive the
+ * river: it is emptied when the river is created, as the slurpers resume from
+ * the last checkpointed timestamp.
+ *
+ * GridFS files are not journaled, they wait for the journal to be drained and
+ * for room in memory.
+ */
+class JournaledQueue extends AbstractQueue<QueueEntry> implements BlockingQueue<QueueEntry> {
+
+    static final String SEGMENT_SUFFIX = ".journal";
+
+    private static final String OPERATION_FIELD = "op";
+    private static final String COLLECTION_FIELD = "ns";
+    private static final String DATA_FIELD = "o";
+    private static final String SHARD_FIELD = "sh";
+
+    /*
+     * Memory-mapped segment file, records are the length of a BSON document
+     * followed by the document.
+     */
+    private static class Segment {
+
+        private final File file;
+        private MappedByteBuffer buffer;
+        private int writePosition;
+        private int readPosition;
+
+        Segment(File file, int size) throws IOException {
+            this.file = file;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // The mapping remains valid once the file is closed
+                buffer = raf.getChannel().map(MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        boolean append(byte[] record) {
+            if (buffer.capacity() - writePosition < 4 + record.length) {
+                return false;
+            }
+            buffer.putInt(writePosition, record.length);
+            ByteBuffer target = buffer.duplicate();
+            target.position(writePosition + 4);
+            target.put(record);
+            writePosition += 4 + record.length;
+            return true;
+        }
+
+        boolean hasUnread() {
+            return readPosition < writePosition;
+        }
+
+        byte[] read(boolean advance) {
+            int length = buffer.getInt(readPosition);
+            byte[] record = new byte[length];
+            ByteBuffer source = buffer.duplicate();
+            source.position(readPosition + 4);
+            source.get(record);
+            if (advance) {
+                readPosition += 4 + length;
+            }
+            return record;
+        }
+
+        /* Reuse the segment once everything has been read from it */
+        void reset() {
+            readPosition = 0;
+            writePosition = 0;
+        }
+
+        boolean fits(byte[] record) {
+            return buffer.capacity() >= 4 + record.length;
+        }
+    }
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+    private final BlockingQueue<QueueEntry> memory;
+    private final File directory;
+    private final int segmentSize;
+    private final long maxSize;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    // Segment read, reused for the next segment
+    private Segment spare;
+    // Segment files whose deletion failed
+    private final List<File> undeleted = new ArrayList<File>();
+    private long nextSegment;
+    private int journalEntries;
+    private long journalBytes;
+
+    /**
+     * @param memory
+     *            the in-memory queue, only used through its non-blocking
+     *            methods
+     * @param maxSize
+     *            the size of the journal beyond which producers block, or -1
+     */
+    JournaledQueue(BlockingQueue<QueueEntry> memory, File directory, long segmentSize, long maxSize) {
+        this.memory = memory;
+        this.directory = directory;
+        this.segmentSize = (int) Math.min(Integer.MAX_VALUE, segmentSize);
+        this.maxSize = maxSize < 0 ? Long.MAX_VALUE : maxSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create journal directory " + directory);
+        }
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                if (file.getName().endsWith(SEGMENT_SUFFIX) && !file.delete()) {
+                    logger.warn("Cannot delete journal segment {}", file);
+                }
+            }
+        }
+    }
+
+    BlockingQueue<QueueEntry> getMemory() {
+        return memory;
+    }
+
+    /**
+     * @return the number of entries in the journal
+     */
+    int getJournalEntries() {
+        lock.lock();
+        try {
+            return journalEntries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the entries in the journal
+     */
+    long getJournalBytes() {
+        lock.lock();
+        try {
+            return journalBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static byte[] encode(QueueEntry entry) {
+        DBObject record = new BasicDBObject();
+        if (entry.getOplogTimestamp() != null) {
+            entry.getOplogTimestamp().saveFields(record);
+        }
+        record.put(OPERATION_FIELD, entry.getOperation().name());
+        record.put(COLLECTION_FIELD, entry.getCollection());
+        record.put(DATA_FIELD, entry.getData());
+        record.put(SHARD_FIELD, entry.getShard());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        DefaultDBEncoder.FACTORY.create().writeObject(buffer, record);
+        return buffer.toByteArray();
+    }
+
+    static QueueEntry decode(byte[] bytes) {
+        DBObject record = new DefaultDBDecoder().decode(bytes, (DBCollection) null);
+        return new QueueEntry(Timestamp.on(record), Operation.valueOf((String) record.get(OPERATION_FIELD)),
+                (DBObject) record.get(DATA_FIELD), (String) record.get(COLLECTION_FIELD), (String) record.get(SHARD_FIELD));
+    }
+
+    /*
+     * Add the entry to memory, or to the journal once it has entries.
+     * Returns false if there is no room for it, an empty record meaning that
+     * the entry cannot be journaled.
+     */
+    private boolean enqueue(QueueEntry entry, byte[][] record) {
+        if (journalEntries == 0 && memory.offer(entry)) {
+            notEmpty.signal();
+            return true;
+        }
+        if (record[0] == null) {
+            record[0] = new byte[0];
+            if (!entry.isAttachment()) {
+                try {
+                    record[0] = encode(entry);
+                } catch (RuntimeException e) {
+                    logger.debug("Cannot journal entry of collection {}", e, entry.getCollection());
+                }
+            }
+        }
+        if (record[0].length == 0 || (journalEntries > 0 && journalBytes + record[0].length > maxSize)) {
+            return false;
+        }
+        try {
+            append(record[0]);
+        } catch (IOException e) {
+            logger.warn("Cannot write to journal {}, wait for room in memory", e, directory);
+            record[0] = new byte[0];
+            return false;
+        }
+        journalEntries++;
+        journalBytes += record[0].length;
+        notEmpty.signal();
+        return true;
+    }
+
+    private void append(byte[] record) throws IOException {
+        Segment segment = segments.peekLast();
+        if (segment == null || !segment.append(record)) {
+            if (spare != null && spare.fits(record)) {
+                segment = spare;
+                spare = null;
+            } else {
+                File file = new File(directory, String.format("%019d%s", nextSegment++, SEGMENT_SUFFIX));
+                segment = new Segment(file, Math.max(segmentSize, 4 + record.length));
+                logger.debug("Open journal segment {}", file);
+            }
+            segments.addLast(segment);
+            segment.append(record);
+        }
+    }
+
+    /*
+     * Keep a segment read as the spare, or delete it.
+     */
+    private void recycle(Segment segment) {
+        segment.reset();
+        if (spare == null) {
+            spare = segment;
+        } else {
+            delete(segment);
+        }
+    }
+
+    /*
+     * Never fails: the file is deleted later if it is still mapped.
+     */
+    private void delete(Segment segment) {
+        segment.buffer = null;
+        undeleted.add(segment.file);
+        Iterator<File> files = undeleted.iterator();
+        while (files.hasNext()) {
+            File file = files.next();
+            if (file.delete() || !file.exists()) {
+                files.remove();
+            } else if (file == segment.file) {
+                logger.warn("Cannot delete journal segment {} yet, retry later", file);
+            }
+        }
+    }
+
+    /*
+     * Read the next record of the journal, deleting the segments read.
+     */
+    private byte[] read(boolean advance) {
+        Segment segment = segments.peekFirst();
+        while (!segment.hasUnread()) {
+            recycle(segments.pollFirst());
+            segment = segments.peekFirst();
+        }
+        byte[] record = segment.read(advance);
+        if (!advance) {
+            return record;
+        }
+        journalEntries--;
+        journalBytes -= record.length;
+        if (!segment.hasUnread()) {
+            if (segments.size() == 1) {
+                segment.reset();
+            } else {
+                recycle(segments.pollFirst());
+            }
+        }
+        notFull.signalAll();
+        return record;
+    }
+
+    /*
+     * Take the next entry, either from memory or as a journal record.
+     */
+    private Object dequeue() {
+        QueueEntry entry = memory.poll();
+        if (entry != null) {
+            notFull.signalAll();
+            return entry;
+        }
+        return journalEntries > 0 ? read(true) : null;
+    }
+
+    private static QueueEntry toEntry(Object dequeued) {
+        return dequeued instanceof byte[] ? decode((byte[]) dequeued) : (QueueEntry) dequeued;
+    }
+
+    @Override
+    public void put(QueueEntry entry) throws InterruptedException {
+        byte[][] record = new byte[1][];
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(entry, record)) {
+                notFull.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        byte[][] record = new byte[1][];
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!enqueue(entry, record)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry) {
+        lock.lock();
+        try {
+            return enqueue(entry, new byte[1][]);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry take() throws InterruptedException {
+        Object dequeued;
+        lock.lockInterruptibly();
+        try {
+            while ((dequeued = dequeue()) == null) {
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+        // Decoded outside of the lock
+        return toEntry(dequeued);
+    }
+
+    @Override
+    public QueueEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Object dequeued;
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while ((dequeued = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return toEntry(dequeued);
+    }
+
+    @Override
+    public QueueEntry poll() {
+        Object dequeued;
+        lock.lock();
+        try {
+            dequeued = dequeue();
+        } finally {
+            lock.unlock();
+        }
+        return dequeued == null ? null : toEntry(dequeued);
+    }
+
+    @Override
+    public QueueEntry peek() {
+        lock.lock();
+        try {
+            QueueEntry entry = memory.peek();
+            if (entry == null && journalEntries > 0) {
+                entry = decode(read(false));
+            }
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return memory.size() + journalEntries;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Always {@link Integer#MAX_VALUE}: the room left depends on the size of
+     * the entries.
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection, int maxElements) {
+        if (collection == this) {
+            throw new IllegalArgumentException();
+        }
+        List<Object> dequeued = new ArrayList<Object>();
+        lock.lock();
+        try {
+            Object item;
+            while (dequeued.size() < maxElements && (item = dequeue()) != null) {
+                dequeued.add(item);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Object item : dequeued) {
+            collection.add(toEntry(item));
+        }
+        return dequeued.size();
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            memory.clear();
+            for (Segment segment : segments) {
+                delete(segment);
+            }
+            segments.clear();
+            if (spare != null) {
+                delete(spare);
+                spare = null;
+            }
+            journalEntries = 0;
+            journalBytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Only removes entries held in memory: journaled entries are copies.
+     */
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            if (memory.remove(o)) {
+                notFull.signalAll();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the entries, the journaled ones being
+     * decoded.
+     */
+    @Override
+    public Iterator<QueueEntry> iterator() {
+        lock.lock();
+        try {
+            List<QueueEntry> entries = new ArrayList<QueueEntry>(memory);
+            for (Segment segment : segments) {
+                int position = segment.readPosition;
+                while (segment.hasUnread()) {
+                    entries.add(decode(segment.read(true)));
+                }
+                segment.readPosition = position;
+            }
+            return Collections.unmodifiableList(entries).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Delete the journal.
+     */
+    void close() {
+        clear();
+    }
+}
@@ -0,0 +1,255 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+/**
+ * Stream bounded by the estimated BSON size of its entries rather than by
+ * their number: producers block while the byte budget is exhausted.
+ *
+ * An entry is always accepted by an empty queue, so a document larger than
+ * the budget still goes through, alone.
+ */
+class MemoryBoundedQueue extends AbstractQueue<QueueEntry> implements BlockingQueue<QueueEntry> {
+
+    private final long capacity;
+    private final ArrayDeque<QueueEntry> entries = new ArrayDeque<QueueEntry>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private long bytes;
+
+    MemoryBoundedQueue(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return the estimated size of the entries in the queue
+     */
+    long getBytes() {
+        lock.lock();
+        try {
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    private boolean hasRoom(QueueEntry entry) {
+        return entries.isEmpty() || bytes + entry.getEstimatedSize() <= capacity;
+    }
+
+    private void enqueue(QueueEntry entry) {
+        entries.addLast(entry);
+        bytes += entry.getEstimatedSize();
+        notEmpty.signal();
+    }
+
+    private QueueEntry dequeue() {
+        QueueEntry entry = entries.removeFirst();
+        bytes -= entry.getEstimatedSize();
+        notFull.signalAll();
+        return entry;
+    }
+
+    @Override
+    public void put(QueueEntry entry) throws InterruptedException {
+        // Estimated outside of the lock
+        entry.getEstimatedSize();
+        lock.lockInterruptibly();
+        try {
+            while (!hasRoom(entry)) {
+                notFull.await();
+            }
+            enqueue(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry, long timeout, TimeUnit unit) throws InterruptedException {
+        entry.getEstimatedSize();
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (!hasRoom(entry)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(QueueEntry entry) {
+        entry.getEstimatedSize();
+        lock.lock();
+        try {
+            if (!hasRoom(entry)) {
+                return false;
+            }
+            enqueue(entry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry poll() {
+        lock.lock();
+        try {
+            return entries.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public QueueEntry peek() {
+        lock.lock();
+        try {
+            return entries.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Always {@link Integer#MAX_VALUE}: the queue is not bounded by a number
+     * of entries.
+     */
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection) {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super QueueEntry> collection, int maxElements) {
+        if (collection == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !entries.isEmpty()) {
+                collection.add(dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        lock.lock();
+        try {
+            entries.clear();
+            bytes = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        lock.lock();
+        try {
+            Iterator<QueueEntry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                QueueEntry entry = iterator.next();
+                if (entry.equals(o)) {
+                    iterator.remove();
+                    bytes -= entry.getEstimatedSize();
+                    notFull.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot of the entries, which cannot be removed
+     * through it.
+     */
+    @Override
+    public Iterator<QueueEntry> iterator() {
+        lock.lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<QueueEntry>(entries)).iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
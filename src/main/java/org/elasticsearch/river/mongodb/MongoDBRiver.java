@@ -18,9 +18,11 @@
  */
 package org.elasticsearch.river.mongodb;
 
+import static org.elasticsearch.client.Requests.deleteRequest;
 import static org.elasticsearch.client.Requests.indexRequest;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
@@ -71,6 +73,10 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     public static final String NAME = "mongodb-river";
     public static final String STATUS_ID = "_riverstatus";
     public static final String STATUS_FIELD = "status";
+    public static final String IMPORT_CHECKPOINT_ID = "_importcheckpoint";
+    public static final String BULK_STATUS_ID = "_bulkstatus";
+    public static final String SHARD_TIMESTAMP_SEPARATOR = "/";
+    public static final String BULK_FIELD = "bulk";
     public static final String DESCRIPTION = "MongoDB River Plugin";
     public static final String LAST_TIMESTAMP_FIELD = "_last_ts";
     public static final String LAST_GTID_FIELD = "_last_gtid";
@@ -138,8 +144,18 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         this.mongoClientService = mongoClientService;
         this.definition = MongoDBRiverDefinition.parseSettings(riverName.name(), riverIndexName, settings, scriptService);
 
-        BlockingQueue<QueueEntry> stream = definition.getThrottleSize() == -1 ? new LinkedTransferQueue<QueueEntry>()
-                : new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
+        BlockingQueue<QueueEntry> stream;
+        if (definition.getThrottleBytes() != null) {
+            stream = new MemoryBoundedQueue(definition.getThrottleBytes().bytes());
+        } else if (definition.getThrottleSize() == -1) {
+            stream = new LinkedTransferQueue<QueueEntry>();
+        } else {
+            stream = new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
+        }
+        if (definition.getJournalPath() != null) {
+            stream = new JournaledQueue(stream, new File(definition.getJournalPath(), riverName.getName()), definition
+                    .getJournalSegmentSize().bytes(), definition.getJournalMaxSize() != null ? definition.getJournalMaxSize().bytes() : -1);
+        }
 
         this.context = new SharedContext(stream, Status.STOPPED);
     }
@@ -285,24 +301,32 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                     indexerThread.start();
 
                     // Import in main thread to block tailing the oplog
+                    // An import checkpoint is left when the initial import has been interrupted
+                    ImportCheckpoint importCheckpoint = getImportCheckpoint(esClient, definition);
                     Timestamp slurperStartTimestamp = getLastProcessedTimestamp();
-                    if (slurperStartTimestamp != null) {
+                    boolean resume = slurperStartTimestamp != null && importCheckpoint == null;
+                    if (resume) {
                         logger.trace("Initial import already completed.");
-                        // Start from where we last left of
+                        // Start from where we last left of, on each shard
                     } else if (definition.isSkipInitialImport() || definition.getInitialTimestamp() != null) {
+                        // The last timestamps of the shards are from an older sync
+                        deleteShardTimestamps(esClient, definition, config.getShards());
                         logger.info("Skip initial import from collection {}", definition.getMongoCollection());
                         // Start from the point requested
                         slurperStartTimestamp = definition.getInitialTimestamp();
                     } else {
                         // Determine the timestamp to be used for all documents loaded as "initial import".
-                        Timestamp initialImportTimestamp = null;
-                        for (Shard shard : config.getShards()) {
-                            if (initialImportTimestamp == null || shard.getLatestOplogTimestamp().compareTo(initialImportTimestamp) < 1) {
-                                initialImportTimestamp = shard.getLatestOplogTimestamp();
+                        if (importCheckpoint == null) {
+                            deleteShardTimestamps(esClient, definition, config.getShards());
+                            importCheckpoint = new ImportCheckpoint();
+                            for (Shard shard : config.getShards()) {
+                                importCheckpoint.setShardTimestamp(shard.getName(), shard.getLatestOplogTimestamp());
                             }
+                        } else {
+                            logger.info("Resume initial import started at {}", importCheckpoint.getTimestamp());
                         }
                         CollectionSlurper importer = new CollectionSlurper(mongoClusterClient, definition, context, esClient);
-                        importer.importInitial(initialImportTimestamp);
+                        importer.importInitial(importCheckpoint);
                         // Start slurping from the shard's oplog time
                         slurperStartTimestamp = null;
                     }
@@ -310,11 +334,24 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                     // Tail the oplog
                     // NB: In a non-mongos environment the config will report a single shard, with the servers used for the connection as the replicas.
                     for (Shard shard : config.getShards()) {
-                        Timestamp shardSlurperStartTimestamp = slurperStartTimestamp != null ? slurperStartTimestamp : shard.getLatestOplogTimestamp();
+                        Timestamp shardSlurperStartTimestamp = slurperStartTimestamp;
+                        if (resume) {
+                            // Shards without a timestamp yet resume from the last timestamp of the river
+                            Timestamp<?> shardTimestamp = getLastTimestamp(esClient, definition, shard.getName());
+                            if (shardTimestamp != null) {
+                                shardSlurperStartTimestamp = shardTimestamp;
+                            }
+                        }
+                        if (shardSlurperStartTimestamp == null && importCheckpoint != null) {
+                            shardSlurperStartTimestamp = importCheckpoint.getShardTimestamp(shard.getName());
+                        }
+                        if (shardSlurperStartTimestamp == null) {
+                            shardSlurperStartTimestamp = shard.getLatestOplogTimestamp();
+                        }
                         MongoClient mongoClient = mongoClientService.getMongoShardClient(definition, shard.getReplicas());
                         Thread tailerThread = EsExecutors.daemonThreadFactory(
                                 settings.globalSettings(), "mongodb_river_slurper_" + shard.getName() + ":" + definition.getIndexName()
-                            ).newThread(new OplogSlurper(shardSlurperStartTimestamp, mongoClusterClient, mongoClient, definition, context, esClient));
+                            ).newThread(new OplogSlurper(shard.getName(), shardSlurperStartTimestamp, mongoClusterClient, mongoClient, definition, context, esClient));
                         tailerThreads.add(tailerThread);
                     }
 
@@ -379,6 +416,10 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
 
         // Cleanup the other parts (the status thread is gone, and can't do that for us anymore)
         internalStopRiver();
+
+        if (context.getStream() instanceof JournaledQueue) {
+            ((JournaledQueue) context.getStream()).close();
+        }
     }
 
     protected Timestamp<?> getLastProcessedTimestamp() {
@@ -433,6 +474,55 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         return null;
     }
 
+    /**
+     * Get the latest timestamp of the entries read from the oplog of a shard.
+     * 
+     * @return {@code null} if none has been saved
+     */
+    @SuppressWarnings("unchecked")
+    static Timestamp<?> getLastTimestamp(Client client, MongoDBRiverDefinition definition, String shard) {
+        client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
+
+        GetResponse lastTimestampResponse = client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(),
+                getShardTimestampId(definition, shard)).get();
+        if (lastTimestampResponse.isExists()) {
+            Map<String, Object> mongodbState = (Map<String, Object>) lastTimestampResponse.getSourceAsMap().get(TYPE);
+            if (mongodbState != null) {
+                return Timestamp.on(mongodbState);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an index request operation to a bulk request, updating the last
+     * timestamp of the entries read from the oplog of a shard.
+     */
+    static void setLastTimestamp(final MongoDBRiverDefinition definition, final String shard, final Timestamp<?> time,
+            final BulkProcessor bulkProcessor) {
+        try {
+            if (logger.isTraceEnabled()) {
+                logger.trace("setLastTimestamp [{}] [{}] [{}] [{}]", definition.getRiverName(), definition.getMongoOplogNamespace(),
+                        shard, time);
+            }
+            bulkProcessor.add(indexRequest(definition.getRiverIndexName()).type(definition.getRiverName())
+                    .id(getShardTimestampId(definition, shard)).source(source(time)));
+        } catch (IOException e) {
+            logger.error("error updating last timestamp for namespace {} of shard {}", definition.getMongoOplogNamespace(), shard);
+        }
+    }
+
+    static void deleteShardTimestamps(Client client, MongoDBRiverDefinition definition, List<Shard> shards) {
+        for (Shard shard : shards) {
+            client.prepareDelete(definition.getRiverIndexName(), definition.getRiverName(), getShardTimestampId(definition, shard.getName()))
+                    .get();
+        }
+    }
+
+    private static String getShardTimestampId(MongoDBRiverDefinition definition, String shard) {
+        return definition.getMongoOplogNamespace() + SHARD_TIMESTAMP_SEPARATOR + shard;
+    }
+
     /**
      * Adds an index request operation to a bulk request, updating the last
      * timestamp for a given namespace (ie: host:dbName.collectionName)
@@ -451,6 +541,49 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         }
     }
 
+    /**
+     * Get the checkpoint of an interrupted initial import.
+     */
+    @SuppressWarnings("unchecked")
+    static ImportCheckpoint getImportCheckpoint(Client client, MongoDBRiverDefinition definition) {
+        client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
+
+        GetResponse checkpointResponse = client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(),
+                IMPORT_CHECKPOINT_ID).get();
+        if (checkpointResponse.isExists()) {
+            Map<String, Object> checkpoint = (Map<String, Object>) checkpointResponse.getSourceAsMap().get(TYPE);
+            if (checkpoint != null) {
+                return ImportCheckpoint.fromSource(checkpoint);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds an index request operation to a bulk request, saving the progress
+     * of the initial import.
+     */
+    static void setImportCheckpoint(final MongoDBRiverDefinition definition, final Map<?, ?> checkpoint,
+            final BulkProcessor bulkProcessor) {
+        try {
+            if (logger.isTraceEnabled()) {
+                logger.trace("setImportCheckpoint [{}] [{}]", definition.getRiverName(), checkpoint);
+            }
+            bulkProcessor.add(indexRequest(definition.getRiverIndexName()).type(definition.getRiverName()).id(IMPORT_CHECKPOINT_ID)
+                    .source(jsonBuilder().startObject().field(TYPE, checkpoint).endObject()));
+        } catch (IOException e) {
+            logger.error("error updating initial import checkpoint of river {}", definition.getRiverName());
+        }
+    }
+
+    /**
+     * Adds a delete request operation to a bulk request, removing the
+     * checkpoint of a completed initial import.
+     */
+    static void deleteImportCheckpoint(final MongoDBRiverDefinition definition, final BulkProcessor bulkProcessor) {
+        bulkProcessor.add(deleteRequest(definition.getRiverIndexName()).type(definition.getRiverName()).id(IMPORT_CHECKPOINT_ID));
+    }
+
     private static XContentBuilder source(Timestamp<?> time) throws IOException {
         XContentBuilder builder = jsonBuilder().startObject().startObject(TYPE);
         time.saveFields(builder);
@@ -477,16 +610,23 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         private final Operation operation;
         private final Timestamp<?> oplogTimestamp;
         private final String collection;
+        private final String shard;
+        private long estimatedSize = -1;
 
         public QueueEntry(DBObject data, String collection) {
             this(null, Operation.INSERT, data, collection);
         }
 
         public QueueEntry(Timestamp<?> oplogTimestamp, Operation oplogOperation, DBObject data, String collection) {
+            this(oplogTimestamp, oplogOperation, data, collection, null);
+        }
+
+        public QueueEntry(Timestamp<?> oplogTimestamp, Operation oplogOperation, DBObject data, String collection, String shard) {
             this.data = data;
             this.operation = oplogOperation;
             this.oplogTimestamp = oplogTimestamp;
             this.collection = collection;
+            this.shard = shard;
         }
 
         public boolean isAttachment() {
@@ -508,6 +648,24 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         public String getCollection() {
             return collection;
         }
+
+        /**
+         * @return the shard whose oplog the entry was read from, or
+         *         {@code null} if it was not read from an oplog
+         */
+        public String getShard() {
+            return shard;
+        }
+
+        /**
+         * @return the estimated BSON size of the entry, computed once
+         */
+        public long getEstimatedSize() {
+            if (estimatedSize < 0) {
+                estimatedSize = data != null ? MongoDBHelper.estimateBsonSize(data) : 0;
+            }
+            return estimatedSize;
+        }
     }
 
 }
@@ -2,11 +2,11 @@ package org.elasticsearch.river.mongodb;
 
 import static org.elasticsearch.client.Requests.deleteRequest;
 import static org.elasticsearch.client.Requests.indexRequest;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Semaphore;
@@ -16,16 +16,16 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
-import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
-import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
-import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
-import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.DocumentRequest;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkProcessor.Listener;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
 import org.elasticsearch.common.collect.ImmutableMap;
@@ -33,15 +33,24 @@ import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
-import org.elasticsearch.threadpool.ThreadPool.Info;
-import org.elasticsearch.threadpool.ThreadPoolStats.Stats;
 
 public class MongoDBRiverBulkProcessor {
 
-    public static final long DEFAULT_BULK_QUEUE_SIZE = 50;
     public static final Map<String, Boolean> DROP_INDEX = ImmutableMap.of("dropIndex", Boolean.TRUE);
+    static final String DEAD_LETTER_INDEX_FIELD = "index";
+    static final String DEAD_LETTER_TYPE_FIELD = "type";
+    static final String DEAD_LETTER_ID_FIELD = "id";
+    static final String DEAD_LETTER_OPERATION_FIELD = "operation";
+    static final String DEAD_LETTER_STATUS_FIELD = "status";
+    static final String DEAD_LETTER_ERROR_FIELD = "error";
+    static final String DEAD_LETTER_TIMESTAMP_FIELD = "timestamp";
+    static final String DEAD_LETTER_SOURCE_FIELD = "source";
+    static final String DEAD_LETTER_DATE_FIELD = "date";
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
@@ -49,16 +58,25 @@ public class MongoDBRiverBulkProcessor {
     private final BulkProcessor bulkProcessor;
     private final String index;
     private final String type;
+    // Tunes the bulks at runtime, null if they are not adaptive
+    private final BulkController controller;
+    // Retries rejected or timed out items, failures stop the river once bulk.max_retries is exhausted
+    private final BulkRetries retries;
+    // Fill level of the bulk thread pool queue, null if it is not checked
+    private final BulkQueue bulkQueue;
+    // Added to the bulk processor by dropIndex(), never sent to the cluster
+    private final IndexRequest dropMarker;
 
     private final AtomicBoolean flushBulkProcessor = new AtomicBoolean();
     private final AtomicInteger deletedDocuments = new AtomicInteger();
     private final AtomicInteger insertedDocuments = new AtomicInteger();
     private final AtomicInteger updatedDocuments = new AtomicInteger();
     private final AtomicLong documentCount = new AtomicLong();
+    // Requests added since the last bulk, for the adaptive bulk limits
+    private final AtomicInteger pendingActions = new AtomicInteger();
+    private final AtomicLong pendingBytes = new AtomicLong();
     private final static Semaphore semaphore = new Semaphore(1);
 
-    private final long bulkQueueSize;
-    
     public static class Builder {
 
         private final MongoDBRiver river;
@@ -66,17 +84,32 @@ public class MongoDBRiverBulkProcessor {
         private final Client client;
         private String index;
         private String type;
+        private final BulkRetries retries;
+        private BulkController controller;
+        private BulkQueue bulkQueue;
 
-        public Builder(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
+        public Builder(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type,
+                BulkRetries retries) {
             this.river = river;
             this.definition = definition;
             this.client = client;
             this.index = index;
             this.type = type;
+            this.retries = retries;
+        }
+
+        public Builder controller(BulkController controller) {
+            this.controller = controller;
+            return this;
+        }
+
+        public Builder bulkQueue(BulkQueue bulkQueue) {
+            this.bulkQueue = bulkQueue;
+            return this;
         }
 
         public MongoDBRiverBulkProcessor build() {
-            return new MongoDBRiverBulkProcessor(river, definition, client, index, type);
+            return new MongoDBRiverBulkProcessor(river, definition, client, index, type, controller, retries, bulkQueue);
         }
     }
 
@@ -84,12 +117,22 @@ public class MongoDBRiverBulkProcessor {
 
         @Override
         public void beforeBulk(long executionId, BulkRequest request) {
-            checkBulkProcessorAvailability();
+            pendingActions.set(0);
+            pendingBytes.set(0);
+            if (controller != null) {
+                controller.onBulkStarted();
+            }
             logger.trace("beforeBulk - new bulk [{}] of items [{}]", executionId, request.numberOfActions());
+            retries.started(request);
+            holdCheckpoints(request);
             if (flushBulkProcessor.get()) {
                 logger.trace("About to flush bulk request index[{}] - type[{}]", index, type);
                 int dropDollectionIndex = findLastDropCollection(request.requests());
-                request.requests().subList(0, dropDollectionIndex + 1).clear();
+                if (dropDollectionIndex < 0) {
+                    logger.trace("Drop collection marker not in bulk [{}] yet", executionId);
+                    return;
+                }
+                removeRequests(request, 0, dropDollectionIndex + 1);
                 try {
                     dropRecreateMapping();
                     deletedDocuments.set(0);
@@ -106,27 +149,64 @@ public class MongoDBRiverBulkProcessor {
             }
         }
 
+        /*
+         * The marker is compared by reference, the sources of the requests are
+         * never parsed. It is usually the last request, as dropIndex() flushes
+         * the bulk processor right after adding it.
+         */
         @SuppressWarnings("rawtypes")
         private int findLastDropCollection(List<ActionRequest> request) {
-            int index = 0;
-            for (int i = 0; i < request.size(); i++) {
-                ActionRequest<?> action = request.get(i);
-                if (action instanceof IndexRequest) {
-                    Map<String, Object> source = ((IndexRequest) action).sourceAsMap();
-                    if (source.equals(DROP_INDEX)) {
-                        index = i;
-                    }
+            for (int i = request.size() - 1; i >= 0; i--) {
+                if (request.get(i) == dropMarker) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * Checkpoints are only saved once the bulks before them have completed
+         */
+        @SuppressWarnings("rawtypes")
+        private void holdCheckpoints(BulkRequest request) {
+            int i = 0;
+            while (i < request.requests().size()) {
+                ActionRequest action = request.requests().get(i);
+                if (isCheckpoint(action) && retries.hold(bulkProcessor, request, action)) {
+                    removeRequests(request, i, i + 1);
+                } else {
+                    i++;
                 }
             }
-            return index;
+        }
+
+        @SuppressWarnings("rawtypes")
+        private boolean isCheckpoint(ActionRequest action) {
+            if (action instanceof DocumentRequest) {
+                DocumentRequest<?> document = (DocumentRequest<?>) action;
+                return definition.getRiverIndexName().equals(document.index())
+                        && definition.getRiverName().equals(document.type());
+            }
+            return false;
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            if (controller != null) {
+                controller.onBulkCompleted();
+                if (failure instanceof EsRejectedExecutionException) {
+                    controller.onRejected();
+                    publishBulkStatus();
+                }
+            }
             if (failure.getClass().equals(ActionRequestValidationException.class)) {
                 if (logger.isTraceEnabled()) {
                     logger.trace("Ignore ActionRequestValidationException : {}", failure);
                 }
+                retries.completed(request);
+            } else if (BulkRetries.isRetryable(failure) && retryAll(request)) {
+                logger.warn("Bulk request {} failed, retry its {} items: {}", executionId, request.numberOfActions(), failure.toString());
+                retries.completed(request);
             } else {
                 logger.error("afterBulk - Bulk request failed: {} - {} - {}", executionId, request, failure);
                 MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
@@ -138,7 +218,12 @@ public class MongoDBRiverBulkProcessor {
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
-            if (response.hasFailures()) {
+            if (controller != null) {
+                controller.onBulkCompleted();
+                controller.onBulk(response.getTookInMillis(), countRejected(response));
+                publishBulkStatus();
+            }
+            if (response.hasFailures() && hasFatalFailures(request, response)) {
                 logger.error("Bulk processor failed. {}", response.buildFailureMessage());
                 MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
                 request.requests().clear();
@@ -154,12 +239,80 @@ public class MongoDBRiverBulkProcessor {
                     logger.trace("afterBulk - bulk [{}] success [{} items] [{} ms] total [{}]", executionId, response.getItems().length,
                             response.getTookInMillis(), documentCount.get());
                 }
+                retries.completed(request);
+            }
+        }
+
+        @SuppressWarnings("rawtypes")
+        private boolean retryAll(BulkRequest request) {
+            for (int i = 0; i < request.requests().size(); i++) {
+                ActionRequest action = request.requests().get(i);
+                if (!retries.retry(bulkProcessor, action, getPayload(request, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int countRejected(BulkResponse response) {
+            int rejected = 0;
+            if (response.hasFailures()) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed() && item.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                        rejected++;
+                    }
+                }
             }
+            return rejected;
+        }
+
+        /*
+         * Partial update of a document missing from the index (i.e. inserted
+         * before the river started) is not a reason to stop the river. Nor is
+         * a version conflict: a newer version of the document is indexed.
+         * Items rejected or timed out are retried, and the other failed
+         * documents are sent to the dead letter index when there is one.
+         */
+        @SuppressWarnings("rawtypes")
+        private boolean hasFatalFailures(BulkRequest request, BulkResponse response) {
+            for (BulkItemResponse item : response.getItems()) {
+                ActionRequest action = request.requests().get(item.getItemId());
+                if (!item.isFailed()) {
+                    if (retries.isRetrying()) {
+                        retries.remove(action);
+                    }
+                    continue;
+                }
+                RestStatus status = item.getFailure().getStatus();
+                if ("update".equals(item.getOpType()) && status == RestStatus.NOT_FOUND) {
+                    logger.warn("Ignore partial update of missing document [{}] / [{}] / [{}]", item.getIndex(), item.getType(),
+                            item.getId());
+                } else if (status == RestStatus.CONFLICT) {
+                    logger.debug("Ignore older version of document [{}] / [{}] / [{}]", item.getIndex(), item.getType(), item.getId());
+                } else if (BulkRetries.isRetryable(status)
+                        && retries.retry(bulkProcessor, action, getPayload(request, item.getItemId()))) {
+                    logger.debug("Retry document [{}] / [{}] / [{}]: {}", item.getIndex(), item.getType(), item.getId(),
+                            item.getFailureMessage());
+                    continue;
+                } else if (definition.getDeadLetterIndex() != null && !definition.getDeadLetterIndex().equals(item.getIndex())) {
+                    logger.warn("Send document [{}] / [{}] / [{}] to dead letter index [{}]: {}", item.getIndex(), item.getType(),
+                            item.getId(), definition.getDeadLetterIndex(), item.getFailureMessage());
+                    addDeadLetter(action, item, getPayload(request, item.getItemId()));
+                } else {
+                    return true;
+                }
+                retries.remove(action);
+            }
+            return false;
         }
     };
 
-    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
+    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type,
+            BulkController controller, BulkRetries retries, BulkQueue bulkQueue) {
         this.river = river;
+        this.controller = controller;
+        this.retries = retries;
+        this.bulkQueue = bulkQueue;
         this.bulkProcessor = BulkProcessor.builder(client, listener).setBulkActions(definition.getBulk().getBulkActions())
                 .setConcurrentRequests(definition.getBulk().getConcurrentRequests())
                 .setFlushInterval(definition.getBulk().getFlushInterval()).setBulkSize(definition.getBulk().getBulkSize()).build();
@@ -167,34 +320,70 @@ public class MongoDBRiverBulkProcessor {
         this.client = client;
         this.index = index;
         this.type = type;
-        this.bulkQueueSize = getBulkQueueSize();
+        this.dropMarker = indexRequest(index).type(type).source(DROP_INDEX);
     }
 
+    /**
+     * Drop and recreate the type before the requests added next. The requests
+     * added before are discarded.
+     */
     public void dropIndex() {
-        addBulkRequest(null, DROP_INDEX, null, null);
         flushBulkProcessor.set(true);
+        bulkProcessor.add(dropMarker);
+        bulkProcessor.flush();
     }
 
     public void addBulkRequest(String id, Map<?, ?> source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
+        add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
         insertedDocuments.incrementAndGet();
     }
 
     public void addBulkRequest(String id, XContentBuilder source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
+        add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
         insertedDocuments.incrementAndGet();
     }
 
-    // public void updateBulkRequest(String id, XContentBuilder source, String
-    // routing, String parent) {
-    // deleteBulkRequest(id, routing, parent);
-    // bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
-    // updatedDocuments.incrementAndGet();
-    // }
+    /**
+     * Index a document with an external version, from the oplog timestamp: it
+     * is not applied over a newer version already indexed. Timestamps without
+     * a version use internal versioning.
+     */
+    public void addBulkRequest(String id, XContentBuilder source, String routing, String parent, Timestamp<?> timestamp) {
+        IndexRequest request = indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent);
+        if (timestamp.getVersion() != Timestamp.NO_VERSION) {
+            request.version(timestamp.getVersion()).versionType(VersionType.EXTERNAL_GTE);
+        }
+        beforeAdd();
+        bulkProcessor.add(request, timestamp);
+        afterAdd(request.source().length());
+        insertedDocuments.incrementAndGet();
+    }
+
+    public void updateBulkRequest(String id, XContentBuilder source, String routing, String parent) {
+        beforeAdd();
+        bulkProcessor.add(new UpdateRequest(index, type, id).doc(source).routing(routing).parent(parent));
+        afterAdd(source.bytes().length());
+        updatedDocuments.incrementAndGet();
+    }
 
     public void deleteBulkRequest(String id, String routing, String parent) {
         logger.trace("deleteBulkRequest - id: {} - index: {} - type: {} - routing: {} - parent: {}", id, index, type, routing, parent);
+        beforeAdd();
         bulkProcessor.add(deleteRequest(index).type(type).id(id).routing(routing).parent(parent));
+        afterAdd(0);
+        deletedDocuments.incrementAndGet();
+    }
+
+    public void deleteBulkRequest(String id, String routing, String parent, Timestamp<?> timestamp) {
+        logger.trace("deleteBulkRequest - id: {} - index: {} - type: {} - routing: {} - parent: {} - timestamp: {}", id, index, type,
+                routing, parent, timestamp);
+        DeleteRequest request = deleteRequest(index).type(type).id(id).routing(routing).parent(parent);
+        if (timestamp.getVersion() != Timestamp.NO_VERSION) {
+            request.version(timestamp.getVersion()).versionType(VersionType.EXTERNAL_GTE);
+        }
+        beforeAdd();
+        bulkProcessor.add(request, timestamp);
+        afterAdd(0);
         deletedDocuments.incrementAndGet();
     }
 
@@ -202,46 +391,105 @@ public class MongoDBRiverBulkProcessor {
         return bulkProcessor;
     }
 
-    private void checkBulkProcessorAvailability() {
-        while (!isBulkProcessorAvailable()) {
-            try {
-                if (logger.isDebugEnabled()) {
-                    logger.debug("Waiting for bulk queue to empty...");
-                }
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                logger.warn("checkIndexStatistics interrupted", e);
+    /*
+     * The failed document is indexed from the retry thread: adding a request
+     * from the bulk listener could execute a bulk and block it.
+     */
+    @SuppressWarnings("rawtypes")
+    private void addDeadLetter(ActionRequest action, BulkItemResponse item, Object payload) {
+        try {
+            XContentBuilder builder = jsonBuilder().startObject();
+            builder.field(DEAD_LETTER_INDEX_FIELD, item.getIndex()).field(DEAD_LETTER_TYPE_FIELD, item.getType())
+                    .field(DEAD_LETTER_ID_FIELD, item.getId()).field(DEAD_LETTER_OPERATION_FIELD, item.getOpType())
+                    .field(DEAD_LETTER_STATUS_FIELD, item.getFailure().getStatus().getStatus())
+                    .field(DEAD_LETTER_ERROR_FIELD, item.getFailureMessage()).field(DEAD_LETTER_DATE_FIELD, new Date());
+            if (payload instanceof Timestamp) {
+                builder.startObject(DEAD_LETTER_TIMESTAMP_FIELD);
+                ((Timestamp<?>) payload).saveFields(builder);
+                builder.endObject();
+            }
+            if (action instanceof IndexRequest) {
+                builder.field(DEAD_LETTER_SOURCE_FIELD, ((IndexRequest) action).source().toUtf8());
+            } else if (action instanceof UpdateRequest && ((UpdateRequest) action).doc() != null) {
+                builder.field(DEAD_LETTER_SOURCE_FIELD, ((UpdateRequest) action).doc().source().toUtf8());
             }
+            final IndexRequest deadLetter = indexRequest(definition.getDeadLetterIndex()).type(definition.getRiverName()).source(
+                    builder.endObject());
+            retries.execute(new Runnable() {
+                @Override
+                public void run() {
+                    bulkProcessor.add(deadLetter);
+                }
+            });
+        } catch (IOException e) {
+            logger.error("Failed to build dead letter of document [{}] / [{}] / [{}]", e, item.getIndex(), item.getType(),
+                    item.getId());
         }
     }
 
-    private long getBulkQueueSize() {
-        NodesInfoResponse response = client.admin().cluster().prepareNodesInfo().setThreadPool(true).get();
-        for (NodeInfo node : response.getNodes()) {
-            Iterator<Info> iterator = node.getThreadPool().iterator();
-            while (iterator.hasNext()) {
-                Info info = iterator.next();
-                if ("bulk".equals(info.getName())) {
-                    return info.getQueueSize().getSingles();
-                }
+    private static Object getPayload(BulkRequest request, int i) {
+        List<Object> payloads = request.payloads();
+        return payloads != null && i < payloads.size() ? payloads.get(i) : null;
+    }
+
+    /*
+     * Payloads are kept aligned with the requests
+     */
+    private static void removeRequests(BulkRequest request, int from, int to) {
+        List<Object> payloads = request.payloads();
+        if (payloads != null && from < payloads.size()) {
+            payloads.subList(from, Math.min(to, payloads.size())).clear();
+        }
+        request.requests().subList(from, to).clear();
+    }
+
+    private void add(IndexRequest request) {
+        beforeAdd();
+        bulkProcessor.add(request);
+        afterAdd(request.source().length());
+    }
+
+    /*
+     * The bulk processor is built with the river settings, the upper bounds
+     * of the adaptive limits: bulks are flushed once they reach the current
+     * limits.
+     */
+    private void afterAdd(long bytes) {
+        if (controller != null) {
+            if (pendingActions.incrementAndGet() >= controller.getBulkActions()
+                    || pendingBytes.addAndGet(bytes) >= controller.getBulkSize()) {
+                bulkProcessor.flush();
             }
         }
-        return DEFAULT_BULK_QUEUE_SIZE;
     }
-    private boolean isBulkProcessorAvailable() {
-        NodesStatsResponse response = client.admin().cluster().prepareNodesStats().setThreadPool(true).get();
-        for (NodeStats nodeStats : response.getNodes()) {
-            Iterator<Stats> iterator = nodeStats.getThreadPool().iterator();
-            while (iterator.hasNext()) {
-                Stats stats = iterator.next();
-                if ("bulk".equals(stats.getName())) {
-                    int queue = stats.getQueue();
-                    logger.trace("bulkQueueSize [{}] - queue [{}] - availability [{}]", bulkQueueSize, queue, 1 - (queue / bulkQueueSize));
-                    return 1 - (queue / bulkQueueSize) > 0.1;
-                }
+
+    /*
+     * Blocks the thread adding requests (usually the indexer) while the bulk
+     * queue of the cluster is nearly full, or too many bulks of the river are
+     * in flight: the stream then fills up and slows the slurpers down. This is
+     * done before the request is added, as the bulk processor executes bulks
+     * while holding its own lock.
+     */
+    private void beforeAdd() {
+        try {
+            if (bulkQueue != null) {
+                bulkQueue.awaitAvailable();
+            }
+            if (controller != null) {
+                controller.awaitInFlight();
             }
+        } catch (InterruptedException e) {
+            logger.debug("Wait for bulks interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publishBulkStatus() {
+        Map<String, Object> status = controller.pollStatus(System.currentTimeMillis());
+        if (status != null) {
+            logger.debug("Adaptive bulk for [{}] / [{}]: {}", index, type, status);
+            MongoDBRiverHelper.setBulkStatus(client, definition.getRiverName(), status);
         }
-        return true;
     }
 
     private void dropRecreateMapping() throws IOException, InterruptedException {
@@ -294,6 +542,16 @@ public class MongoDBRiverBulkProcessor {
             statistics.put("documents.updated", updatedDocuments.get());
             statistics.put("documents.deleted", deletedDocuments.get());
             statistics.put("documents.total", documentCount.get());
+            statistics.put("stream.entries", river.context.getStream().size());
+            if (river.context.getStreamBytes() >= 0) {
+                statistics.put("stream.bytes", river.context.getStreamBytes());
+            }
+            if (river.context.getJournalBytes() >= 0) {
+                statistics.put("stream.journal_bytes", river.context.getJournalBytes());
+            }
+            if (definition.getBulk().isCoalesce()) {
+                statistics.put("operations.coalesced", river.context.getCoalescedOperations());
+            }
             source.put("statistics", statistics);
             client.prepareIndex(definition.getStatisticsIndexName(), definition.getStatisticsTypeName()).setSource(source).get();
         }
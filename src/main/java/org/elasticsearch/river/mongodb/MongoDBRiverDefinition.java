@@ -51,10 +51,27 @@ public class MongoDBRiverDefinition {
     public final static int DEFAULT_BULK_ACTIONS = 1000;
     public final static TimeValue DEFAULT_FLUSH_INTERVAL = TimeValue.timeValueMillis(10);
     public final static ByteSizeValue DEFAULT_BULK_SIZE = new ByteSizeValue(5, ByteSizeUnit.MB);
+    public final static TimeValue DEFAULT_BULK_TARGET_LATENCY = TimeValue.timeValueSeconds(1);
+    public final static int DEFAULT_BULK_MAX_RETRIES = 5;
+    public final static TimeValue DEFAULT_BULK_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+    public final static ByteSizeValue DEFAULT_JOURNAL_SEGMENT_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
     public final static int DEFAULT_CONNECT_TIMEOUT = 30000;
     public final static int DEFAULT_SOCKET_TIMEOUT = 60000;
     public final static int DEFAULT_CONNECTIONS_PER_HOST = 100;
     public final static int DEFAULT_THREADS_ALLOWED_TO_BLOCK_FOR_CONNECTION_MULTIPLIER = 5;
+    public final static int DEFAULT_UPDATE_BATCH_SIZE = 100;
+    public final static TimeValue DEFAULT_UPDATE_BATCH_INTERVAL = TimeValue.timeValueMillis(100);
+    public final static TimeValue DEFAULT_HEARTBEAT_INTERVAL = TimeValue.timeValueMillis(0);
+    public final static TimeValue DEFAULT_CHECKPOINT_INTERVAL = TimeValue.timeValueSeconds(1);
+    public final static int DEFAULT_CHECKPOINT_DOCUMENTS = 0;
+    public final static int DEFAULT_OPLOG_WORKERS = 1;
+    public final static int DEFAULT_INITIAL_IMPORT_PARTITIONS = 1;
+    public final static int DEFAULT_INITIAL_IMPORT_THREADS = 4;
+    public final static TimeValue DEFAULT_INITIAL_IMPORT_CHECKPOINT_INTERVAL = TimeValue.timeValueMinutes(1);
+    public final static int DEFAULT_INITIAL_IMPORT_COLLECTIONS = 1;
+    public final static int DEFAULT_BULK_LOAD_MAX_SEGMENTS = 0;
+    public final static int DEFAULT_INDEXER_WORKERS = 1;
+    public final static int DEFAULT_ADVANCED_TRANSFORMATION_BATCH_SIZE = 1;
 
     // fields
     public final static String DB_FIELD = "db";
@@ -83,6 +100,21 @@ public class MongoDBRiverDefinition {
     public final static String STORE_STATISTICS_FIELD = "store_statistics";
     public final static String IMPORT_ALL_COLLECTIONS_FIELD = "import_all_collections";
     public final static String DISABLE_INDEX_REFRESH_FIELD = "disable_index_refresh";
+    public final static String UPDATE_BATCH_SIZE_FIELD = "update_batch_size";
+    public final static String UPDATE_BATCH_INTERVAL_FIELD = "update_batch_interval";
+    public final static String HEARTBEAT_INTERVAL_FIELD = "heartbeat_interval";
+    public final static String CHECKPOINT_INTERVAL_FIELD = "checkpoint_interval";
+    public final static String CHECKPOINT_DOCUMENTS_FIELD = "checkpoint_documents";
+    public final static String APPLY_UPDATE_MODIFIERS_FIELD = "apply_update_modifiers";
+    public final static String OPLOG_WORKERS_FIELD = "oplog_workers";
+    public final static String INITIAL_IMPORT_PARTITIONS_FIELD = "initial_import_partitions";
+    public final static String INITIAL_IMPORT_THREADS_FIELD = "initial_import_threads";
+    public final static String INITIAL_IMPORT_CHECKPOINT_INTERVAL_FIELD = "initial_import_checkpoint_interval";
+    public final static String INITIAL_IMPORT_COLLECTIONS_FIELD = "initial_import_collections";
+    public final static String BULK_LOAD_FIELD = "bulk_load";
+    public final static String BULK_LOAD_MAX_SEGMENTS_FIELD = "bulk_load_max_segments";
+    public final static String INDEXER_WORKERS_FIELD = "indexer_workers";
+    public final static String ADVANCED_TRANSFORMATION_BATCH_SIZE_FIELD = "advanced_transformation_batch_size";
     public final static String FILTER_FIELD = "filter";
     public final static String CREDENTIALS_FIELD = "credentials";
     public final static String USER_FIELD = "user";
@@ -98,6 +130,11 @@ public class MongoDBRiverDefinition {
     public final static String LOCAL_DB_FIELD = "local";
     public final static String ADMIN_DB_FIELD = "admin";
     public final static String THROTTLE_SIZE_FIELD = "throttle_size";
+    public final static String THROTTLE_BYTES_FIELD = "throttle_bytes";
+    public final static String DEAD_LETTER_INDEX_FIELD = "dead_letter_index";
+    public final static String JOURNAL_PATH_FIELD = "journal_path";
+    public final static String JOURNAL_SEGMENT_SIZE_FIELD = "journal_segment_size";
+    public final static String JOURNAL_MAX_SIZE_FIELD = "journal_max_size";
     public final static String BULK_SIZE_FIELD = "bulk_size";
     public final static String BULK_TIMEOUT_FIELD = "bulk_timeout";
     public final static String CONCURRENT_BULK_REQUESTS_FIELD = "concurrent_bulk_requests";
@@ -107,6 +144,11 @@ public class MongoDBRiverDefinition {
     public final static String SIZE_FIELD = "size";
     public final static String CONCURRENT_REQUESTS_FIELD = "concurrent_requests";
     public final static String FLUSH_INTERVAL_FIELD = "flush_interval";
+    public final static String ADAPTIVE_FIELD = "adaptive";
+    public final static String TARGET_LATENCY_FIELD = "target_latency";
+    public final static String MAX_RETRIES_FIELD = "max_retries";
+    public final static String RETRY_BACKOFF_FIELD = "retry_backoff";
+    public final static String COALESCE_FIELD = "coalesce";
 
     // river
     private final String riverName;
@@ -151,10 +193,30 @@ public class MongoDBRiverDefinition {
     private final String statisticsTypeName;
     private final boolean importAllCollections;
     private final boolean disableIndexRefresh;
+    private final int updateBatchSize;
+    private final TimeValue updateBatchInterval;
+    private final TimeValue heartbeatInterval;
+    private final TimeValue checkpointInterval;
+    private final int checkpointDocuments;
+    private final boolean applyUpdateModifiers;
+    private final int oplogWorkers;
+    private final int initialImportPartitions;
+    private final int initialImportThreads;
+    private final TimeValue initialImportCheckpointInterval;
+    private final int initialImportCollections;
+    private final boolean bulkLoad;
+    private final int bulkLoadMaxSegments;
+    private final int indexerWorkers;
+    private final int advancedTransformationBatchSize;
     // index
     private final String indexName;
     private final String typeName;
     private final int throttleSize;
+    private final ByteSizeValue throttleBytes;
+    private final String deadLetterIndex;
+    private final String journalPath;
+    private final ByteSizeValue journalSegmentSize;
+    private final ByteSizeValue journalMaxSize;
 
     // bulk
     private final Bulk bulk;
@@ -202,11 +264,31 @@ public class MongoDBRiverDefinition {
         private String statisticsTypeName;
         private boolean importAllCollections;
         private boolean disableIndexRefresh;
+        private int updateBatchSize = DEFAULT_UPDATE_BATCH_SIZE;
+        private TimeValue updateBatchInterval = DEFAULT_UPDATE_BATCH_INTERVAL;
+        private TimeValue heartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+        private TimeValue checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+        private int checkpointDocuments = DEFAULT_CHECKPOINT_DOCUMENTS;
+        private boolean applyUpdateModifiers;
+        private int oplogWorkers = DEFAULT_OPLOG_WORKERS;
+        private int initialImportPartitions = DEFAULT_INITIAL_IMPORT_PARTITIONS;
+        private int initialImportThreads = DEFAULT_INITIAL_IMPORT_THREADS;
+        private TimeValue initialImportCheckpointInterval = DEFAULT_INITIAL_IMPORT_CHECKPOINT_INTERVAL;
+        private int initialImportCollections = DEFAULT_INITIAL_IMPORT_COLLECTIONS;
+        private boolean bulkLoad;
+        private int bulkLoadMaxSegments = DEFAULT_BULK_LOAD_MAX_SEGMENTS;
+        private int indexerWorkers = DEFAULT_INDEXER_WORKERS;
+        private int advancedTransformationBatchSize = DEFAULT_ADVANCED_TRANSFORMATION_BATCH_SIZE;
 
         // index
         private String indexName;
         private String typeName;
         private int throttleSize;
+        private ByteSizeValue throttleBytes;
+        private String deadLetterIndex;
+        private String journalPath;
+        private ByteSizeValue journalSegmentSize = DEFAULT_JOURNAL_SEGMENT_SIZE;
+        private ByteSizeValue journalMaxSize;
 
         private Bulk bulk;
         private int connectionsPerHost;
@@ -342,6 +424,81 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder updateBatchSize(int updateBatchSize) {
+            this.updateBatchSize = updateBatchSize;
+            return this;
+        }
+
+        public Builder updateBatchInterval(TimeValue updateBatchInterval) {
+            this.updateBatchInterval = updateBatchInterval;
+            return this;
+        }
+
+        public Builder heartbeatInterval(TimeValue heartbeatInterval) {
+            this.heartbeatInterval = heartbeatInterval;
+            return this;
+        }
+
+        public Builder checkpointInterval(TimeValue checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        public Builder checkpointDocuments(int checkpointDocuments) {
+            this.checkpointDocuments = checkpointDocuments;
+            return this;
+        }
+
+        public Builder applyUpdateModifiers(boolean applyUpdateModifiers) {
+            this.applyUpdateModifiers = applyUpdateModifiers;
+            return this;
+        }
+
+        public Builder oplogWorkers(int oplogWorkers) {
+            this.oplogWorkers = oplogWorkers;
+            return this;
+        }
+
+        public Builder initialImportPartitions(int initialImportPartitions) {
+            this.initialImportPartitions = initialImportPartitions;
+            return this;
+        }
+
+        public Builder initialImportThreads(int initialImportThreads) {
+            this.initialImportThreads = initialImportThreads;
+            return this;
+        }
+
+        public Builder initialImportCheckpointInterval(TimeValue initialImportCheckpointInterval) {
+            this.initialImportCheckpointInterval = initialImportCheckpointInterval;
+            return this;
+        }
+
+        public Builder initialImportCollections(int initialImportCollections) {
+            this.initialImportCollections = initialImportCollections;
+            return this;
+        }
+
+        public Builder bulkLoad(boolean bulkLoad) {
+            this.bulkLoad = bulkLoad;
+            return this;
+        }
+
+        public Builder bulkLoadMaxSegments(int bulkLoadMaxSegments) {
+            this.bulkLoadMaxSegments = bulkLoadMaxSegments;
+            return this;
+        }
+
+        public Builder indexerWorkers(int indexerWorkers) {
+            this.indexerWorkers = indexerWorkers;
+            return this;
+        }
+
+        public Builder advancedTransformationBatchSize(int advancedTransformationBatchSize) {
+            this.advancedTransformationBatchSize = advancedTransformationBatchSize;
+            return this;
+        }
+
         public Builder initialTimestamp(Binary initialTimestamp) {
             this.initialTimestamp = new Timestamp.GTID(initialTimestamp.getData(), null);
             return this;
@@ -412,6 +569,31 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder throttleBytes(ByteSizeValue throttleBytes) {
+            this.throttleBytes = throttleBytes;
+            return this;
+        }
+
+        public Builder deadLetterIndex(String deadLetterIndex) {
+            this.deadLetterIndex = deadLetterIndex;
+            return this;
+        }
+
+        public Builder journalPath(String journalPath) {
+            this.journalPath = journalPath;
+            return this;
+        }
+
+        public Builder journalSegmentSize(ByteSizeValue journalSegmentSize) {
+            this.journalSegmentSize = journalSegmentSize;
+            return this;
+        }
+
+        public Builder journalMaxSize(ByteSizeValue journalMaxSize) {
+            this.journalMaxSize = journalMaxSize;
+            return this;
+        }
+
         public Builder bulk(Bulk bulk) {
             this.bulk = bulk;
             return this;
@@ -438,6 +620,11 @@ public class MongoDBRiverDefinition {
         private final int bulkActions;
         private final ByteSizeValue bulkSize;
         private final TimeValue flushInterval;
+        private final boolean adaptive;
+        private final TimeValue targetLatency;
+        private final int maxRetries;
+        private final TimeValue retryBackoff;
+        private final boolean coalesce;
 
         static class Builder {
 
@@ -445,6 +632,11 @@ public class MongoDBRiverDefinition {
             private int bulkActions = DEFAULT_BULK_ACTIONS;
             private ByteSizeValue bulkSize = DEFAULT_BULK_SIZE;
             private TimeValue flushInterval = DEFAULT_FLUSH_INTERVAL;
+            private boolean adaptive = false;
+            private TimeValue targetLatency = DEFAULT_BULK_TARGET_LATENCY;
+            private int maxRetries = DEFAULT_BULK_MAX_RETRIES;
+            private TimeValue retryBackoff = DEFAULT_BULK_RETRY_BACKOFF;
+            private boolean coalesce = false;
 
             public Builder concurrentRequests(int concurrentRequests) {
                 this.concurrentRequests = concurrentRequests;
@@ -466,6 +658,31 @@ public class MongoDBRiverDefinition {
                 return this;
             }
 
+            public Builder adaptive(boolean adaptive) {
+                this.adaptive = adaptive;
+                return this;
+            }
+
+            public Builder targetLatency(TimeValue targetLatency) {
+                this.targetLatency = targetLatency;
+                return this;
+            }
+
+            public Builder maxRetries(int maxRetries) {
+                this.maxRetries = maxRetries;
+                return this;
+            }
+
+            public Builder retryBackoff(TimeValue retryBackoff) {
+                this.retryBackoff = retryBackoff;
+                return this;
+            }
+
+            public Builder coalesce(boolean coalesce) {
+                this.coalesce = coalesce;
+                return this;
+            }
+
             /**
              * Builds a new bulk processor.
              */
@@ -479,6 +696,11 @@ public class MongoDBRiverDefinition {
             this.bulkSize = builder.bulkSize;
             this.concurrentRequests = builder.concurrentRequests;
             this.flushInterval = builder.flushInterval;
+            this.adaptive = builder.adaptive;
+            this.targetLatency = builder.targetLatency;
+            this.maxRetries = builder.maxRetries;
+            this.retryBackoff = builder.retryBackoff;
+            this.coalesce = builder.coalesce;
         }
 
         public int getConcurrentRequests() {
@@ -497,6 +719,45 @@ public class MongoDBRiverDefinition {
             return flushInterval;
         }
 
+        /**
+         * @return {@code true} if bulk actions, bulk size and concurrent
+         *         requests are tuned at runtime, the settings being the upper
+         *         bounds
+         */
+        public boolean isAdaptive() {
+            return adaptive;
+        }
+
+        /**
+         * @return the bulk latency above which adaptive bulks are reduced
+         */
+        public TimeValue getTargetLatency() {
+            return targetLatency;
+        }
+
+        /**
+         * @return the number of times a bulk item rejected or timed out is
+         *         retried
+         */
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        /**
+         * @return the delay before the first retry, doubled on each retry
+         */
+        public TimeValue getRetryBackoff() {
+            return retryBackoff;
+        }
+
+        /**
+         * @return {@code true} if only the last operation on a document is
+         *         kept within a bulk window
+         */
+        public boolean isCoalesce() {
+            return coalesce;
+        }
+
     }
 
     @SuppressWarnings("unchecked")
@@ -627,6 +888,35 @@ public class MongoDBRiverDefinition {
                         false));
                 builder.disableIndexRefresh(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(DISABLE_INDEX_REFRESH_FIELD), false));
                 builder.includeCollection(XContentMapValues.nodeStringValue(mongoOptionsSettings.get(INCLUDE_COLLECTION_FIELD), ""));
+                builder.updateBatchSize(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(UPDATE_BATCH_SIZE_FIELD),
+                        DEFAULT_UPDATE_BATCH_SIZE));
+                builder.updateBatchInterval(XContentMapValues.nodeTimeValue(mongoOptionsSettings.get(UPDATE_BATCH_INTERVAL_FIELD),
+                        DEFAULT_UPDATE_BATCH_INTERVAL));
+                builder.heartbeatInterval(XContentMapValues.nodeTimeValue(mongoOptionsSettings.get(HEARTBEAT_INTERVAL_FIELD),
+                        DEFAULT_HEARTBEAT_INTERVAL));
+                builder.checkpointInterval(XContentMapValues.nodeTimeValue(mongoOptionsSettings.get(CHECKPOINT_INTERVAL_FIELD),
+                        DEFAULT_CHECKPOINT_INTERVAL));
+                builder.checkpointDocuments(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(CHECKPOINT_DOCUMENTS_FIELD),
+                        DEFAULT_CHECKPOINT_DOCUMENTS));
+                builder.applyUpdateModifiers(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(APPLY_UPDATE_MODIFIERS_FIELD),
+                        false));
+                builder.oplogWorkers(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(OPLOG_WORKERS_FIELD),
+                        DEFAULT_OPLOG_WORKERS));
+                builder.initialImportPartitions(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(INITIAL_IMPORT_PARTITIONS_FIELD),
+                        DEFAULT_INITIAL_IMPORT_PARTITIONS));
+                builder.initialImportThreads(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(INITIAL_IMPORT_THREADS_FIELD),
+                        DEFAULT_INITIAL_IMPORT_THREADS));
+                builder.initialImportCheckpointInterval(XContentMapValues.nodeTimeValue(
+                        mongoOptionsSettings.get(INITIAL_IMPORT_CHECKPOINT_INTERVAL_FIELD), DEFAULT_INITIAL_IMPORT_CHECKPOINT_INTERVAL));
+                builder.initialImportCollections(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(INITIAL_IMPORT_COLLECTIONS_FIELD),
+                        DEFAULT_INITIAL_IMPORT_COLLECTIONS));
+                builder.bulkLoad(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(BULK_LOAD_FIELD), false));
+                builder.bulkLoadMaxSegments(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(BULK_LOAD_MAX_SEGMENTS_FIELD),
+                        DEFAULT_BULK_LOAD_MAX_SEGMENTS));
+                builder.indexerWorkers(XContentMapValues.nodeIntegerValue(mongoOptionsSettings.get(INDEXER_WORKERS_FIELD),
+                        DEFAULT_INDEXER_WORKERS));
+                builder.advancedTransformationBatchSize(XContentMapValues.nodeIntegerValue(
+                        mongoOptionsSettings.get(ADVANCED_TRANSFORMATION_BATCH_SIZE_FIELD), DEFAULT_ADVANCED_TRANSFORMATION_BATCH_SIZE));
 
                 if (mongoOptionsSettings.containsKey(INCLUDE_FIELDS_FIELD)) {
                     Set<String> includeFields = new HashSet<String>();
@@ -789,6 +1079,13 @@ public class MongoDBRiverDefinition {
                 bulkBuilder.concurrentRequests(XContentMapValues.nodeIntegerValue(bulkSettings.get(CONCURRENT_REQUESTS_FIELD),
                         EsExecutors.boundedNumberOfProcessors(ImmutableSettings.EMPTY)));
                 bulkBuilder.flushInterval(XContentMapValues.nodeTimeValue(bulkSettings.get(FLUSH_INTERVAL_FIELD), DEFAULT_FLUSH_INTERVAL));
+                bulkBuilder.adaptive(XContentMapValues.nodeBooleanValue(bulkSettings.get(ADAPTIVE_FIELD), false));
+                bulkBuilder.targetLatency(XContentMapValues.nodeTimeValue(bulkSettings.get(TARGET_LATENCY_FIELD),
+                        DEFAULT_BULK_TARGET_LATENCY));
+                bulkBuilder.maxRetries(XContentMapValues.nodeIntegerValue(bulkSettings.get(MAX_RETRIES_FIELD), DEFAULT_BULK_MAX_RETRIES));
+                bulkBuilder.retryBackoff(XContentMapValues.nodeTimeValue(bulkSettings.get(RETRY_BACKOFF_FIELD),
+                        DEFAULT_BULK_RETRY_BACKOFF));
+                bulkBuilder.coalesce(XContentMapValues.nodeBooleanValue(bulkSettings.get(COALESCE_FIELD), false));
                 builder.throttleSize(XContentMapValues.nodeIntegerValue(indexSettings.get(THROTTLE_SIZE_FIELD), bulkActions * 5));
             } else {
                 int bulkActions = XContentMapValues.nodeIntegerValue(indexSettings.get(BULK_SIZE_FIELD), DEFAULT_BULK_ACTIONS);
@@ -800,6 +1097,18 @@ public class MongoDBRiverDefinition {
                 builder.throttleSize(XContentMapValues.nodeIntegerValue(indexSettings.get(THROTTLE_SIZE_FIELD), bulkActions * 5));
             }
             builder.bulk(bulkBuilder.build());
+            if (indexSettings.containsKey(THROTTLE_BYTES_FIELD)) {
+                builder.throttleBytes(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                        indexSettings.get(THROTTLE_BYTES_FIELD), null)));
+            }
+            builder.deadLetterIndex(XContentMapValues.nodeStringValue(indexSettings.get(DEAD_LETTER_INDEX_FIELD), null));
+            builder.journalPath(XContentMapValues.nodeStringValue(indexSettings.get(JOURNAL_PATH_FIELD), null));
+            builder.journalSegmentSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                    indexSettings.get(JOURNAL_SEGMENT_SIZE_FIELD), DEFAULT_JOURNAL_SEGMENT_SIZE.toString())));
+            if (indexSettings.containsKey(JOURNAL_MAX_SIZE_FIELD)) {
+                builder.journalMaxSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                        indexSettings.get(JOURNAL_MAX_SIZE_FIELD), null)));
+            }
         } else {
             builder.indexName(builder.mongoDb);
             builder.typeName(builder.mongoDb);
@@ -924,11 +1233,31 @@ public class MongoDBRiverDefinition {
         this.statisticsTypeName = builder.statisticsTypeName;
         this.importAllCollections = builder.importAllCollections;
         this.disableIndexRefresh = builder.disableIndexRefresh;
+        this.updateBatchSize = builder.updateBatchSize;
+        this.updateBatchInterval = builder.updateBatchInterval;
+        this.heartbeatInterval = builder.heartbeatInterval;
+        this.checkpointInterval = builder.checkpointInterval;
+        this.checkpointDocuments = builder.checkpointDocuments;
+        this.applyUpdateModifiers = builder.applyUpdateModifiers;
+        this.oplogWorkers = builder.oplogWorkers;
+        this.initialImportPartitions = builder.initialImportPartitions;
+        this.initialImportThreads = builder.initialImportThreads;
+        this.initialImportCheckpointInterval = builder.initialImportCheckpointInterval;
+        this.initialImportCollections = builder.initialImportCollections;
+        this.bulkLoad = builder.bulkLoad;
+        this.bulkLoadMaxSegments = builder.bulkLoadMaxSegments;
+        this.indexerWorkers = builder.indexerWorkers;
+        this.advancedTransformationBatchSize = builder.advancedTransformationBatchSize;
 
         // index
         this.indexName = builder.indexName;
         this.typeName = builder.typeName;
         this.throttleSize = builder.throttleSize;
+        this.throttleBytes = builder.throttleBytes;
+        this.deadLetterIndex = builder.deadLetterIndex;
+        this.journalPath = builder.journalPath;
+        this.journalSegmentSize = builder.journalSegmentSize;
+        this.journalMaxSize = builder.journalMaxSize;
 
         // bulk
         this.bulk = builder.bulk;
@@ -1078,6 +1407,120 @@ public class MongoDBRiverDefinition {
         return disableIndexRefresh;
     }
 
+    /*
+     * Maximum number of oplog updates re-fetched from MongoDB with a single
+     * $in query. A value of 1 or less fetches each update on its own.
+     */
+    public int getUpdateBatchSize() {
+        return updateBatchSize;
+    }
+
+    public TimeValue getUpdateBatchInterval() {
+        return updateBatchInterval;
+    }
+
+    /*
+     * Interval at which the oplog position reached by the slurpers is added
+     * to the stream while no entry is, 0 if it is not.
+     */
+    public TimeValue getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /*
+     * Interval at which the last timestamps of the river are saved, 0 to
+     * save them after each burst of the stream
+     */
+    public TimeValue getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /*
+     * Number of stream entries after which the last timestamps are saved
+     * before the interval has elapsed, 0 if they are only saved at the
+     * interval
+     */
+    public int getCheckpointDocuments() {
+        return checkpointDocuments;
+    }
+
+    /*
+     * Apply $set oplog updates as partial updates instead of re-fetching the
+     * document from MongoDB. Updates with $unset are still re-fetched, so the
+     * unset fields are removed from the indexed document.
+     */
+    public boolean isApplyUpdateModifiers() {
+        return applyUpdateModifiers;
+    }
+
+    /*
+     * Number of threads processing oplog entries of each shard. With 1 the
+     * oplog is processed by the slurper thread alone.
+     */
+    public int getOplogWorkers() {
+        return oplogWorkers;
+    }
+
+    /*
+     * Number of _id ranges the initial import of a collection is split into.
+     * With 1 the collection is read with a single cursor.
+     */
+    public int getInitialImportPartitions() {
+        return initialImportPartitions;
+    }
+
+    public int getInitialImportThreads() {
+        return initialImportThreads;
+    }
+
+    /*
+     * How often the progress of the initial import is saved in the river
+     * index. A zero or negative value disables checkpoints.
+     */
+    public TimeValue getInitialImportCheckpointInterval() {
+        return initialImportCheckpointInterval;
+    }
+
+    /*
+     * Number of collections imported at once with import_all_collections.
+     * The largest collections are imported first.
+     */
+    public int getInitialImportCollections() {
+        return initialImportCollections;
+    }
+
+    /*
+     * Drop replicas, disable refresh and relax translog flushes for the whole
+     * initial import. The original settings are restored once it is done.
+     */
+    public boolean isBulkLoad() {
+        return bulkLoad;
+    }
+
+    /*
+     * Number of segments the index is optimized to after a bulk load import.
+     * With 0 the index is not optimized.
+     */
+    public int getBulkLoadMaxSegments() {
+        return bulkLoadMaxSegments;
+    }
+
+    /*
+     * Number of threads processing the stream entries (scripts, bulk requests).
+     * Entries are routed by document id so the ones of a document stay ordered.
+     */
+    public int getIndexerWorkers() {
+        return indexerWorkers;
+    }
+
+    /*
+     * Maximum number of stream entries passed at once in ctx.documents to an
+     * advanced transformation script.
+     */
+    public int getAdvancedTransformationBatchSize() {
+        return advancedTransformationBatchSize;
+    }
+
     public String getIndexName() {
         return indexName;
     }
@@ -1093,6 +1536,42 @@ public class MongoDBRiverDefinition {
         return throttleSize;
     }
 
+    /**
+     * @return the estimated BSON size of the entries the stream holds at
+     *         most, or {@code null} if it is bounded by throttle size
+     */
+    public ByteSizeValue getThrottleBytes() {
+        return throttleBytes;
+    }
+
+    /**
+     * @return the index receiving the documents Elasticsearch failed to
+     *         index, or {@code null} if such failures stop the river
+     */
+    public String getDeadLetterIndex() {
+        return deadLetterIndex;
+    }
+
+    /**
+     * @return the directory of the journal the stream spills to when it is
+     *         full, or {@code null} if the slurpers block instead
+     */
+    public String getJournalPath() {
+        return journalPath;
+    }
+
+    public ByteSizeValue getJournalSegmentSize() {
+        return journalSegmentSize;
+    }
+
+    /**
+     * @return the size of the journal beyond which the slurpers block, or
+     *         {@code null} if it is only bounded by the disk
+     */
+    public ByteSizeValue getJournalMaxSize() {
+        return journalMaxSize;
+    }
+
     public String getMongoOplogNamespace() {
         return getMongoDb() + "." + getMongoCollection();
     }
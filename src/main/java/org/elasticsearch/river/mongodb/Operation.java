@@ -3,9 +3,15 @@ package org.elasticsearch.river.mongodb;
 public enum Operation {
     INSERT(MongoDBRiver.OPLOG_INSERT_OPERATION),
     UPDATE(MongoDBRiver.OPLOG_UPDATE_OPERATION),
+    /** Update applied as a merge of the modified fields */
+    PARTIAL_UPDATE("pu"),
     DELETE(MongoDBRiver.OPLOG_DELETE_OPERATION),
     DROP_COLLECTION("dc"),
     DROP_DATABASE("dd"),
+    /** Progress of the initial import, completed when it has a timestamp */
+    IMPORT_CHECKPOINT("ic"),
+    /** Oplog position reached while no entry of the river was found */
+    HEARTBEAT("hb"),
     COMMAND(MongoDBRiver.OPLOG_COMMAND_OPERATION),
     UNKNOWN(null);
 
@@ -0,0 +1,125 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+/**
+ * Keeps the last operation on each document of a bulk window.
+ *
+ * Inserts, updates and deletes replace the operations on the same index,
+ * type and id before them in the window. A delete following an insert is
+ * still sent, as a versioned delete: the window may be replayed from an older
+ * checkpoint after a restart, the insert being already indexed. Partial updates depend on the previous state of the
+ * document and are kept. Commands, drops and import checkpoints are barriers:
+ * operations are not coalesced across them. Documents of parent types are
+ * never coalesced, their deletes cascading to their children.
+ *
+ * Coalescing assumes the index, type and id of a document only depend on its
+ * collection and id, so it is not used with scripts.
+ */
+class OperationCoalescer {
+
+    /*
+     * Operations kept for a document, by position in the window.
+     */
+    private static class Pending {
+
+        // The document has been inserted in the window
+        private final boolean inserted;
+        private final List<Integer> positions = new ArrayList<Integer>(1);
+
+        Pending(boolean inserted) {
+            this.inserted = inserted;
+        }
+    }
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+    private final MongoDBRiverDefinition definition;
+    private final SharedContext context;
+
+    OperationCoalescer(MongoDBRiverDefinition definition, SharedContext context) {
+        this.definition = definition;
+        this.context = context;
+    }
+
+    /**
+     * @return the operations left once coalesced, in stream order
+     */
+    List<QueueEntry> coalesce(List<QueueEntry> entries) {
+        List<QueueEntry> window = new ArrayList<QueueEntry>(entries.size());
+        Map<List<String>, Pending> pending = new HashMap<List<String>, Pending>();
+        int coalesced = 0;
+        for (QueueEntry entry : entries) {
+            Operation operation = entry.getOperation();
+            if (isBarrier(operation)) {
+                pending.clear();
+                window.add(entry);
+                continue;
+            }
+            List<String> key = getKey(entry);
+            if (key == null) {
+                window.add(entry);
+                continue;
+            }
+            Pending operations = pending.get(key);
+            if (operations == null) {
+                operations = new Pending(operation == Operation.INSERT);
+                pending.put(key, operations);
+            } else if (operation != Operation.PARTIAL_UPDATE) {
+                for (int position : operations.positions) {
+                    window.set(position, null);
+                    coalesced++;
+                }
+                operations.positions.clear();
+                if (operation == Operation.UPDATE && operations.inserted) {
+                    entry = new QueueEntry(entry.getOplogTimestamp(), Operation.INSERT, entry.getData(), entry.getCollection(),
+                            entry.getShard());
+                }
+            }
+            operations.positions.add(window.size());
+            window.add(entry);
+        }
+        if (coalesced == 0) {
+            return entries;
+        }
+        logger.trace("Coalesced {} operations of {}", coalesced, entries.size());
+        context.addCoalescedOperations(coalesced);
+        List<QueueEntry> result = new ArrayList<QueueEntry>(entries.size() - coalesced);
+        for (QueueEntry entry : window) {
+            if (entry != null) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static boolean isBarrier(Operation operation) {
+        return operation != Operation.INSERT && operation != Operation.UPDATE && operation != Operation.PARTIAL_UPDATE
+                && operation != Operation.DELETE;
+    }
+
+    /*
+     * Type and id of the document, null if its operations are not coalesced
+     */
+    private List<String> getKey(QueueEntry entry) {
+        if (entry.isAttachment()) {
+            return null;
+        }
+        Object id = entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD);
+        if (id == null) {
+            return null;
+        }
+        String type = definition.isImportAllCollections() ? entry.getCollection() : definition.getTypeName();
+        if (definition.getParentTypes() != null && definition.getParentTypes().contains(type)) {
+            return null;
+        }
+        return Arrays.asList(type, id.toString());
+    }
+}
@@ -0,0 +1,174 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+
+import com.mongodb.MongoInterruptedException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+
+/**
+ * Processes oplog entries with several worker threads.
+ *
+ * Tasks are partitioned by document id, so the entries of a document are
+ * always processed in order by the same worker. The results are released to
+ * the stream in submission (oplog) order whatever the worker which produced
+ * them, so the indexer keeps seeing a consistent sequence of timestamps.
+ */
+class OplogPipeline<T> {
+
+    interface Processor<T> {
+
+        /**
+         * Process the tasks taken at once by a worker.
+         *
+         * @return the stream entries of each task, in the order of the tasks
+         */
+        List<List<QueueEntry>> process(List<T> tasks) throws Exception;
+    }
+
+    private static class SequencedTask<T> {
+
+        private final long sequence;
+        private final T task;
+
+        SequencedTask(long sequence, T task) {
+            this.sequence = sequence;
+            this.task = task;
+        }
+    }
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(OplogPipeline.class.getName());
+
+    static final int WORKER_QUEUE_SIZE = 1000;
+
+    private final SharedContext context;
+    private final Processor<T> processor;
+    private final int batchSize;
+    private final List<BlockingQueue<SequencedTask<T>>> queues;
+    private final List<Thread> workers;
+    // Results waiting for the ones of earlier tasks, guarded by itself
+    private final Map<Long, List<QueueEntry>> completed = new HashMap<Long, List<QueueEntry>>();
+    private long released;
+    // Only used by the submitting thread
+    private long submitted;
+    private volatile Throwable failure;
+
+    OplogPipeline(int workers, int batchSize, ThreadFactory threadFactory, SharedContext context, Processor<T> processor) {
+        this.context = context;
+        this.processor = processor;
+        this.batchSize = Math.max(batchSize, 1);
+        this.queues = new ArrayList<BlockingQueue<SequencedTask<T>>>(workers);
+        this.workers = new ArrayList<Thread>(workers);
+        for (int i = 0; i < workers; i++) {
+            final BlockingQueue<SequencedTask<T>> queue = new ArrayBlockingQueue<SequencedTask<T>>(WORKER_QUEUE_SIZE);
+            queues.add(queue);
+            this.workers.add(threadFactory.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    processQueue(queue);
+                }
+            }));
+        }
+    }
+
+    void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    void close() {
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Queue a task to the worker of the given document id. Blocks when that
+     * worker is too far behind.
+     */
+    void submit(Object id, T task) throws InterruptedException {
+        checkFailure();
+        int partition = (id.hashCode() & Integer.MAX_VALUE) % queues.size();
+        queues.get(partition).put(new SequencedTask<T>(submitted++, task));
+    }
+
+    /**
+     * Wait until the results of all the submitted tasks have been added to the
+     * stream.
+     */
+    void drain() throws InterruptedException {
+        synchronized (completed) {
+            while (released < submitted) {
+                checkFailure();
+                completed.wait(100);
+            }
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new IllegalStateException("Oplog worker failed", failure);
+        }
+    }
+
+    private void processQueue(BlockingQueue<SequencedTask<T>> queue) {
+        List<SequencedTask<T>> batch = new ArrayList<SequencedTask<T>>(batchSize);
+        List<T> tasks = new ArrayList<T>(batchSize);
+        try {
+            while (context.getStatus() == Status.RUNNING) {
+                batch.clear();
+                tasks.clear();
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                for (SequencedTask<T> item : batch) {
+                    tasks.add(item.task);
+                }
+                release(batch, process(tasks));
+            }
+        } catch (MongoInterruptedException | InterruptedException e) {
+            logger.debug("Oplog worker interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            logger.error("Oplog worker failed", t);
+            failure = t;
+        }
+    }
+
+    private List<List<QueueEntry>> process(List<T> tasks) throws Exception {
+        while (true) {
+            try {
+                return processor.process(tasks);
+            } catch (MongoSocketException | MongoTimeoutException e) {
+                logger.info("Oplog worker - {} - {}. Will retry.", e.getClass().getSimpleName(), e.getMessage());
+                Thread.sleep(MongoDBRiver.MONGODB_RETRY_ERROR_DELAY_MS);
+            }
+        }
+    }
+
+    private void release(List<SequencedTask<T>> batch, List<List<QueueEntry>> results) throws InterruptedException {
+        synchronized (completed) {
+            for (int i = 0; i < batch.size(); i++) {
+                completed.put(batch.get(i).sequence, results.get(i));
+            }
+            List<QueueEntry> entries;
+            while ((entries = completed.remove(released)) != null) {
+                for (QueueEntry entry : entries) {
+                    context.getStream().put(entry);
+                }
+                released++;
+            }
+            completed.notifyAll();
+        }
+    }
+}
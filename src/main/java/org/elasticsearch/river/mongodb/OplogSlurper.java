@@ -1,23 +1,42 @@
 package org.elasticsearch.river.mongodb;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
-import org.bson.BasicBSONObject;
+import org.bson.BSONCallback;
+import org.bson.BSONObject;
 import org.bson.types.ObjectId;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.collect.ImmutableList;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.Bytes;
 import com.mongodb.DB;
+import com.mongodb.DBCallback;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBDecoderFactory;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.LazyDBDecoder;
+import com.mongodb.LazyDBObject;
 import com.mongodb.MongoClient;
 import com.mongodb.MongoCursorNotFoundException;
 import com.mongodb.MongoInterruptedException;
@@ -40,16 +59,103 @@ class OplogSlurper implements Runnable {
         }
     }
 
+    /*
+     * Document operation handed over to the oplog workers.
+     */
+    private static class OplogTask {
+
+        private final Operation operation;
+        private final Timestamp<?> oplogTimestamp;
+        private final DBObject entry;
+        private final DBObject object;
+        private final String namespace;
+        private final String collection;
+        private final Object updateId;
+
+        OplogTask(Operation operation, Timestamp<?> oplogTimestamp, DBObject entry, DBObject object, String namespace,
+                String collection, Object updateId) {
+            this.operation = operation;
+            this.oplogTimestamp = oplogTimestamp;
+            this.entry = entry;
+            this.object = object;
+            this.namespace = namespace;
+            this.collection = collection;
+            this.updateId = updateId;
+        }
+    }
+
+    /*
+     * Counts the entries decoded by a cursor: the driver decodes each batch
+     * as soon as it is received.
+     */
+    private static class CountingDecoderFactory implements DBDecoderFactory {
+
+        private final DBDecoderFactory factory;
+        private final AtomicLong count = new AtomicLong();
+
+        CountingDecoderFactory(DBDecoderFactory factory) {
+            this.factory = factory;
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public DBDecoder create() {
+            final DBDecoder decoder = factory.create();
+            return new DBDecoder() {
+                @Override
+                public DBCallback getDBCallback(DBCollection collection) {
+                    return decoder.getDBCallback(collection);
+                }
+
+                @Override
+                public DBObject decode(byte[] bytes, DBCollection collection) {
+                    count.incrementAndGet();
+                    return decoder.decode(bytes, collection);
+                }
+
+                @Override
+                public DBObject decode(InputStream in, DBCollection collection) throws IOException {
+                    count.incrementAndGet();
+                    return decoder.decode(in, collection);
+                }
+
+                @Override
+                public BSONObject readObject(byte[] bytes) {
+                    return decoder.readObject(bytes);
+                }
+
+                @Override
+                public BSONObject readObject(InputStream in) throws IOException {
+                    return decoder.readObject(in);
+                }
+
+                @Override
+                public int decode(byte[] bytes, BSONCallback callback) {
+                    return decoder.decode(bytes, callback);
+                }
+
+                @Override
+                public int decode(InputStream in, BSONCallback callback) throws IOException {
+                    return decoder.decode(in, callback);
+                }
+            };
+        }
+    }
+
     private static final ESLogger logger = ESLoggerFactory.getLogger(OplogSlurper.class.getName());
+    private static final ImmutableList<String> OPLOG_OPERATIONS = ImmutableList.of(MongoDBRiver.OPLOG_DELETE_OPERATION,
+            MongoDBRiver.OPLOG_UPDATE_ROW_OPERATION, // from TokuMX
+            MongoDBRiver.OPLOG_UPDATE_OPERATION, MongoDBRiver.OPLOG_INSERT_OPERATION, MongoDBRiver.OPLOG_COMMAND_OPERATION);
 
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
+    private final String shard;
     private final BasicDBObject findKeys;
     private final String gridfsOplogNamespace;
     private final String cmdOplogNamespace;
-    private final ImmutableList<String> oplogOperations = ImmutableList.of(MongoDBRiver.OPLOG_DELETE_OPERATION,
-            MongoDBRiver.OPLOG_UPDATE_ROW_OPERATION, // from TokuMX
-            MongoDBRiver.OPLOG_UPDATE_OPERATION, MongoDBRiver.OPLOG_INSERT_OPERATION, MongoDBRiver.OPLOG_COMMAND_OPERATION);
     private final Client esClient;
     private final MongoClient mongoClusterClient;
     private final MongoClient mongoShardClient;
@@ -58,8 +164,20 @@ class OplogSlurper implements Runnable {
     private final DB oplogDb;
     private final DBCollection oplogCollection, oplogRefsCollection;
     private final AtomicLong totalDocuments = new AtomicLong();
+    private final DBDecoder oplogEntryDecoder = DefaultDBDecoder.FACTORY.create();
+    private final ByteArrayOutputStream oplogEntryBuffer = new ByteArrayOutputStream();
+    private final PendingUpdates pendingUpdates;
+    // Counts the entries received by the current oplog cursor
+    private CountingDecoderFactory cursorDecoderFactory;
+    private final OplogPipeline<OplogTask> pipeline;
+    // Set while an oplog worker processes its tasks
+    private final ThreadLocal<List<QueueEntry>> workerOutput = new ThreadLocal<List<QueueEntry>>();
+    // Timestamp of the last entry read from the cursor, only kept for heartbeats
+    private Timestamp<?> scannedTimestamp;
+    private final Heartbeats heartbeats;
 
-    public OplogSlurper(Timestamp<?> timestamp, MongoClient mongoClusterClient, MongoClient mongoShardClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient) {
+    public OplogSlurper(String shard, Timestamp<?> timestamp, MongoClient mongoClusterClient, MongoClient mongoShardClient, MongoDBRiverDefinition definition, SharedContext context, Client esClient) {
+        this.shard = shard;
         this.timestamp = timestamp;
         this.definition = definition;
         this.context = context;
@@ -82,20 +200,139 @@ class OplogSlurper implements Runnable {
         this.oplogCollection = oplogDb.getCollection(MongoDBRiver.OPLOG_COLLECTION);
         this.oplogRefsCollection = oplogDb.getCollection(MongoDBRiver.OPLOG_REFS_COLLECTION);
         this.slurpedDb = mongoShardClient.getDB(definition.getMongoDb());
+        this.pendingUpdates = new PendingUpdates(definition.getUpdateBatchSize(), definition.getUpdateBatchInterval().millis(),
+                new PendingUpdates.Documents() {
+                    @Override
+                    public Map<String, Map<Object, DBObject>> find(Map<String, List<Object>> idsByCollection) {
+                        return findDocuments(idsByCollection);
+                    }
+
+                    @Override
+                    public void add(Timestamp<?> oplogTimestamp, DBObject document, String collection) throws InterruptedException {
+                        addToStream(Operation.UPDATE, oplogTimestamp, document, collection);
+                    }
+                });
+        this.heartbeats = new Heartbeats(new Heartbeats.Oplog() {
+            @Override
+            public Timestamp<?> getCurrentOplogTimestamp() {
+                return OplogSlurper.this.getCurrentOplogTimestamp();
+            }
+
+            @Override
+            public boolean hasOplogEntries(Timestamp<?> after) {
+                return OplogSlurper.this.hasOplogEntries(after);
+            }
+
+            @Override
+            public void add(Timestamp<?> heartbeat) throws InterruptedException {
+                logger.trace("Heartbeat of shard {} at {}", shard, heartbeat);
+                context.getStream().put(new QueueEntry(heartbeat, Operation.HEARTBEAT, new BasicDBObject(), null, shard));
+            }
+        });
+        if (definition.getOplogWorkers() > 1) {
+            this.pipeline = new OplogPipeline<OplogTask>(definition.getOplogWorkers(), definition.getUpdateBatchSize(),
+                    EsExecutors.daemonThreadFactory("mongodb_river_oplog_worker:" + definition.getIndexName()), context,
+                    new OplogPipeline.Processor<OplogTask>() {
+                        @Override
+                        public List<List<QueueEntry>> process(List<OplogTask> tasks) throws Exception {
+                            return processOplogTasks(tasks);
+                        }
+                    });
+        } else {
+            this.pipeline = null;
+        }
     }
 
     @Override
     public void run() {
+        if (pipeline != null) {
+            pipeline.start();
+        }
+        ScheduledExecutorService heartbeatTimer = null;
+        if (isHeartbeat()) {
+            heartbeatTimer = Executors.newSingleThreadScheduledExecutor(EsExecutors.daemonThreadFactory("mongodb_river_heartbeat_" + shard
+                    + ":" + definition.getIndexName()));
+            long interval = definition.getHeartbeatInterval().millis();
+            heartbeatTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    heartbeat();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        try {
+            slurp();
+        } finally {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+            if (heartbeatTimer != null) {
+                heartbeatTimer.shutdownNow();
+            }
+        }
+    }
+
+    private boolean isHeartbeat() {
+        return definition.getHeartbeatInterval().millis() > 0;
+    }
+
+    /*
+     * Add the end of the oplog to the stream while the slurper waits for
+     * entries, see Heartbeats.
+     */
+    private void heartbeat() {
+        try {
+            heartbeats.heartbeat();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            logger.debug("Heartbeat of shard {} failed", e, shard);
+        }
+    }
+
+    /*
+     * Check for entries of the river after the given timestamp
+     */
+    private boolean hasOplogEntries(Timestamp<?> after) {
+        try (DBCursor cursor = oplogCollection.find(getOplogQuery(after.getOplogFilter(false)))
+                .setOptions(Bytes.QUERYOPTION_OPLOGREPLAY).limit(1)) {
+            return cursor.hasNext();
+        }
+    }
+
+    /*
+     * Wait for the next entry of the cursor. Before waiting, the entries
+     * already read are added to the stream so heartbeats can follow them.
+     */
+    private boolean hasNext(DBCursor cursor) throws InterruptedException {
+        if (!isHeartbeat() || hasBufferedEntries(cursor)) {
+            return cursor.hasNext();
+        }
+        timestamp = flushPendingUpdates(timestamp);
+        if (pipeline != null) {
+            pipeline.drain();
+        }
+        heartbeats.idle(scannedTimestamp != null ? scannedTimestamp : timestamp);
+        try {
+            return cursor.hasNext();
+        } finally {
+            heartbeats.busy();
+        }
+    }
+
+    private void slurp() {
         while (context.getStatus() == Status.RUNNING) {
             try {        
                 // Slurp from oplog
                 DBCursor cursor = null;
                 try {
+                    pendingUpdates.clear();
                     cursor = oplogCursor(timestamp);
                     if (cursor == null) {
                         cursor = processFullOplog();
                     }
-                    while (cursor.hasNext()) {
+                    scannedTimestamp = null;
+                    while (hasNext(cursor)) {
                         DBObject item = cursor.next();
                         // TokuMX secondaries can have ops in the oplog that
                         // have not yet been applied
@@ -107,7 +344,16 @@ class OplogSlurper implements Runnable {
                             break;
                         }
                         timestamp = processOplogEntry(item, timestamp);
+                        if (isHeartbeat()) {
+                            scannedTimestamp = Timestamp.on(item);
+                        }
+                        // Do not keep updates waiting while the tailable
+                        // cursor blocks for new entries
+                        if (!pendingUpdates.isEmpty() && !hasBufferedEntries(cursor)) {
+                            timestamp = flushPendingUpdates(timestamp);
+                        }
                     }
+                    timestamp = flushPendingUpdates(timestamp);
                     logger.debug("Before waiting for 500 ms");
                     Thread.sleep(500);
                 } finally {
@@ -157,23 +403,35 @@ class OplogSlurper implements Runnable {
         }
     }
 
+    /*
+     * Check whether the driver still holds oplog entries already returned by
+     * the server. Once they are consumed, the next call to hasNext() may
+     * block on the tailable cursor.
+     */
+    private boolean hasBufferedEntries(DBCursor cursor) {
+        return cursorDecoderFactory.getCount() > cursor.numSeen();
+    }
+
     private DBCursor processFullOplog() throws InterruptedException, SlurperException {
         Timestamp<?> currentTimestamp = getCurrentOplogTimestamp();
         return oplogCursor(currentTimestamp);
     }
 
-    private Timestamp<?> processOplogEntry(final DBObject entry, final Timestamp<?> startTimestamp) throws InterruptedException {
+    private Timestamp<?> processOplogEntry(final DBObject oplogEntry, final Timestamp<?> startTimestamp) throws InterruptedException {
         // To support transactions, TokuMX wraps one or more operations in a
         // single oplog entry, in a list.
         // As long as clients are not transaction-aware, we can pretty safely
         // assume there will only be one operation in the list.
         // Supporting genuine multi-operation transactions will require a bit
         // more logic here.
-        flattenOps(entry);
+        if (!(oplogEntry instanceof LazyDBObject)) {
+            flattenOps(oplogEntry);
+        }
 
-        if (!isValidOplogEntry(entry, startTimestamp)) {
+        if (!isValidOplogEntry(oplogEntry, startTimestamp)) {
             return startTimestamp;
         }
+        DBObject entry = decodeOplogEntry(oplogEntry);
         Operation operation = Operation.fromString(entry.get(MongoDBRiver.OPLOG_OPERATION).toString());
         String namespace = entry.get(MongoDBRiver.OPLOG_NAMESPACE).toString();
         String collection = null;
@@ -188,13 +446,49 @@ class OplogSlurper implements Runnable {
             collection = definition.getMongoCollection();
         }
 
+        if (operation == Operation.UPDATE && isPartialUpdate(entry)) {
+            DBObject document = MongoDBHelper.toPartialDocument(object);
+            if (document != null) {
+                Object id = ((DBObject) entry.get(MongoDBRiver.OPLOG_UPDATE)).get(MongoDBRiver.MONGODB_ID_FIELD);
+                document.put(MongoDBRiver.MONGODB_ID_FIELD, id);
+                logger.trace("Apply update modifiers of item [{}]: {}", id, document);
+                operation = Operation.PARTIAL_UPDATE;
+                object = document;
+            }
+        }
+
+        if (pipeline != null) {
+            String objectId = getObjectIdFromOplogEntry(entry);
+            if (objectId != null && !namespace.equals(cmdOplogNamespace) && !namespace.equals(MongoDBRiver.OPLOG_ADMIN_COMMAND)
+                    && (operation == Operation.INSERT || operation == Operation.UPDATE || operation == Operation.PARTIAL_UPDATE
+                            || operation == Operation.DELETE)) {
+                Object updateId = null;
+                if (operation == Operation.UPDATE && isBatchableUpdate(entry, collection)) {
+                    updateId = ((DBObject) entry.get(MongoDBRiver.OPLOG_UPDATE)).get(MongoDBRiver.MONGODB_ID_FIELD);
+                }
+                pipeline.submit(objectId, new OplogTask(operation, oplogTimestamp, entry, object, namespace, collection, updateId));
+                return oplogTimestamp;
+            }
+            // Commands are processed once the previous entries are in the
+            // stream
+            pipeline.drain();
+        }
+
+        if (operation == Operation.UPDATE && isBatchableUpdate(entry, collection)) {
+            Object id = ((DBObject) entry.get(MongoDBRiver.OPLOG_UPDATE)).get(MongoDBRiver.MONGODB_ID_FIELD);
+            logger.trace("Defer re-fetch of updated item [{}] in collection [{}]", id, collection);
+            return addPendingUpdate(oplogTimestamp, id, collection, startTimestamp);
+        }
+        // Keep the stream in oplog order
+        Timestamp<?> lastTimestamp = flushPendingUpdates(startTimestamp);
+
         if (namespace.equals(cmdOplogNamespace)) {
             if (object.containsField(MongoDBRiver.OPLOG_DROP_COMMAND_OPERATION)) {
                 operation = Operation.DROP_COLLECTION;
                 if (definition.isImportAllCollections()) {
                     collection = object.get(MongoDBRiver.OPLOG_DROP_COMMAND_OPERATION).toString();
                     if (collection.startsWith("tmp.mr.")) {
-                        return startTimestamp;
+                        return lastTimestamp;
                     }
                 }
             }
@@ -206,8 +500,8 @@ class OplogSlurper implements Runnable {
         logger.trace("namespace: {} - operation: {}", namespace, operation);
         if (namespace.equals(MongoDBRiver.OPLOG_ADMIN_COMMAND)) {
             if (operation == Operation.COMMAND) {
-                processAdminCommandOplogEntry(entry, startTimestamp);
-                return startTimestamp;
+                processAdminCommandOplogEntry(entry, lastTimestamp);
+                return lastTimestamp;
             }
         }
 
@@ -225,6 +519,46 @@ class OplogSlurper implements Runnable {
             }
         }
 
+        processDocument(operation, oplogTimestamp, entry, object, namespace, collection);
+        return oplogTimestamp;
+    }
+
+    /*
+     * Process the tasks taken by an oplog worker. Batchable updates are
+     * re-fetched with one query per collection.
+     */
+    private List<List<QueueEntry>> processOplogTasks(List<OplogTask> tasks) throws InterruptedException {
+        Map<String, List<Object>> idsByCollection = new LinkedHashMap<String, List<Object>>();
+        for (OplogTask task : tasks) {
+            if (task.updateId != null) {
+                PendingUpdates.addId(idsByCollection, task.collection, task.updateId);
+            }
+        }
+        Map<String, Map<Object, DBObject>> documents = findDocuments(idsByCollection);
+
+        List<List<QueueEntry>> results = new ArrayList<List<QueueEntry>>(tasks.size());
+        for (OplogTask task : tasks) {
+            List<QueueEntry> output = new ArrayList<QueueEntry>(1);
+            workerOutput.set(output);
+            try {
+                if (task.updateId != null) {
+                    DBObject item = documents.get(task.collection).get(task.updateId);
+                    if (item != null) {
+                        addToStream(Operation.UPDATE, task.oplogTimestamp, item, task.collection);
+                    }
+                } else {
+                    processDocument(task.operation, task.oplogTimestamp, task.entry, task.object, task.namespace, task.collection);
+                }
+            } finally {
+                workerOutput.remove();
+            }
+            results.add(output);
+        }
+        return results;
+    }
+
+    private void processDocument(Operation operation, final Timestamp<?> oplogTimestamp, final DBObject entry, DBObject object,
+            final String namespace, final String collection) throws InterruptedException {
         String objectId = getObjectIdFromOplogEntry(entry);
         if (operation == Operation.DELETE) {
             // Include only _id in data, as vanilla MongoDB does, so
@@ -274,7 +608,6 @@ class OplogSlurper implements Runnable {
                 }
             }
         }
-        return oplogTimestamp;
     }
 
     @SuppressWarnings("unchecked")
@@ -346,7 +679,7 @@ class OplogSlurper implements Runnable {
         // Initial support for sharded collection -
         // https://jira.mongodb.org/browse/SERVER-4333
         // Not interested in operation from migration or sharding
-        if (entry.containsField(MongoDBRiver.OPLOG_FROM_MIGRATE) && ((BasicBSONObject) entry).getBoolean(MongoDBRiver.OPLOG_FROM_MIGRATE)) {
+        if (Boolean.TRUE.equals(entry.get(MongoDBRiver.OPLOG_FROM_MIGRATE))) {
             logger.trace("[Invalid Oplog Entry] - from migration or sharding operation. Can be ignored. {}", JSONSerializers.getStrict().serialize(entry));
             return false;
         }
@@ -391,7 +724,7 @@ class OplogSlurper implements Runnable {
             return false;
         }
         String operation = (String) entry.get(MongoDBRiver.OPLOG_OPERATION);
-        if (!oplogOperations.contains(operation)) {
+        if (!OPLOG_OPERATIONS.contains(operation)) {
             logger.trace("[Invalid Oplog Entry] - operation [{}] is not valid", operation);
             return false;
         }
@@ -454,39 +787,115 @@ class OplogSlurper implements Runnable {
     }
 
     private DBCursor oplogCursor(final Timestamp<?> time) throws SlurperException {
-        DBObject indexFilter = time.getOplogFilter();
-        if (indexFilter == null) {
+        if (time == null || time.getOplogFilter() == null) {
             return null;
         }
 
+        // The entry of the last timestamp has already been processed
+        boolean inclusive = !isStartEntryPresent(time);
+        DBObject indexFilter = time.getOplogFilter(inclusive);
+
         int options = Bytes.QUERYOPTION_TAILABLE | Bytes.QUERYOPTION_AWAITDATA | Bytes.QUERYOPTION_NOTIMEOUT
         // Using OPLOGREPLAY to improve performance:
         // https://jira.mongodb.org/browse/JAVA-771
                 | Bytes.QUERYOPTION_OPLOGREPLAY;
 
-        DBCursor cursor = oplogCollection.find(indexFilter).setOptions(options);
+        DBCursor cursor = oplogCollection.find(getOplogQuery(indexFilter)).setOptions(options);
 
         // Toku sometimes gets stuck without this hint:
         if (indexFilter.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
             cursor = cursor.hint("_id_");
+            cursorDecoderFactory = new CountingDecoderFactory(DefaultDBDecoder.FACTORY);
+        } else {
+            // Entries are validated before their payload is decoded (TokuMX
+            // entries are rewritten by flattenOps and stay fully decoded)
+            cursorDecoderFactory = new CountingDecoderFactory(LazyDBDecoder.FACTORY);
         }
-        isRiverStale(cursor, time);
+        cursor.setDecoderFactory(cursorDecoderFactory);
         return cursor;
     }
 
-    private void isRiverStale(DBCursor cursor, Timestamp<?> time) throws SlurperException {
-        if (cursor == null || time == null) {
-            return;
+    /*
+     * Fully decode an oplog entry read from the lazy cursor into a mutable
+     * object.
+     */
+    private DBObject decodeOplogEntry(DBObject entry) {
+        if (!(entry instanceof LazyDBObject)) {
+            return entry;
+        }
+        oplogEntryBuffer.reset();
+        try {
+            ((LazyDBObject) entry).pipe(oplogEntryBuffer);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot decode oplog entry", e);
         }
+        return oplogEntryDecoder.decode(oplogEntryBuffer.toByteArray(), oplogCollection);
+    }
+
+    /*
+     * Add namespace, operation and migration criteria to the oplog query so
+     * unrelated entries are dropped by the server. isValidOplogEntry is still
+     * applied on the client. TokuMX entries wrap their operations in "ops" (or
+     * in oplog.refs) so only the timestamp can be filtered there.
+     */
+    private DBObject getOplogQuery(DBObject indexFilter) {
+        return getOplogQuery(definition, indexFilter);
+    }
+
+    static DBObject getOplogQuery(MongoDBRiverDefinition definition, DBObject indexFilter) {
+        BasicDBObject query = new BasicDBObject(indexFilter.toMap());
+        if (indexFilter.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
+            return query;
+        }
+        if (definition.isMongoGridFS()) {
+            query.put(MongoDBRiver.OPLOG_NAMESPACE, definition.getMongoOplogNamespace() + MongoDBRiver.GRIDFS_FILES_SUFFIX);
+        } else if (definition.isImportAllCollections()) {
+            // Skip temp collections generated by map / reduce and GridFS
+            // chunks
+            Pattern namespaces = Pattern.compile("^" + Pattern.quote(definition.getMongoDb() + ".") + "(?!tmp\\.mr)(?!.*"
+                    + Pattern.quote(MongoDBRiver.GRIDFS_CHUNKS_SUFFIX) + "$)");
+            query.put(QueryOperators.OR, new BasicDBObject[] { new BasicDBObject(MongoDBRiver.OPLOG_NAMESPACE, namespaces),
+                    new BasicDBObject(MongoDBRiver.OPLOG_NAMESPACE, MongoDBRiver.OPLOG_ADMIN_COMMAND) });
+        } else {
+            query.put(MongoDBRiver.OPLOG_NAMESPACE, new BasicDBObject(QueryOperators.IN, new String[] {
+                    definition.getMongoOplogNamespace(), definition.getMongoDb() + "." + MongoDBRiver.OPLOG_NAMESPACE_COMMAND,
+                    MongoDBRiver.OPLOG_ADMIN_COMMAND }));
+        }
+        query.put(MongoDBRiver.OPLOG_OPERATION, new BasicDBObject(QueryOperators.IN, OPLOG_OPERATIONS));
+        query.put(MongoDBRiver.OPLOG_FROM_MIGRATE, new BasicDBObject(QueryOperators.NE, true));
+        return query;
+    }
+
+    /**
+     * Check that the oplog still holds the entry of the timestamp the river
+     * starts from.
+     *
+     * @return {@code true} if the entry was found, {@code false} if the check
+     *         does not apply: the river starts from its initial timestamp
+     * @throws SlurperException
+     *             if the entry is gone, the river being stale
+     */
+    private boolean isStartEntryPresent(Timestamp<?> time) throws SlurperException {
         if (definition.getInitialTimestamp() != null && time.equals(definition.getInitialTimestamp())) {
-            return;
+            return false;
         }
-        DBObject entry = cursor.next();
-        Timestamp<?> oplogTimestamp = Timestamp.on(entry);
-        if (!time.equals(oplogTimestamp)) {
-            MongoDBRiverHelper.setRiverStatus(esClient, definition.getRiverName(), Status.RIVER_STALE);
-            throw new SlurperException("River out of sync with oplog.rs collection");
+        DBObject indexFilter = time.getOplogFilter();
+        DBCursor cursor = oplogCollection.find(indexFilter).limit(1);
+        if (indexFilter.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
+            cursor = cursor.hint("_id_");
+        } else {
+            cursor = cursor.addOption(Bytes.QUERYOPTION_OPLOGREPLAY);
+        }
+        try {
+            Timestamp<?> oplogTimestamp = cursor.hasNext() ? Timestamp.on(cursor.next()) : null;
+            if (!time.equals(oplogTimestamp)) {
+                MongoDBRiverHelper.setRiverStatus(esClient, definition.getRiverName(), Status.RIVER_STALE);
+                throw new SlurperException("River out of sync with oplog.rs collection");
+            }
+        } finally {
+            cursor.close();
         }
+        return true;
     }
 
     private void addQueryToStream(final Operation operation, final Timestamp<?> currentTimestamp, final DBObject update,
@@ -515,6 +924,63 @@ class OplogSlurper implements Runnable {
         }
     }
 
+    /*
+     * Modifiers can be applied without reading the document again only when
+     * nothing else needs the full document: no script, no GridFS and no
+     * parent / child relationship.
+     */
+    private boolean isPartialUpdate(final DBObject entry) {
+        if (!definition.isApplyUpdateModifiers() || definition.isMongoGridFS() || definition.getParentTypes() != null
+                || (definition.getScriptType() != null && definition.getScript() != null)) {
+            return false;
+        }
+        Object update = entry.get(MongoDBRiver.OPLOG_UPDATE);
+        return update instanceof DBObject && ((DBObject) update).containsField(MongoDBRiver.MONGODB_ID_FIELD);
+    }
+
+    /*
+     * Updates are batched only when the document can be re-fetched by _id
+     * alone: o2 holds nothing but the _id and the target collection is known.
+     */
+    private boolean isBatchableUpdate(final DBObject entry, final String collection) {
+        if (definition.getUpdateBatchSize() <= 1 || definition.isMongoGridFS() || collection == null) {
+            return false;
+        }
+        Object update = entry.get(MongoDBRiver.OPLOG_UPDATE);
+        if (!(update instanceof DBObject)) {
+            return false;
+        }
+        DBObject query = (DBObject) update;
+        return query.keySet().size() == 1 && query.containsField(MongoDBRiver.MONGODB_ID_FIELD);
+    }
+
+    private Timestamp<?> addPendingUpdate(final Timestamp<?> oplogTimestamp, final Object id, final String collection,
+            final Timestamp<?> startTimestamp) throws InterruptedException {
+        return pendingUpdates.add(oplogTimestamp, id, collection, startTimestamp, System.currentTimeMillis());
+    }
+
+    private Timestamp<?> flushPendingUpdates(final Timestamp<?> currentTimestamp) throws InterruptedException {
+        return pendingUpdates.flush(currentTimestamp);
+    }
+
+    /*
+     * Fetch documents with one $in query per collection
+     */
+    private Map<String, Map<Object, DBObject>> findDocuments(Map<String, List<Object>> idsByCollection) {
+        Map<String, Map<Object, DBObject>> documents = new LinkedHashMap<String, Map<Object, DBObject>>();
+        for (Map.Entry<String, List<Object>> ids : idsByCollection.entrySet()) {
+            Map<Object, DBObject> items = new LinkedHashMap<Object, DBObject>();
+            DBObject query = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.IN, ids.getValue()));
+            try (DBCursor cursor = slurpedDb.getCollection(ids.getKey()).find(query, findKeys)) {
+                for (DBObject item : cursor) {
+                    items.put(item.get(MongoDBRiver.MONGODB_ID_FIELD), item);
+                }
+            }
+            documents.put(ids.getKey(), items);
+        }
+        return documents;
+    }
+
     private String addInsertToStream(final Timestamp<?> currentTimestamp, final DBObject data, final String collection)
             throws InterruptedException {
         totalDocuments.incrementAndGet();
@@ -546,13 +1012,26 @@ class OplogSlurper implements Runnable {
                 for (String name : slurpedDb.getCollectionNames()) {
                     logger.info("addToStream - isImportAllCollections - Operation.DROP_DATABASE, currentTimestamp [{}], data [{}], collection [{}]",
                             currentTimestamp, data, name);
-                    context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, name));
+                    putToStream(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, name, shard));
                 }
             } else {
-                context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, collection));
+                putToStream(new MongoDBRiver.QueueEntry(currentTimestamp, Operation.DROP_COLLECTION, data, collection, shard));
             }
         } else {
-            context.getStream().put(new MongoDBRiver.QueueEntry(currentTimestamp, operation, data, collection));
+            putToStream(new MongoDBRiver.QueueEntry(currentTimestamp, operation, data, collection, shard));
+        }
+    }
+
+    /*
+     * Oplog workers collect their entries, they are added to the stream in
+     * oplog order by the pipeline.
+     */
+    private void putToStream(QueueEntry entry) throws InterruptedException {
+        List<QueueEntry> output = workerOutput.get();
+        if (output != null) {
+            output.add(entry);
+        } else {
+            context.getStream().put(entry);
         }
     }
 
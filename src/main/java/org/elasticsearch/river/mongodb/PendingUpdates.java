@@ -0,0 +1,143 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import com.mongodb.DBObject;
+
+/**
+ * Update entries of the oplog waiting for their documents to be re-fetched
+ * as part of a batch.
+ *
+ * The documents are re-fetched with one $in query per collection once the
+ * batch is full or the oldest update has waited for the batch interval, and
+ * added to the stream in oplog order.
+ */
+class PendingUpdates {
+
+    /**
+     * Source of the re-fetched documents and destination of the updates.
+     */
+    interface Documents {
+
+        /**
+         * @return the documents found, by collection and id
+         */
+        Map<String, Map<Object, DBObject>> find(Map<String, List<Object>> idsByCollection);
+
+        void add(Timestamp<?> oplogTimestamp, DBObject document, String collection) throws InterruptedException;
+    }
+
+    /*
+     * Update entry waiting for its document.
+     */
+    private static class PendingUpdate {
+
+        private final Timestamp<?> oplogTimestamp;
+        private final Object id;
+        private final String collection;
+
+        PendingUpdate(Timestamp<?> oplogTimestamp, Object id, String collection) {
+            this.oplogTimestamp = oplogTimestamp;
+            this.id = id;
+            this.collection = collection;
+        }
+    }
+
+    private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
+    private final int batchSize;
+    private final long interval;
+    private final Documents documents;
+    private final List<PendingUpdate> updates = new ArrayList<PendingUpdate>();
+    private long since;
+
+    PendingUpdates(int batchSize, long interval, Documents documents) {
+        this.batchSize = batchSize;
+        this.interval = interval;
+        this.documents = documents;
+    }
+
+    boolean isEmpty() {
+        return updates.isEmpty();
+    }
+
+    int size() {
+        return updates.size();
+    }
+
+    /**
+     * Drop the pending updates, their entries being read again from the
+     * oplog.
+     */
+    void clear() {
+        updates.clear();
+    }
+
+    /**
+     * Add an update, flushing the batch if it is full or has waited long
+     * enough.
+     *
+     * @return the timestamp of the last update flushed or
+     *         {@code currentTimestamp} if the batch was not flushed
+     */
+    Timestamp<?> add(Timestamp<?> oplogTimestamp, Object id, String collection, Timestamp<?> currentTimestamp, long now)
+            throws InterruptedException {
+        if (updates.isEmpty()) {
+            since = now;
+        }
+        updates.add(new PendingUpdate(oplogTimestamp, id, collection));
+        if (updates.size() >= batchSize || now - since >= interval) {
+            return flush(currentTimestamp);
+        }
+        return currentTimestamp;
+    }
+
+    /**
+     * Re-fetch the documents of the pending updates with one $in query per
+     * collection and add them in oplog order. Documents deleted since are
+     * skipped.
+     *
+     * @return the timestamp of the last pending update or
+     *         {@code currentTimestamp} if there was nothing to flush
+     */
+    Timestamp<?> flush(Timestamp<?> currentTimestamp) throws InterruptedException {
+        if (updates.isEmpty()) {
+            return currentTimestamp;
+        }
+        Map<String, List<Object>> idsByCollection = new LinkedHashMap<String, List<Object>>();
+        for (PendingUpdate update : updates) {
+            addId(idsByCollection, update.collection, update.id);
+        }
+
+        Map<String, Map<Object, DBObject>> found = documents.find(idsByCollection);
+        if (logger.isTraceEnabled()) {
+            logger.trace("flush - {} updates re-fetched from {} collection(s)", updates.size(), found.size());
+        }
+
+        Timestamp<?> lastTimestamp = currentTimestamp;
+        for (PendingUpdate update : updates) {
+            Map<Object, DBObject> items = found.get(update.collection);
+            DBObject item = items != null ? items.get(update.id) : null;
+            if (item != null) {
+                documents.add(update.oplogTimestamp, item, update.collection);
+            }
+            lastTimestamp = update.oplogTimestamp;
+        }
+        updates.clear();
+        return lastTimestamp;
+    }
+
+    static void addId(Map<String, List<Object>> idsByCollection, String collection, Object id) {
+        List<Object> ids = idsByCollection.get(collection);
+        if (ids == null) {
+            ids = new ArrayList<Object>();
+            idsByCollection.put(collection, ids);
+        }
+        ids.add(id);
+    }
+}
@@ -1,6 +1,7 @@
 package org.elasticsearch.river.mongodb;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 
@@ -11,6 +12,7 @@ public class SharedContext {
 
     private final BlockingQueue<QueueEntry> stream;
     private Status status;
+    private final AtomicLong coalescedOperations = new AtomicLong();
 
     public SharedContext(BlockingQueue<QueueEntry> stream, Status status) {
         this.stream = stream;
@@ -21,6 +23,35 @@ public class SharedContext {
         return stream;
     }
 
+    /**
+     * @return the estimated size of the entries in the stream, or -1 if it
+     *         is not bounded by memory
+     */
+    public long getStreamBytes() {
+        BlockingQueue<QueueEntry> memory = stream instanceof JournaledQueue ? ((JournaledQueue) stream).getMemory() : stream;
+        return memory instanceof MemoryBoundedQueue ? ((MemoryBoundedQueue) memory).getBytes() : -1;
+    }
+
+    /**
+     * @return the size of the entries the stream spilled to disk, or -1 if
+     *         it has no journal
+     */
+    public long getJournalBytes() {
+        return stream instanceof JournaledQueue ? ((JournaledQueue) stream).getJournalBytes() : -1;
+    }
+
+    /**
+     * @return the number of operations dropped by the indexer as they were
+     *         superseded by a later operation on the same document
+     */
+    public long getCoalescedOperations() {
+        return coalescedOperations.get();
+    }
+
+    public void addCoalescedOperations(long operations) {
+        coalescedOperations.addAndGet(operations);
+    }
+
     public Status getStatus() {
         return status;
     }
@@ -1,6 +1,7 @@
 package org.elasticsearch.river.mongodb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
@@ -23,8 +24,18 @@ import com.mongodb.util.JSONSerializers;
  */
 public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Timestamp<T>> {
 
+    /** Version of a timestamp which cannot be ordered in a long. */
+    public static final long NO_VERSION = -1;
+
     public abstract long getTime();
 
+    /**
+     * @return an external version for the documents changed by the oplog
+     *         entry, growing with the timestamp, or {@link #NO_VERSION} if the
+     *         documents must use internal versioning
+     */
+    public abstract long getVersion();
+
     public final static class BSON extends Timestamp<BSON> {
         private final BSONTimestamp ts;
 
@@ -60,18 +71,33 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
             return ts.getTime() * 1000L;
         }
 
+        /* Seconds in the high bits, ordinal of the operation in the low bits */
+        @Override
+        public long getVersion() {
+            return ((long) ts.getTime() << 32) | (ts.getInc() & 0xffffffffL);
+        }
+
         @Override
-        public DBObject getOplogFilter() {
-            return new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, new BasicDBObject(QueryOperators.GTE, ts));
+        public DBObject getOplogFilter(boolean inclusive) {
+            return new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, new BasicDBObject(inclusive ? QueryOperators.GTE
+                    : QueryOperators.GT, ts));
         }
 
         @Override
         public void saveFields(XContentBuilder builder) throws IOException {
             builder.field(MongoDBRiver.LAST_TIMESTAMP_FIELD, JSON.serialize(ts));
         }
+
+        @Override
+        public void saveFields(DBObject entry) {
+            entry.put(MongoDBRiver.OPLOG_TIMESTAMP, ts);
+        }
     }
 
     public final static class GTID extends Timestamp<GTID> {
+        // Bits of the version holding the sequence number, the primary term above them
+        static final int SEQUENCE_BITS = 48;
+
         private final byte[] gtid;
         private final Date ts;
 
@@ -111,9 +137,27 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
             return ts.getTime();
         }
 
+        /*
+         * The GTID is the primary term (its first 8 bytes) then the sequence
+         * number (its last 8 bytes), compared as unsigned. Both are packed in
+         * the version in the same order while the term fits in 15 bits and the
+         * sequence number in 48 bits.
+         */
         @Override
-        public DBObject getOplogFilter() {
-            return new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GTE, gtid));
+        public long getVersion() {
+            ByteBuffer buffer = ByteBuffer.wrap(gtid);
+            long primary = buffer.getLong(0);
+            long sequence = buffer.getLong(8);
+            if ((primary >>> (63 - SEQUENCE_BITS)) != 0 || (sequence >>> SEQUENCE_BITS) != 0) {
+                return NO_VERSION;
+            }
+            return (primary << SEQUENCE_BITS) | sequence;
+        }
+
+        @Override
+        public DBObject getOplogFilter(boolean inclusive) {
+            return new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(inclusive ? QueryOperators.GTE
+                    : QueryOperators.GT, gtid));
         }
 
         @Override
@@ -121,6 +165,12 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
             builder.field(MongoDBRiver.LAST_TIMESTAMP_FIELD, JSON.serialize(ts));
             builder.field(MongoDBRiver.LAST_GTID_FIELD, JSONSerializers.getStrict().serialize(gtid));
         }
+
+        @Override
+        public void saveFields(DBObject entry) {
+            entry.put(MongoDBRiver.OPLOG_TIMESTAMP, ts);
+            entry.put(MongoDBRiver.MONGODB_ID_FIELD, gtid);
+        }
     }
 
     @SuppressWarnings({ "unchecked", "rawtypes" })
@@ -130,17 +180,19 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
 
     /** Parse timestamp field(s) on an oplog entry. */
     public static Timestamp<?> on(DBObject entry) {
-        return on(entry.toMap(), false);
+        Object timestamp = entry.get(MongoDBRiver.OPLOG_TIMESTAMP);
+        // Read the GTID only when needed: entry may be lazily decoded
+        Object id = timestamp instanceof BSONTimestamp ? null : entry.get(MongoDBRiver.MONGODB_ID_FIELD);
+        return on(timestamp, id, false);
     }
 
     /** Parse last timestamp field(s) from river source metadata. */
     public static Timestamp<?> on(Map<String, Object> map) {
-        return on(map, true);
+        return on(map.get(MongoDBRiver.LAST_TIMESTAMP_FIELD), map.get(MongoDBRiver.LAST_GTID_FIELD), true);
     }
 
-    private static Timestamp<?> on(@SuppressWarnings("rawtypes") Map map, boolean meta) {
+    private static Timestamp<?> on(Object timestamp, Object id, boolean meta) {
         String tsField = meta ? MongoDBRiver.LAST_TIMESTAMP_FIELD : MongoDBRiver.OPLOG_TIMESTAMP;
-        Object timestamp = map.get(tsField);
         if (timestamp == null) {
             return null;
         }
@@ -153,7 +205,6 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
         }
         if (timestamp instanceof Date) {
             String gtidField = meta ? MongoDBRiver.LAST_GTID_FIELD : MongoDBRiver.MONGODB_ID_FIELD;
-            Object id = map.get(gtidField);
             GTID result = null;
             if (id == null) {
                 throw new IllegalStateException("Missing property: " + gtidField);
@@ -176,7 +227,15 @@ public abstract class Timestamp<T extends Timestamp<T>> implements Comparable<Ti
                 + " " + timestamp + " of type " + timestamp.getClass());
     }
 
-    public abstract DBObject getOplogFilter();
+    public DBObject getOplogFilter() {
+        return getOplogFilter(true);
+    }
+
+    /** Oplog query starting at (inclusive) or right after this timestamp. */
+    public abstract DBObject getOplogFilter(boolean inclusive);
 
     public abstract void saveFields(XContentBuilder builder) throws IOException;
+
+    /** Save the timestamp field(s) of an oplog entry, parsed by {@link #on(DBObject)}. */
+    public abstract void saveFields(DBObject entry);
 }
@@ -0,0 +1,117 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Position in the stream up to which all the entries have been processed,
+ * while several indexer workers complete them out of order.
+ *
+ * Entries are numbered from 0 in stream order. The watermark only moves past
+ * an entry once it and all the entries before it are completed, so its
+ * timestamp can be saved as the last timestamp of the river, and the
+ * timestamp of the last entry of each shard before it as the last timestamp
+ * of the shard.
+ */
+class Watermark {
+
+    /*
+     * Completed entry after the watermark.
+     */
+    private static class Completed {
+
+        private final Timestamp<?> timestamp;
+        private final String shard;
+
+        Completed(Timestamp<?> timestamp, String shard) {
+            this.timestamp = timestamp;
+            this.shard = shard;
+        }
+    }
+
+    private final Map<Long, Completed> completed = new HashMap<Long, Completed>();
+    private long sequence;
+    private Timestamp<?> timestamp;
+    private Timestamp<?> savedTimestamp;
+    // Timestamps of the shards which moved since they were last saved
+    private final Map<String, Timestamp<?>> shardTimestamps = new LinkedHashMap<String, Timestamp<?>>();
+
+    /**
+     * Mark an entry as processed.
+     *
+     * @param timestamp the oplog timestamp of the entry, {@code null} if it
+     *            has none
+     */
+    synchronized void complete(long sequence, Timestamp<?> timestamp) {
+        complete(sequence, timestamp, null);
+    }
+
+    /**
+     * Mark an entry read from the oplog of a shard as processed.
+     *
+     * @param shard the shard of the entry, {@code null} if it has none
+     */
+    synchronized void complete(long sequence, Timestamp<?> timestamp, String shard) {
+        completed.put(sequence, new Completed(timestamp, shard));
+        while (completed.containsKey(this.sequence)) {
+            Completed entry = completed.remove(this.sequence);
+            if (entry.timestamp != null) {
+                this.timestamp = entry.timestamp;
+                if (entry.shard != null) {
+                    shardTimestamps.put(entry.shard, entry.timestamp);
+                }
+            }
+            this.sequence++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the number of entries processed in sequence
+     */
+    synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the timestamp of the last entry processed in sequence
+     */
+    synchronized Timestamp<?> getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Wait until the entries before the given one are processed.
+     *
+     * @return {@code false} if the timeout elapsed first
+     */
+    synchronized boolean await(long sequence, long timeoutMillis) throws InterruptedException {
+        if (this.sequence < sequence) {
+            wait(timeoutMillis);
+        }
+        return this.sequence >= sequence;
+    }
+
+    /**
+     * @return the timestamp to save, {@code null} if it has not moved since
+     *         the last call
+     */
+    synchronized Timestamp<?> advance() {
+        if (timestamp == null || timestamp.equals(savedTimestamp)) {
+            return null;
+        }
+        savedTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * @return the timestamps to save of the shards which moved since the
+     *         last call
+     */
+    synchronized Map<String, Timestamp<?>> advanceShards() {
+        Map<String, Timestamp<?>> result = new LinkedHashMap<String, Timestamp<?>>(shardTimestamps);
+        shardTimestamps.clear();
+        return result;
+    }
+}
@@ -23,21 +23,31 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 import org.elasticsearch.common.Base64;
 import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.io.FastStringReader;
 import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.elasticsearch.common.joda.time.DateTimeZone;
 import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
 
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.LazyDBObject;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
 
@@ -46,6 +56,10 @@ import com.mongodb.gridfs.GridFSFile;
  */
 public abstract class MongoDBHelper {
 
+    public static final String SET_OPERATOR = "$set";
+
+    private static final int DOCUMENT_BUFFER_SIZE = 512;
+
     public static XContentBuilder serialize(GridFSDBFile file) throws IOException {
 
         XContentBuilder builder = XContentFactory.jsonBuilder();
@@ -93,6 +107,56 @@ public abstract class MongoDBHelper {
         return builder;
     }
 
+    /**
+     * Write a document as JSON in a single pass, without copying it into
+     * maps first. {@link DBRef} values are written as {@code id} and
+     * {@code ref} fields, {@link ObjectId} values as strings.
+     */
+    public static XContentBuilder toXContent(DBObject object) throws IOException {
+        // The default builder starts with a whole page, far more than most documents
+        XContentBuilder builder = new XContentBuilder(JsonXContent.jsonXContent, new BytesStreamOutput(DOCUMENT_BUFFER_SIZE));
+        writeObject(builder, object);
+        return builder;
+    }
+
+    private static void writeObject(XContentBuilder builder, DBObject object) throws IOException {
+        builder.startObject();
+        for (String key : object.keySet()) {
+            builder.field(key);
+            writeValue(builder, object.get(key));
+        }
+        builder.endObject();
+    }
+
+    private static void writeValue(XContentBuilder builder, Object value) throws IOException {
+        if (value == null) {
+            builder.nullValue();
+        } else if (value instanceof String) {
+            builder.value((String) value);
+        } else if (value instanceof ObjectId) {
+            builder.value(value.toString());
+        } else if (value instanceof Date) {
+            builder.value((Date) value);
+        } else if (value instanceof DBRef) {
+            DBRef ref = (DBRef) value;
+            builder.startObject();
+            builder.field("id");
+            writeValue(builder, ref.getId());
+            builder.field("ref", ref.getRef());
+            builder.endObject();
+        } else if (value instanceof List) {
+            builder.startArray();
+            for (Object item : (List<?>) value) {
+                writeValue(builder, item);
+            }
+            builder.endArray();
+        } else if (value instanceof DBObject) {
+            writeObject(builder, (DBObject) value);
+        } else {
+            builder.value(value);
+        }
+    }
+
     public static DBObject applyExcludeFields(DBObject bsonObject, Set<String> excludeFields) {
         if (excludeFields == null) {
             return bsonObject;
@@ -119,6 +183,65 @@ public abstract class MongoDBHelper {
         return filteredObject;
     }
 
+    /**
+     * Convert the modifiers of an oplog update entry into a partial document
+     * that can be merged into the indexed document.
+     * 
+     * Only {@code $set} is supported. Returns {@code null} when the modifiers
+     * cannot be expressed as a merge: other operators, array positions, or a
+     * {@code $set} of an embedded document (MongoDB replaces it while a merge
+     * would keep its existing fields). {@code $unset} is not supported either:
+     * a merge can only set a field to {@code null}, while the re-fetched
+     * document no longer has it.
+     */
+    public static DBObject toPartialDocument(DBObject modifiers) {
+        if (modifiers == null || modifiers.keySet().isEmpty()) {
+            return null;
+        }
+        DBObject document = new BasicDBObject();
+        for (String operator : modifiers.keySet()) {
+            Object fields = modifiers.get(operator);
+            if (!(fields instanceof DBObject) || fields instanceof BasicDBList) {
+                return null;
+            }
+            if (!SET_OPERATOR.equals(operator)) {
+                return null;
+            }
+            for (String path : ((DBObject) fields).keySet()) {
+                Object value = ((DBObject) fields).get(path);
+                if (value instanceof Map || (value instanceof DBObject && !(value instanceof BasicDBList))) {
+                    return null;
+                }
+                if (!putPath(document, path, value)) {
+                    return null;
+                }
+            }
+        }
+        return document;
+    }
+
+    private static boolean putPath(DBObject document, String path, Object value) {
+        String[] keys = path.split("\\.");
+        DBObject current = document;
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            if (key.isEmpty() || key.startsWith("$") || key.matches("\\d+")) {
+                return false;
+            }
+            if (i == keys.length - 1) {
+                current.put(key, value);
+            } else {
+                Object child = current.get(key);
+                if (!(child instanceof DBObject)) {
+                    child = new BasicDBObject();
+                    current.put(key, child);
+                }
+                current = (DBObject) child;
+            }
+        }
+        return true;
+    }
+
     private static Set<String> getChildItems(String parent, final Set<String> fields) {
         Set<String> children = Sets.newHashSet();
         for (String field : fields) {
@@ -163,6 +286,98 @@ public abstract class MongoDBHelper {
         return filteredObject;
     }
 
+    /**
+     * Build a find projection equivalent to the include or exclude fields, so
+     * the filtered fields are not sent by the server at all. Paths nested in a
+     * path already in the set are redundant and left out.
+     * 
+     * @return an empty projection if no field is filtered, or {@code null} if
+     *         a field cannot be projected (operator or empty path element) and
+     *         the documents have to be filtered on the client
+     */
+    public static DBObject getFieldsProjection(Set<String> includeFields, Set<String> excludeFields) {
+        Set<String> fields = includeFields != null ? includeFields : excludeFields;
+        BasicDBObject projection = new BasicDBObject();
+        if (fields == null) {
+            return projection;
+        }
+        for (String field : fields) {
+            if (field.isEmpty() || field.startsWith(".") || field.endsWith(".") || field.contains("..") || field.contains("$")) {
+                return null;
+            }
+        }
+        for (String field : fields) {
+            if (!hasParentPath(field, fields)) {
+                projection.put(field, includeFields != null ? 1 : 0);
+            }
+        }
+        return projection;
+    }
+
+    private static boolean hasParentPath(String field, Set<String> fields) {
+        for (int i = field.indexOf('.'); i > 0; i = field.indexOf('.', i + 1)) {
+            if (fields.contains(field.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Estimate the BSON size of a document without encoding it: GridFS files
+     * count for their length.
+     */
+    public static long estimateBsonSize(DBObject object) {
+        if (object instanceof GridFSFile) {
+            return ((GridFSFile) object).getLength();
+        }
+        if (object instanceof LazyDBObject) {
+            return ((LazyDBObject) object).getBSONSize();
+        }
+        // Document length and terminating 0
+        long size = 5;
+        for (String key : object.keySet()) {
+            // Type, key and its terminating 0
+            size += 2 + key.length() + estimateBsonValueSize(object.get(key));
+        }
+        return size;
+    }
+
+    private static long estimateBsonValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return 5 + ((String) value).length();
+        } else if (value instanceof Boolean) {
+            return 1;
+        } else if (value instanceof Integer) {
+            return 4;
+        } else if (value instanceof ObjectId) {
+            return 12;
+        } else if (value instanceof byte[]) {
+            return 5 + ((byte[]) value).length;
+        } else if (value instanceof Binary) {
+            return 5 + ((Binary) value).length();
+        } else if (value instanceof DBObject) {
+            return estimateBsonSize((DBObject) value);
+        } else if (value instanceof List) {
+            long size = 5;
+            int i = 0;
+            for (Object item : (List<?>) value) {
+                size += 2 + Integer.toString(i++).length() + estimateBsonValueSize(item);
+            }
+            return size;
+        } else if (value instanceof Map) {
+            long size = 5;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += 2 + String.valueOf(entry.getKey()).length() + estimateBsonValueSize(entry.getValue());
+            }
+            return size;
+        }
+        // Long, Double, Date, timestamps
+        return 8;
+    }
+
     public static String getRiverVersion() {
         String version = "Undefined";
         try {
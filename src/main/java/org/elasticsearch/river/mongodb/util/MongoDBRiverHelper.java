@@ -3,6 +3,7 @@ package org.elasticsearch.river.mongodb.util;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.Map;
 
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.client.Client;
@@ -40,4 +41,28 @@ public abstract class MongoDBRiverHelper {
         }
     }
 
+    /**
+     * @return the current values of the adaptive bulks, or {@code null} if
+     *         they are not adaptive
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> getBulkStatus(Client client, String riverName) {
+        GetResponse response = client.prepareGet("_river", riverName, MongoDBRiver.BULK_STATUS_ID).get();
+        if (!response.isExists()) {
+            return null;
+        }
+        return (Map<String, Object>) XContentMapValues.extractValue(MongoDBRiver.TYPE + "." + MongoDBRiver.BULK_FIELD,
+                response.getSourceAsMap());
+    }
+
+    public static void setBulkStatus(Client client, String riverName, Map<String, Object> bulk) {
+        try {
+            XContentBuilder xb = jsonBuilder().startObject().startObject(MongoDBRiver.TYPE).field(MongoDBRiver.BULK_FIELD, bulk)
+                    .endObject().endObject();
+            client.prepareIndex("_river", riverName, MongoDBRiver.BULK_STATUS_ID).setSource(xb).get();
+        } catch (IOException ioEx) {
+            logger.error("setBulkStatus failed for river {}", ioEx, riverName);
+        }
+    }
+
 }
@@ -0,0 +1,107 @@
+package org.elasticsearch.river.mongodb;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class BulkControllerTest {
+
+    private BulkController createController() {
+        return new BulkController(new MongoDBRiverDefinition.Bulk.Builder().bulkActions(1000)
+                .bulkSize(ByteSizeValue.parseBytesSizeValue("4mb")).concurrentRequests(8).adaptive(true)
+                .targetLatency(TimeValue.timeValueMillis(500)).build());
+    }
+
+    public void testDecreaseOnSlowOrRejectedBulks() {
+        BulkController controller = createController();
+        Assert.assertEquals(controller.getBulkActions(), 1000);
+        Assert.assertEquals(controller.getConcurrentRequests(), 8);
+
+        controller.onBulk(100, 0);
+        Assert.assertEquals(controller.getBulkActions(), 1000);
+
+        controller.onBulk(800, 0);
+        Assert.assertEquals(controller.getBulkActions(), 500);
+        Assert.assertEquals(controller.getBulkSize(), 2 * 1024 * 1024);
+        Assert.assertEquals(controller.getConcurrentRequests(), 4);
+
+        controller.onBulk(100, 3);
+        controller.onRejected();
+        controller.onBulkQueue(45, 50);
+        Assert.assertEquals(controller.getBulkActions(), 62);
+        Assert.assertEquals(controller.getConcurrentRequests(), 1);
+
+        for (int i = 0; i < 10; i++) {
+            controller.onBulk(800, 0);
+        }
+        Assert.assertEquals(controller.getBulkActions(), BulkController.MIN_BULK_ACTIONS);
+        Assert.assertEquals(controller.getBulkSize(), BulkController.MIN_BULK_SIZE);
+        Assert.assertEquals(controller.getConcurrentRequests(), 1);
+    }
+
+    public void testAdditiveIncrease() {
+        BulkController controller = createController();
+        controller.onBulkQueue(10, 50);
+        Assert.assertEquals(controller.getBulkActions(), 1000);
+        controller.onBulkQueue(50, 50);
+        Assert.assertEquals(controller.getBulkActions(), 500);
+
+        controller.onBulk(100, 0);
+        Assert.assertEquals(controller.getBulkActions(), 500 + (1000 - BulkController.MIN_BULK_ACTIONS) / BulkController.STEPS);
+        Assert.assertEquals(controller.getConcurrentRequests(), 5);
+        for (int i = 0; i < BulkController.STEPS; i++) {
+            controller.onBulk(100, 0);
+        }
+        Assert.assertEquals(controller.getBulkActions(), 1000);
+        Assert.assertEquals(controller.getBulkSize(), 4 * 1024 * 1024);
+        Assert.assertEquals(controller.getConcurrentRequests(), 8);
+    }
+
+    public void testStatusPublishedOnChange() {
+        BulkController controller = createController();
+        Assert.assertNull(controller.pollStatus(10000));
+        controller.onRejected();
+        Assert.assertEquals(controller.pollStatus(10000).get(BulkController.BULK_ACTIONS_FIELD), 500);
+        Assert.assertNull(controller.pollStatus(10000));
+        controller.onRejected();
+        Assert.assertNull(controller.pollStatus(10500));
+        Assert.assertEquals(controller.pollStatus(11000).get(BulkController.BULK_ACTIONS_FIELD), 250);
+    }
+
+    public void testInFlightBoundedRiverWide() throws Exception {
+        final BulkController controller = createController();
+        controller.onRejected();
+        controller.onRejected();
+        Assert.assertEquals(controller.getConcurrentRequests(), 2);
+
+        // Bulks of two bulk processors
+        controller.onBulkStarted();
+        controller.onBulkStarted();
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    controller.awaitInFlight();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        adder.start();
+        adder.join(200);
+        Assert.assertTrue(adder.isAlive());
+
+        controller.onBulkCompleted();
+        adder.join(5000);
+        Assert.assertFalse(adder.isAlive());
+        Assert.assertEquals(controller.getInFlight(), 1);
+
+        // Synchronous bulks are never waited for
+        BulkController synchronous = new BulkController(new MongoDBRiverDefinition.Bulk.Builder().concurrentRequests(0)
+                .adaptive(true).build());
+        synchronous.onBulkStarted();
+        synchronous.awaitInFlight();
+    }
+}
@@ -0,0 +1,177 @@
+package org.elasticsearch.river.mongodb;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.DocumentRequest;
+import org.elasticsearch.action.ShardOperationFailedException;
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoRequestBuilder;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsRequestBuilder;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeRequest;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeRequestBuilder;
+import org.elasticsearch.action.admin.indices.optimize.OptimizeResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequestBuilder;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * The bulk load settings are restored by the indexer once the imported
+ * documents have been indexed.
+ */
+@Test
+public class BulkLoadTest {
+
+    /*
+     * Client acknowledging the bulks late, recording the bulks completed and
+     * the settings and optimize requests in order.
+     */
+    private static class SlowClient implements InvocationHandler {
+
+        private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        private final Client client = (Client) proxy(Client.class);
+        private final AdminClient admin = (AdminClient) proxy(AdminClient.class);
+        private final ClusterAdminClient cluster = (ClusterAdminClient) proxy(ClusterAdminClient.class);
+        private final IndicesAdminClient indices = (IndicesAdminClient) proxy(IndicesAdminClient.class);
+
+        private Object proxy(Class<?> type) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            String name = method.getName();
+            if (name.equals("admin")) {
+                return admin;
+            } else if (name.equals("cluster")) {
+                return cluster;
+            } else if (name.equals("indices")) {
+                return indices;
+            } else if (name.equals("prepareNodesInfo")) {
+                return new NodesInfoRequestBuilder(cluster);
+            } else if (name.equals("nodesInfo")) {
+                ((ActionListener<NodesInfoResponse>) args[1]).onResponse(new NodesInfoResponse(ClusterName.DEFAULT, new NodeInfo[0]));
+                return null;
+            } else if (name.equals("prepareNodesStats")) {
+                return new NodesStatsRequestBuilder(cluster);
+            } else if (name.equals("nodesStats")) {
+                ((ActionListener<NodesStatsResponse>) args[1]).onResponse(new NodesStatsResponse(ClusterName.DEFAULT,
+                        new NodeStats[0]));
+                return null;
+            } else if (name.equals("prepareUpdateSettings")) {
+                return new UpdateSettingsRequestBuilder(indices, (String[]) args[0]);
+            } else if (name.equals("updateSettings")) {
+                // Not public in this version of Elasticsearch
+                Method settings = UpdateSettingsRequest.class.getDeclaredMethod("settings");
+                settings.setAccessible(true);
+                events.add("settings " + ((Settings) settings.invoke(args[0])).getAsMap());
+                ((ActionListener<UpdateSettingsResponse>) args[1]).onResponse(newInstance(UpdateSettingsResponse.class,
+                        new Class<?>[] { boolean.class }, true));
+                return null;
+            } else if (name.equals("prepareOptimize")) {
+                return new OptimizeRequestBuilder(indices).setIndices((String[]) args[0]);
+            } else if (name.equals("optimize")) {
+                events.add("optimize " + ((OptimizeRequest) args[0]).maxNumSegments());
+                ((ActionListener<OptimizeResponse>) args[1]).onResponse(newInstance(OptimizeResponse.class, new Class<?>[] {
+                        int.class, int.class, int.class, List.class }, 1, 1, 0, Collections.<ShardOperationFailedException> emptyList()));
+                return null;
+            } else if (name.equals("bulk") && args.length == 2) {
+                final BulkRequest bulk = (BulkRequest) args[0];
+                final ActionListener<BulkResponse> listener = (ActionListener<BulkResponse>) args[1];
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            Thread.sleep(500);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (ActionRequest<?> request : bulk.requests()) {
+                            DocumentRequest<?> document = (DocumentRequest<?>) request;
+                            if (document.index().equals("items")) {
+                                events.add("indexed " + document.id());
+                            }
+                        }
+                        listener.onResponse(new BulkResponse(new BulkItemResponse[0], 1));
+                    }
+                }.start();
+                return null;
+            } else if (name.equals("settings")) {
+                return ImmutableSettings.EMPTY;
+            } else if (name.equals("threadPool") || name.equals("close")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private static <T> T newInstance(Class<T> type, Class<?>[] parameters, Object... args) throws Exception {
+            Constructor<T> constructor = type.getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return constructor.newInstance(args);
+        }
+    }
+
+    public void testSettingsRestoredOnceImportIndexed() throws Exception {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().riverName("bulkload").riverIndexName("_river")
+                .mongoDb("mydb").mongoCollection("items").indexName("items").typeName("items").bulkLoad(true)
+                .bulkLoadMaxSegments(1).bulk(new MongoDBRiverDefinition.Bulk.Builder().concurrentRequests(2).build()).build();
+        SharedContext context = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING);
+        Timestamp<?> timestamp = new Timestamp.BSON(new BSONTimestamp(10, 1));
+        context.getStream().put(new QueueEntry(timestamp, Operation.INSERT, new BasicDBObject("_id", "1").append("name", "one"), null));
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("index.number_of_replicas", "1");
+        settings.put("index.refresh_interval", "1s");
+        context.getStream().put(new QueueEntry(timestamp, Operation.IMPORT_CHECKPOINT,
+                new BasicDBObject(ImportCheckpoint.INDEX_SETTINGS_FIELD, settings), null));
+
+        SlowClient slowClient = new SlowClient();
+        Thread indexer = new Thread(new Indexer(null, definition, context, slowClient.client, null));
+        indexer.start();
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (slowClient.events.size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            List<String> events = new ArrayList<String>(slowClient.events);
+            Assert.assertTrue(events.size() >= 3, events.toString());
+            // Not before the bulk of the imported document has completed
+            Assert.assertEquals(events.get(0), "indexed 1");
+            Assert.assertEquals(events.get(1), "settings " + settings);
+            Assert.assertEquals(events.get(2), "optimize 1");
+        } finally {
+            context.setStatus(Status.STOPPED);
+            indexer.interrupt();
+            indexer.join(10000);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class BulkQueueTest {
+
+    public void testAvailability() {
+        Assert.assertTrue(BulkQueue.isAvailable(0, 50));
+        Assert.assertTrue(BulkQueue.isAvailable(44, 50));
+        // Less than a tenth of the queue free
+        Assert.assertFalse(BulkQueue.isAvailable(45, 50));
+        Assert.assertFalse(BulkQueue.isAvailable(60, 50));
+        // Unbounded queue
+        Assert.assertTrue(BulkQueue.isAvailable(1000, -1));
+    }
+
+    public void testUpdateDecreasesBulks() {
+        BulkController controller = new BulkController(new MongoDBRiverDefinition.Bulk.Builder().bulkActions(1000)
+                .bulkSize(ByteSizeValue.parseBytesSizeValue("4mb")).concurrentRequests(8).adaptive(true)
+                .targetLatency(TimeValue.timeValueMillis(500)).build());
+        BulkQueue queue = new BulkQueue(null, "items", controller);
+        queue.update(10, 50);
+        Assert.assertTrue(queue.isAvailable());
+        Assert.assertEquals(controller.getBulkActions(), 1000);
+
+        queue.update(48, 50);
+        Assert.assertFalse(queue.isAvailable());
+        Assert.assertEquals(controller.getBulkActions(), 500);
+    }
+
+    public void testAwaitAvailable() throws Exception {
+        final BulkQueue queue = new BulkQueue(null, "items", null);
+        queue.update(50, 50);
+        Thread adder = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.awaitAvailable();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        adder.start();
+        adder.join(200);
+        Assert.assertTrue(adder.isAlive());
+
+        queue.update(20, 50);
+        adder.join(TimeUnit.SECONDS.toMillis(10));
+        Assert.assertFalse(adder.isAlive());
+
+        // Not blocked once closed
+        queue.update(50, 50);
+        queue.close();
+        queue.awaitAvailable();
+    }
+}
@@ -0,0 +1,94 @@
+package org.elasticsearch.river.mongodb;
+
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.rest.RestStatus;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class BulkRetriesTest {
+
+    private BulkRetries createRetries() {
+        return new BulkRetries(new MongoDBRiverDefinition.Bulk.Builder().maxRetries(2)
+                .retryBackoff(TimeValue.timeValueSeconds(10)).build(), "test");
+    }
+
+    public void testFailureClassification() {
+        Assert.assertTrue(BulkRetries.isRetryable(RestStatus.TOO_MANY_REQUESTS));
+        Assert.assertTrue(BulkRetries.isRetryable(RestStatus.SERVICE_UNAVAILABLE));
+        Assert.assertFalse(BulkRetries.isRetryable(RestStatus.BAD_REQUEST));
+        Assert.assertTrue(BulkRetries.isRetryable(new EsRejectedExecutionException("rejected")));
+        Assert.assertFalse(BulkRetries.isRetryable(new MapperParsingException("failed to parse")));
+    }
+
+    public void testBackoff() {
+        BulkRetries retries = createRetries();
+        try {
+            for (int i = 0; i < 100; i++) {
+                long delay = retries.getBackoff(1);
+                Assert.assertTrue(delay > 5000 && delay <= 10000, String.valueOf(delay));
+                delay = retries.getBackoff(2);
+                Assert.assertTrue(delay > 10000 && delay <= 20000, String.valueOf(delay));
+                delay = retries.getBackoff(40);
+                Assert.assertTrue(delay > BulkRetries.MAX_BACKOFF.millis() / 2 && delay <= BulkRetries.MAX_BACKOFF.millis());
+            }
+        } finally {
+            retries.close();
+        }
+    }
+
+    public void testCheckpointsHeldWhileRetrying() {
+        BulkRetries retries = createRetries();
+        try {
+            BulkRequest bulk = new BulkRequest();
+            IndexRequest document = new IndexRequest("index", "type", "1");
+            IndexRequest checkpoint = new IndexRequest("_river", "river", "ns");
+
+            Assert.assertTrue(retries.hold(null, bulk, checkpoint));
+            Assert.assertTrue(retries.retry(null, document, null));
+            Assert.assertTrue(retries.isRetrying());
+            retries.completed(bulk);
+            // Still held: the document has not been indexed yet
+            Assert.assertTrue(retries.hold(null, bulk, new IndexRequest("_river", "river", "ns")));
+
+            Assert.assertTrue(retries.retry(null, document, null));
+            Assert.assertFalse(retries.retry(null, document, null));
+            Assert.assertFalse(retries.isRetrying());
+            retries.completed(bulk);
+            // Released: it is let through by the next bulk
+            Assert.assertFalse(retries.hold(null, new BulkRequest(), checkpoint));
+            Assert.assertTrue(retries.hold(null, new BulkRequest(), checkpoint));
+        } finally {
+            retries.close();
+        }
+    }
+
+    public void testCheckpointsHeldForEarlierBulks() {
+        BulkRetries retries = createRetries();
+        try {
+            BulkRequest documents = new BulkRequest();
+            BulkRequest otherDocuments = new BulkRequest();
+            BulkRequest bulk = new BulkRequest();
+            IndexRequest checkpoint = new IndexRequest("_river", "river", "ns");
+
+            retries.started(documents);
+            retries.started(otherDocuments);
+            retries.started(bulk);
+            Assert.assertTrue(retries.hold(null, bulk, checkpoint));
+            retries.completed(bulk);
+            retries.completed(otherDocuments);
+            // Still held: a bulk executed before it has not completed
+            Assert.assertEquals(retries.getHeld(), 1);
+
+            retries.completed(documents);
+            Assert.assertEquals(retries.getHeld(), 0);
+            Assert.assertFalse(retries.hold(null, new BulkRequest(), checkpoint));
+        } finally {
+            retries.close();
+        }
+    }
+}
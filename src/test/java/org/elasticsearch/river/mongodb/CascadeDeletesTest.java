@@ -0,0 +1,143 @@
+package org.elasticsearch.river.mongodb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.search.SearchScrollRequestBuilder;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.text.StringText;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHitField;
+import org.elasticsearch.search.internal.InternalSearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Children of deleted parents are found with one has_parent / terms scan,
+ * scrolled until an empty page.
+ */
+@Test
+public class CascadeDeletesTest {
+
+    /*
+     * Client answering the scan with the given pages of children, recording
+     * the requests.
+     */
+    private static class ScanClient implements InvocationHandler {
+
+        private final List<InternalSearchHit[]> pages;
+        private final List<SearchRequest> searches = new ArrayList<SearchRequest>();
+        private final List<SearchScrollRequest> scrolls = new ArrayList<SearchScrollRequest>();
+        private Client client;
+
+        ScanClient(List<InternalSearchHit[]> pages) {
+            this.pages = pages;
+        }
+
+        Client client() {
+            client = (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class<?>[] { Client.class }, this);
+            return client;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("prepareSearch")) {
+                return new SearchRequestBuilder(client).setIndices((String[]) args[0]);
+            } else if (name.equals("prepareSearchScroll")) {
+                return new SearchScrollRequestBuilder(client, (String) args[0]);
+            } else if (name.equals("search")) {
+                searches.add((SearchRequest) args[0]);
+                // A scan returns no hits before the first scroll
+                ((ActionListener<SearchResponse>) args[1]).onResponse(response("scroll-0", new InternalSearchHit[0]));
+                return null;
+            } else if (name.equals("searchScroll")) {
+                SearchScrollRequest request = (SearchScrollRequest) args[0];
+                scrolls.add(request);
+                int page = scrolls.size() - 1;
+                Assert.assertEquals(request.scrollId(), "scroll-" + page);
+                InternalSearchHit[] hits = page < pages.size() ? pages.get(page) : new InternalSearchHit[0];
+                ((ActionListener<SearchResponse>) args[1]).onResponse(response("scroll-" + (page + 1), hits));
+                return null;
+            } else if (name.equals("threadPool")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private static SearchResponse response(String scrollId, InternalSearchHit[] hits) {
+            InternalSearchResponse internal = new InternalSearchResponse(new InternalSearchHits(hits, hits.length, 0), null, null,
+                    null, false, null);
+            return new SearchResponse(internal, scrollId, 1, 1, 1, ShardSearchFailure.EMPTY_ARRAY);
+        }
+    }
+
+    public void testScanChildren() throws Exception {
+        ScanClient scanClient = new ScanClient(Arrays.asList(
+                new InternalSearchHit[] { child("b1", "a1"), child("b2", "a1") },
+                new InternalSearchHit[] { child("c1", "a2") }));
+        final List<String> visited = new ArrayList<String>();
+
+        Indexer.scanChildren(scanClient.client(), "library", "author", "shard1",
+                new LinkedHashSet<String>(Arrays.asList("a1", "a2")), new Indexer.ChildVisitor() {
+                    @Override
+                    public void visit(String type, String id, String parent) {
+                        visited.add(type + "/" + id + "/" + parent);
+                    }
+                });
+
+        Assert.assertEquals(visited, Arrays.asList("book/b1/a1", "book/b2/a1", "book/c1/a2"));
+
+        // One scan for all the parents
+        Assert.assertEquals(scanClient.searches.size(), 1);
+        SearchRequest search = scanClient.searches.get(0);
+        Assert.assertEquals(search.indices(), new String[] { "library" });
+        Assert.assertEquals(search.searchType(), SearchType.SCAN);
+        Assert.assertEquals(search.routing(), "shard1");
+        Assert.assertNotNull(search.scroll());
+        String source = XContentHelper.convertToJson(search.source(), false);
+        Assert.assertTrue(source.contains("\"has_parent\""), source);
+        Assert.assertTrue(source.contains("\"parent_type\":\"author\""), source);
+        Assert.assertTrue(source.contains("\"terms\":{\"_id\":[\"a1\",\"a2\"]}"), source);
+        Assert.assertTrue(source.contains("\"size\":" + Indexer.CHILDREN_SCROLL_SIZE), source);
+
+        // Both pages, then the empty one stops the scroll
+        Assert.assertEquals(scanClient.scrolls.size(), 3);
+    }
+
+    public void testScanNoChildren() {
+        ScanClient scanClient = new ScanClient(Collections.<InternalSearchHit[]> emptyList());
+        Indexer.scanChildren(scanClient.client(), "library", "author", null, Collections.singleton("a1"),
+                new Indexer.ChildVisitor() {
+                    @Override
+                    public void visit(String type, String id, String parent) {
+                        Assert.fail("No children");
+                    }
+                });
+        Assert.assertEquals(scanClient.scrolls.size(), 1);
+    }
+
+    private static InternalSearchHit child(String id, String parent) {
+        Map<String, SearchHitField> fields = Collections.<String, SearchHitField> singletonMap(Indexer.PARENT_FIELD,
+                new InternalSearchHitField(Indexer.PARENT_FIELD, Collections.<Object> singletonList(parent)));
+        return new InternalSearchHit(0, id, new StringText("book"), fields);
+    }
+}
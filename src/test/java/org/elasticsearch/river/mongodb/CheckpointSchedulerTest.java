@@ -0,0 +1,71 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class CheckpointSchedulerTest {
+
+    private static final Map<String, Timestamp<?>> NO_SHARDS = Collections.emptyMap();
+
+    public void testInterval() {
+        CheckpointScheduler checkpoints = new CheckpointScheduler(1000, 0);
+        Assert.assertNull(checkpoints.poll(0, true));
+
+        checkpoints.update(timestamp(1), NO_SHARDS, 10);
+        CheckpointScheduler.Checkpoint checkpoint = checkpoints.poll(1000, false);
+        Assert.assertEquals(checkpoint.getTimestamp(), timestamp(1));
+        Assert.assertFalse(checkpoints.isPending());
+
+        checkpoints.update(timestamp(2), NO_SHARDS, 100000);
+        checkpoints.update(timestamp(3), NO_SHARDS, 1);
+        Assert.assertFalse(checkpoints.isDue(1500));
+        Assert.assertNull(checkpoints.poll(1500, false));
+        Assert.assertEquals(checkpoints.poll(2000, false).getTimestamp(), timestamp(3));
+
+        // Saved after each burst without an interval
+        checkpoints = new CheckpointScheduler(0, 0);
+        checkpoints.update(timestamp(4), NO_SHARDS, 1);
+        Assert.assertEquals(checkpoints.poll(0, false).getTimestamp(), timestamp(4));
+    }
+
+    public void testDocuments() {
+        CheckpointScheduler checkpoints = new CheckpointScheduler(60000, 100);
+        checkpoints.poll(0, true);
+        checkpoints.update(timestamp(1), NO_SHARDS, 60);
+        Assert.assertFalse(checkpoints.isDue(10));
+        checkpoints.update(timestamp(2), NO_SHARDS, 40);
+        Assert.assertTrue(checkpoints.isDue(10));
+        Assert.assertEquals(checkpoints.poll(10, false).getTimestamp(), timestamp(2));
+
+        checkpoints.update(timestamp(3), NO_SHARDS, 99);
+        Assert.assertNull(checkpoints.poll(20, false));
+        Assert.assertEquals(checkpoints.poll(20, true).getTimestamp(), timestamp(3));
+    }
+
+    public void testShardTimestamps() {
+        CheckpointScheduler checkpoints = new CheckpointScheduler(0, 0);
+        checkpoints.update(timestamp(1), Collections.<String, Timestamp<?>> singletonMap("shard1", timestamp(1)), 1);
+        checkpoints.update(null, Collections.<String, Timestamp<?>> singletonMap("shard2", timestamp(2)), 1);
+        checkpoints.update(null, Collections.<String, Timestamp<?>> singletonMap("shard1", timestamp(3)), 1);
+        CheckpointScheduler.Checkpoint checkpoint = checkpoints.poll(0, false);
+        Assert.assertEquals(checkpoint.getTimestamp(), timestamp(1));
+        Assert.assertEquals(checkpoint.getShardTimestamps().size(), 2);
+        Assert.assertEquals(checkpoint.getShardTimestamps().get("shard1"), timestamp(3));
+        Assert.assertEquals(checkpoint.getShardTimestamps().get("shard2"), timestamp(2));
+
+        // Only the shards which moved
+        checkpoints.update(null, Collections.<String, Timestamp<?>> singletonMap("shard2", timestamp(4)), 1);
+        checkpoint = checkpoints.poll(0, false);
+        Assert.assertNull(checkpoint.getTimestamp());
+        Assert.assertEquals(checkpoint.getShardTimestamps().keySet(), Collections.singleton("shard2"));
+    }
+
+    private static Timestamp<?> timestamp(int time) {
+        return new Timestamp.BSON(new BSONTimestamp(time, 0));
+    }
+}
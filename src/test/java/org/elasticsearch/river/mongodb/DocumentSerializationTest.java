@@ -0,0 +1,153 @@
+package org.elasticsearch.river.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.BasicBSONList;
+import org.bson.types.ObjectId;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.mongodb.util.MongoDBHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+public class DocumentSerializationTest {
+
+    private static final int DOCUMENTS = 10000;
+    private static final int ROUNDS = 20;
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testToXContent() throws Exception {
+        ObjectId id = new ObjectId();
+        ObjectId authorId = new ObjectId();
+        Date date = new Date(1400000000000L);
+        BasicDBList tags = new BasicDBList();
+        tags.add("a");
+        tags.add(new BasicDBObject("name", "b"));
+        tags.add(new DBRef(null, "tags", "c"));
+        DBObject document = new BasicDBObject("_id", id).append("title", "river").append("count", 3).append("date", date)
+                .append("author", new DBRef(null, "authors", authorId)).append("tags", tags)
+                .append("address", new BasicDBObject("city", "Paris").append("zip", null));
+
+        Map<String, Object> json = XContentHelper.convertToMap(MongoDBHelper.toXContent(document).bytes(), true).v2();
+        Assert.assertEquals(json.get("_id"), id.toString());
+        Assert.assertEquals(json.get("title"), "river");
+        Assert.assertEquals(json.get("count"), 3);
+        Assert.assertEquals(json.get("date"), "2014-05-13T16:53:20.000Z");
+        Assert.assertEquals(json.get("author"), map("id", authorId.toString(), "ref", "authors"));
+        Assert.assertEquals(json.get("tags"), Arrays.asList("a", map("name", "b"), map("id", "c", "ref", "tags")));
+        Map<String, Object> address = (Map<String, Object>) json.get("address");
+        Assert.assertEquals(address.get("city"), "Paris");
+        Assert.assertTrue(address.containsKey("zip"));
+        Assert.assertEquals(Arrays.asList(json.keySet().toArray()), Arrays.asList(document.keySet().toArray()));
+    }
+
+    /**
+     * Compare the memory allocated to serialize documents through maps, as
+     * the indexer used to, and in a single pass.
+     */
+    @Test(groups = { "slow" })
+    public void testAllocations() throws Exception {
+        List<DBObject> documents = createDocuments();
+        // Warm up
+        serializeWithMaps(documents);
+        serialize(documents);
+
+        long before = allocatedBytes();
+        long mapsLength = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            mapsLength += serializeWithMaps(documents);
+        }
+        long mapsBytes = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        long length = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            length += serialize(documents);
+        }
+        long bytes = allocatedBytes() - before;
+
+        logger.info("Serialization with maps: {} bytes per document - single pass: {} bytes per document", mapsBytes
+                / (DOCUMENTS * ROUNDS), bytes / (DOCUMENTS * ROUNDS));
+        Assert.assertEquals(length, mapsLength);
+        Assert.assertTrue(bytes < mapsBytes);
+    }
+
+    private long serialize(List<DBObject> documents) throws Exception {
+        long length = 0;
+        for (DBObject document : documents) {
+            length += MongoDBHelper.toXContent(document).bytes().length();
+        }
+        return length;
+    }
+
+    private long serializeWithMaps(List<DBObject> documents) throws Exception {
+        long length = 0;
+        for (DBObject document : documents) {
+            XContentBuilder builder = XContentFactory.jsonBuilder().map(createObjectMap(new BasicDBObject(document.toMap())));
+            length += builder.bytes().length();
+        }
+        return length;
+    }
+
+    private Map<String, Object> createObjectMap(DBObject object) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (String key : object.keySet()) {
+            Object value = object.get(key);
+            if (value instanceof BasicDBList) {
+                map.put(key, ((BasicBSONList) value).toArray());
+            } else if (value instanceof BasicDBObject) {
+                map.put(key, createObjectMap((DBObject) value));
+            } else {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    private List<DBObject> createDocuments() {
+        List<DBObject> documents = new ArrayList<DBObject>(DOCUMENTS);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            BasicDBList tags = new BasicDBList();
+            tags.add("tag-" + i % 10);
+            tags.add("tag-" + i % 7);
+            documents.add(new BasicDBObject("_id", i).append("name", "name-" + i).append("tags", tags)
+                    .append("address", new BasicDBObject("street", "street-" + i).append("city", "city-" + i)));
+        }
+        return documents;
+    }
+
+    private static Map<String, Object> map(String key1, Object value1, String key2, Object value2) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(key1, value1);
+        map.put(key2, value2);
+        return map;
+    }
+
+    private static Map<String, Object> map(String key, Object value) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+    }
+}
@@ -87,4 +87,18 @@ public class ExcludeFieldsTest {
             Assert.fail();
         }
     }
+
+    public void testFieldsProjection() {
+        Set<String> excludeFields = new HashSet<String>(Arrays.asList("hobbies", "address", "address.apartment", "scores.max"));
+        DBObject projection = MongoDBHelper.getFieldsProjection(null, excludeFields);
+        Assert.assertEquals(projection, JSON.parse("{ hobbies: 0, address: 0, 'scores.max': 0 }"));
+
+        Set<String> includeFields = new HashSet<String>(Arrays.asList("_id", "lastName", "address.street"));
+        projection = MongoDBHelper.getFieldsProjection(includeFields, null);
+        Assert.assertEquals(projection, JSON.parse("{ _id: 1, lastName: 1, 'address.street': 1 }"));
+
+        Assert.assertEquals(MongoDBHelper.getFieldsProjection(null, null), JSON.parse("{}"));
+        Assert.assertNull(MongoDBHelper.getFieldsProjection(null, new HashSet<String>(Arrays.asList("lastName", "$price"))));
+        Assert.assertNull(MongoDBHelper.getFieldsProjection(new HashSet<String>(Arrays.asList("_id", "address..street")), null));
+    }
 }
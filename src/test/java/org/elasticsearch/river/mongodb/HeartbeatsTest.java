@@ -0,0 +1,228 @@
+package org.elasticsearch.river.mongodb;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoRequestBuilder;
+import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
+import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsRequestBuilder;
+import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.AdminClient;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.ClusterAdminClient;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class HeartbeatsTest {
+
+    /*
+     * Oplog ending at a settable timestamp, recording the heartbeats added.
+     */
+    private static class Oplog implements Heartbeats.Oplog {
+
+        private Timestamp<?> current;
+        private boolean hasEntries;
+        private final List<Timestamp<?>> checked = new ArrayList<Timestamp<?>>();
+        private final List<Timestamp<?>> added = new ArrayList<Timestamp<?>>();
+
+        @Override
+        public Timestamp<?> getCurrentOplogTimestamp() {
+            return current;
+        }
+
+        @Override
+        public boolean hasOplogEntries(Timestamp<?> after) {
+            checked.add(after);
+            return hasEntries;
+        }
+
+        @Override
+        public void add(Timestamp<?> heartbeat) {
+            added.add(heartbeat);
+        }
+    }
+
+    /*
+     * Client acknowledging the bulks sent by the indexer, and answering the
+     * bulk thread pool checks with no nodes.
+     */
+    private static class BulkClient implements InvocationHandler {
+
+        private final BlockingQueue<BulkRequest> bulks = new LinkedBlockingQueue<BulkRequest>();
+        private final Client client = (Client) proxy(Client.class);
+        private final AdminClient admin = (AdminClient) proxy(AdminClient.class);
+        private final ClusterAdminClient cluster = (ClusterAdminClient) proxy(ClusterAdminClient.class);
+
+        private Object proxy(Class<?> type) {
+            return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("admin")) {
+                return admin;
+            } else if (name.equals("cluster")) {
+                return cluster;
+            } else if (name.equals("prepareNodesInfo")) {
+                return new NodesInfoRequestBuilder(cluster);
+            } else if (name.equals("nodesInfo")) {
+                ((ActionListener<NodesInfoResponse>) args[1]).onResponse(new NodesInfoResponse(ClusterName.DEFAULT, new NodeInfo[0]));
+                return null;
+            } else if (name.equals("prepareNodesStats")) {
+                return new NodesStatsRequestBuilder(cluster);
+            } else if (name.equals("nodesStats")) {
+                ((ActionListener<NodesStatsResponse>) args[1]).onResponse(new NodesStatsResponse(ClusterName.DEFAULT,
+                        new NodeStats[0]));
+                return null;
+            } else if (name.equals("bulk") && args.length == 2) {
+                bulks.add((BulkRequest) args[0]);
+                ((ActionListener<BulkResponse>) args[1]).onResponse(new BulkResponse(new BulkItemResponse[0], 1));
+                return null;
+            } else if (name.equals("settings")) {
+                return ImmutableSettings.EMPTY;
+            } else if (name.equals("threadPool") || name.equals("close")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+
+    public void testIndexerSavesHeartbeat() throws Exception {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().riverName("heartbeat").riverIndexName("_river")
+                .mongoDb("mydb").mongoCollection("items").indexName("items").typeName("items")
+                .bulk(new MongoDBRiverDefinition.Bulk.Builder().concurrentRequests(1).build()).build();
+        SharedContext context = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING);
+        context.getStream().put(new QueueEntry(timestamp(20), Operation.HEARTBEAT, new BasicDBObject(), null, "shard1"));
+
+        BulkClient bulkClient = new BulkClient();
+        Thread indexer = new Thread(new Indexer(null, definition, context, bulkClient.client, null));
+        indexer.start();
+        try {
+            Map<String, IndexRequest> checkpoints = new LinkedHashMap<String, IndexRequest>();
+            while (checkpoints.size() < 2) {
+                BulkRequest bulk = bulkClient.bulks.poll(10, TimeUnit.SECONDS);
+                Assert.assertNotNull(bulk, "No checkpoint saved");
+                for (ActionRequest<?> request : bulk.requests()) {
+                    // Only the checkpoints, no document
+                    IndexRequest index = (IndexRequest) request;
+                    Assert.assertEquals(index.index(), "_river");
+                    Assert.assertEquals(index.type(), "heartbeat");
+                    checkpoints.put(index.id(), index);
+                }
+            }
+            String namespace = definition.getMongoOplogNamespace();
+            Assert.assertEquals(checkpoints.keySet(),
+                    new HashSet<String>(Arrays.asList(namespace, namespace + MongoDBRiver.SHARD_TIMESTAMP_SEPARATOR + "shard1")));
+            for (IndexRequest checkpoint : checkpoints.values()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> state = (Map<String, Object>) checkpoint.sourceAsMap().get(MongoDBRiver.TYPE);
+                Assert.assertEquals(Timestamp.on(state), timestamp(20));
+            }
+        } finally {
+            context.setStatus(Status.STOPPED);
+            indexer.interrupt();
+            indexer.join(10000);
+        }
+    }
+
+    public void testHeartbeatFollowsPreviousEnd() throws Exception {
+        Oplog oplog = new Oplog();
+        Heartbeats heartbeats = new Heartbeats(oplog);
+        heartbeats.idle(timestamp(10));
+
+        // The first end of the oplog read is only a candidate
+        oplog.current = timestamp(20);
+        Assert.assertFalse(heartbeats.heartbeat());
+        oplog.current = timestamp(30);
+        Assert.assertTrue(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.added, Arrays.asList(timestamp(20)));
+        Assert.assertEquals(oplog.checked, Arrays.asList(timestamp(10)));
+
+        // The next heartbeat follows the previous one
+        oplog.current = timestamp(40);
+        Assert.assertTrue(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.added, Arrays.asList(timestamp(20), timestamp(30)));
+        Assert.assertEquals(oplog.checked, Arrays.asList(timestamp(10), timestamp(20)));
+
+        // Nothing new in the oplog
+        oplog.current = timestamp(40);
+        Assert.assertTrue(heartbeats.heartbeat());
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.added.size(), 3);
+    }
+
+    public void testSkippedWhileRiverEntriesFollow() throws Exception {
+        Oplog oplog = new Oplog();
+        Heartbeats heartbeats = new Heartbeats(oplog);
+        heartbeats.idle(timestamp(10));
+        oplog.current = timestamp(20);
+        heartbeats.heartbeat();
+
+        // Entries of the river after the last one read are not in the stream yet
+        oplog.hasEntries = true;
+        oplog.current = timestamp(30);
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.checked, Arrays.asList(timestamp(10), timestamp(10)));
+        Assert.assertTrue(oplog.added.isEmpty());
+
+        oplog.hasEntries = false;
+        Assert.assertTrue(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.added, Arrays.asList(timestamp(30)));
+    }
+
+    public void testOnlyWhileIdle() throws Exception {
+        Oplog oplog = new Oplog();
+        Heartbeats heartbeats = new Heartbeats(oplog);
+        oplog.current = timestamp(20);
+        Assert.assertFalse(heartbeats.heartbeat());
+
+        heartbeats.idle(timestamp(10));
+        Assert.assertFalse(heartbeats.heartbeat());
+        heartbeats.busy();
+        // The candidate read while idle is dropped
+        Assert.assertFalse(heartbeats.heartbeat());
+        heartbeats.idle(timestamp(10));
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertTrue(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.checked.size(), 1);
+
+        // TokuMX
+        heartbeats.idle(new Timestamp.GTID(new byte[16], new Date(1000)));
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertFalse(heartbeats.heartbeat());
+        Assert.assertEquals(oplog.added.size(), 1);
+    }
+
+    private static Timestamp<?> timestamp(int time) {
+        return new Timestamp.BSON(new BSONTimestamp(time, 0));
+    }
+}
@@ -0,0 +1,86 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.ObjectId;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class ImportCheckpointTest {
+
+    public void testSingleCursorCheckpoint() throws Exception {
+        ImportCheckpoint checkpoint = new ImportCheckpoint();
+        checkpoint.setShardTimestamp("shard1", new Timestamp.BSON(new BSONTimestamp(1000, 2)));
+        checkpoint.setShardTimestamp("shard2", new Timestamp.BSON(new BSONTimestamp(900, 1)));
+        checkpoint.setCompleted("books");
+        ObjectId lastId = new ObjectId();
+        checkpoint.setLastId("authors", lastId);
+
+        ImportCheckpoint resumed = ImportCheckpoint.fromSource(roundTrip(checkpoint));
+        Assert.assertTrue(resumed.isResumed());
+        Assert.assertEquals(resumed.getShardTimestamp("shard1"), new Timestamp.BSON(new BSONTimestamp(1000, 2)));
+        Assert.assertEquals(resumed.getTimestamp(), new Timestamp.BSON(new BSONTimestamp(900, 1)));
+        Assert.assertTrue(resumed.isCompleted("books"));
+        Assert.assertFalse(resumed.isCompleted("authors"));
+        Assert.assertEquals(resumed.getLastId("authors"), lastId);
+        Assert.assertNull(resumed.getLastId("books"));
+    }
+
+    public void testRangesCheckpoint() throws Exception {
+        ImportCheckpoint checkpoint = new ImportCheckpoint();
+        checkpoint.setShardTimestamp("unsharded", new Timestamp.BSON(new BSONTimestamp(1000, 1)));
+        checkpoint.setRanges("books", Arrays.asList(new ImportCheckpoint.Range(null, 100, null, 42), new ImportCheckpoint.Range(100,
+                null, null, null), new ImportCheckpoint.Range(null, null, new int[] { 1, 16, 18 }, null)));
+
+        List<ImportCheckpoint.Range> ranges = ImportCheckpoint.fromSource(roundTrip(checkpoint)).getRanges("books");
+        Assert.assertEquals(ranges.size(), 3);
+        Assert.assertNull(ranges.get(0).min);
+        Assert.assertEquals(ranges.get(0).max, 100);
+        Assert.assertEquals(ranges.get(0).lastId, 42);
+        Assert.assertEquals(ranges.get(1).min, 100);
+        Assert.assertNull(ranges.get(1).lastId);
+        Assert.assertEquals(ranges.get(2).otherTypes, new int[] { 1, 16, 18 });
+    }
+
+    public void testConcurrentCollectionsCheckpoint() throws Exception {
+        ImportCheckpoint checkpoint = new ImportCheckpoint();
+        checkpoint.setShardTimestamp("unsharded", new Timestamp.BSON(new BSONTimestamp(1000, 1)));
+        checkpoint.setLastId("authors", "king");
+        checkpoint.setRanges("books", Arrays.asList(new ImportCheckpoint.Range(null, null, null, 7)));
+        checkpoint.setLastId("reviews", 3);
+        checkpoint.setCompleted("reviews");
+
+        ImportCheckpoint resumed = ImportCheckpoint.fromSource(roundTrip(checkpoint));
+        Assert.assertEquals(resumed.getLastId("authors"), "king");
+        Assert.assertNull(resumed.getRanges("authors"));
+        Assert.assertEquals(resumed.getRanges("books").get(0).lastId, 7);
+        Assert.assertNull(resumed.getLastId("books"));
+        Assert.assertTrue(resumed.isCompleted("reviews"));
+        Assert.assertNull(resumed.getLastId("reviews"));
+    }
+
+    public void testIndexSettingsCheckpoint() throws Exception {
+        ImportCheckpoint checkpoint = new ImportCheckpoint();
+        checkpoint.setShardTimestamp("unsharded", new Timestamp.BSON(new BSONTimestamp(1000, 1)));
+        Assert.assertNull(ImportCheckpoint.fromSource(roundTrip(checkpoint)).getIndexSettings());
+
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("index.number_of_replicas", "2");
+        settings.put("index.refresh_interval", "5s");
+        checkpoint.setIndexSettings(settings);
+        Assert.assertEquals(ImportCheckpoint.fromSource(roundTrip(checkpoint)).getIndexSettings(), settings);
+    }
+
+    private Map<String, Object> roundTrip(ImportCheckpoint checkpoint) throws Exception {
+        byte[] source = jsonBuilder().map(checkpoint.toSource().toMap()).bytes().toBytes();
+        return XContentHelper.convertToMap(source, false).v2();
+    }
+}
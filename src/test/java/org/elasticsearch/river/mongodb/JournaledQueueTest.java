@@ -0,0 +1,149 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class JournaledQueueTest {
+
+    private File directory;
+
+    @BeforeMethod
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("river-journal").toFile();
+    }
+
+    @AfterMethod
+    public void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static QueueEntry entry(int i) {
+        return new QueueEntry(new Timestamp.BSON(new BSONTimestamp(1000 + i, i)), Operation.INSERT, new BasicDBObject("_id", i).append(
+                "value", "document " + i), "collection");
+    }
+
+    private int segments() {
+        return directory.listFiles().length;
+    }
+
+    public void testSpillsInOrder() throws Exception {
+        JournaledQueue queue = new JournaledQueue(new ArrayBlockingQueue<QueueEntry>(2), directory, 256, -1);
+        for (int i = 0; i < 20; i++) {
+            queue.put(entry(i));
+        }
+        Assert.assertEquals(queue.size(), 20);
+        Assert.assertEquals(queue.getJournalEntries(), 18);
+        Assert.assertTrue(segments() > 1);
+
+        // Entries put while the journal is not empty go to the journal
+        Assert.assertNotNull(queue.take());
+        queue.put(entry(20));
+        Assert.assertEquals(queue.getJournalEntries(), 19);
+
+        for (int i = 1; i <= 20; i++) {
+            QueueEntry entry = queue.poll(1, TimeUnit.SECONDS);
+            Assert.assertEquals(entry.getData().get("_id"), i);
+            Assert.assertEquals(entry.getData().get("value"), "document " + i);
+            Assert.assertEquals(entry.getOplogTimestamp(), entry(i).getOplogTimestamp());
+            Assert.assertEquals(entry.getOperation(), Operation.INSERT);
+            Assert.assertEquals(entry.getCollection(), "collection");
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(queue.getJournalBytes(), 0);
+        // The last segment and a spare are kept for reuse
+        Assert.assertEquals(segments(), 2);
+
+        queue.close();
+        Assert.assertEquals(segments(), 0);
+    }
+
+    public void testDrainsManySegments() throws Exception {
+        JournaledQueue queue = new JournaledQueue(new ArrayBlockingQueue<QueueEntry>(1), directory, 256, -1);
+        for (int i = 0; i < 30; i++) {
+            queue.put(entry(i));
+        }
+        int segments = segments();
+        Assert.assertTrue(segments > 2, "Only " + segments + " segments");
+
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(queue.take().getData().get("_id"), i);
+        }
+        Assert.assertTrue(queue.isEmpty());
+        Assert.assertEquals(segments(), 2);
+
+        // The segments kept are reused, and draining while putting does not grow the journal
+        for (int i = 0; i < 30; i++) {
+            queue.put(entry(i));
+        }
+        Assert.assertEquals(segments(), segments);
+        for (int i = 30; i < 300; i++) {
+            queue.put(entry(i));
+            Assert.assertEquals(queue.take().getData().get("_id"), i - 30);
+        }
+        Assert.assertTrue(segments() <= segments + 1);
+        Assert.assertEquals(queue.drainTo(new ArrayList<QueueEntry>()), 30);
+
+        queue.close();
+        Assert.assertEquals(segments(), 0);
+    }
+
+    public void testEncodeGtidAndCheckpoint() {
+        byte[] gtid = new byte[16];
+        gtid[15] = 7;
+        QueueEntry entry = new QueueEntry(new Timestamp.GTID(gtid, new Date(1000)), Operation.DELETE, new BasicDBObject("_id", "a"),
+                "collection", "shard1");
+        QueueEntry decoded = JournaledQueue.decode(JournaledQueue.encode(entry));
+        Assert.assertEquals(decoded.getShard(), "shard1");
+        Assert.assertEquals(decoded.getOplogTimestamp(), entry.getOplogTimestamp());
+        Assert.assertEquals(decoded.getOperation(), Operation.DELETE);
+
+        QueueEntry checkpoint = new QueueEntry(null, Operation.IMPORT_CHECKPOINT, new BasicDBObject(), null);
+        decoded = JournaledQueue.decode(JournaledQueue.encode(checkpoint));
+        Assert.assertNull(decoded.getOplogTimestamp());
+        Assert.assertNull(decoded.getCollection());
+        Assert.assertEquals(decoded.getOperation(), Operation.IMPORT_CHECKPOINT);
+    }
+
+    public void testBoundedJournal() throws Exception {
+        long size = JournaledQueue.encode(entry(0)).length;
+        JournaledQueue queue = new JournaledQueue(new ArrayBlockingQueue<QueueEntry>(1), directory, 1024, 2 * size);
+        Assert.assertTrue(queue.offer(entry(0)));
+        Assert.assertTrue(queue.offer(entry(1)));
+        Assert.assertTrue(queue.offer(entry(2)));
+        Assert.assertFalse(queue.offer(entry(3), 10, TimeUnit.MILLISECONDS));
+
+        List<QueueEntry> drained = new ArrayList<QueueEntry>();
+        Assert.assertEquals(queue.drainTo(drained), 3);
+        Assert.assertEquals(drained.get(2).getData().get("_id"), 2);
+        Assert.assertTrue(queue.offer(entry(3)));
+        queue.close();
+    }
+
+    public void testLeftoversDeleted() throws Exception {
+        File leftover = new File(directory, "0000000000000000000" + JournaledQueue.SEGMENT_SUFFIX);
+        Assert.assertTrue(leftover.createNewFile());
+        new JournaledQueue(new ArrayBlockingQueue<QueueEntry>(1), directory, 1024, -1);
+        Assert.assertFalse(leftover.exists());
+    }
+}
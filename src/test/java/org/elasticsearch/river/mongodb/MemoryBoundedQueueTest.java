@@ -0,0 +1,86 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BSON;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.elasticsearch.river.mongodb.util.MongoDBHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+@Test
+public class MemoryBoundedQueueTest {
+
+    private static QueueEntry entry(int length) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            value.append('x');
+        }
+        return new QueueEntry(new BasicDBObject("v", value.toString()), "collection");
+    }
+
+    public void testEstimateBsonSize() {
+        BasicDBList tags = new BasicDBList();
+        tags.add("a");
+        tags.add(new BasicDBObject("name", "b"));
+        DBObject document = new BasicDBObject("_id", new org.bson.types.ObjectId()).append("title", "river").append("count", 3)
+                .append("total", 3L).append("date", new java.util.Date()).append("tags", tags).append("none", null)
+                .append("address", new BasicDBObject("city", "Paris"));
+        Assert.assertEquals(MongoDBHelper.estimateBsonSize(document), BSON.encode(document).length);
+    }
+
+    public void testBoundedByBytes() throws Exception {
+        QueueEntry small = entry(100);
+        long size = small.getEstimatedSize();
+        MemoryBoundedQueue queue = new MemoryBoundedQueue(3 * size);
+        Assert.assertTrue(queue.offer(small));
+        Assert.assertTrue(queue.offer(entry(100)));
+        Assert.assertTrue(queue.offer(entry(100)));
+        Assert.assertEquals(queue.getBytes(), 3 * size);
+        Assert.assertFalse(queue.offer(entry(100)));
+        Assert.assertFalse(queue.offer(entry(1), 10, TimeUnit.MILLISECONDS));
+
+        Assert.assertSame(queue.take(), small);
+        Assert.assertEquals(queue.getBytes(), 2 * size);
+        Assert.assertTrue(queue.offer(entry(100)));
+
+        List<QueueEntry> drained = new ArrayList<QueueEntry>();
+        Assert.assertEquals(queue.drainTo(drained), 3);
+        Assert.assertEquals(queue.getBytes(), 0);
+        Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+
+        // An empty queue takes an entry larger than the budget
+        Assert.assertTrue(queue.offer(entry(1000)));
+        Assert.assertFalse(queue.offer(entry(1)));
+    }
+
+    public void testPutBlocksUntilTaken() throws Exception {
+        final MemoryBoundedQueue queue = new MemoryBoundedQueue(entry(100).getEstimatedSize());
+        queue.put(entry(100));
+        final CountDownLatch put = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    queue.put(entry(100));
+                    put.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        Assert.assertFalse(put.await(50, TimeUnit.MILLISECONDS));
+        queue.take();
+        Assert.assertTrue(put.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(queue.size(), 1);
+        producer.join();
+    }
+}
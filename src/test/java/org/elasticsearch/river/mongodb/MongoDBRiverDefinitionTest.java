@@ -40,8 +40,34 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_CONCURRENT_REQUESTS, definition.getBulk().getConcurrentRequests());
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_SIZE, definition.getBulk().getBulkSize());
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_FLUSH_INTERVAL, definition.getBulk().getFlushInterval());
+            Assert.assertFalse(definition.getBulk().isAdaptive());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_TARGET_LATENCY, definition.getBulk().getTargetLatency());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_MAX_RETRIES, definition.getBulk().getMaxRetries());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_RETRY_BACKOFF, definition.getBulk().getRetryBackoff());
+            Assert.assertNull(definition.getDeadLetterIndex());
+            Assert.assertNull(definition.getThrottleBytes());
+            Assert.assertFalse(definition.getBulk().isCoalesce());
+            Assert.assertNull(definition.getJournalPath());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_JOURNAL_SEGMENT_SIZE.bytes(), definition.getJournalSegmentSize().bytes());
             Assert.assertFalse(definition.isSkipInitialImport());
             Assert.assertFalse(definition.isStoreStatistics());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_UPDATE_BATCH_SIZE, definition.getUpdateBatchSize());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_UPDATE_BATCH_INTERVAL, definition.getUpdateBatchInterval());
+            Assert.assertFalse(definition.isApplyUpdateModifiers());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_OPLOG_WORKERS, definition.getOplogWorkers());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_INITIAL_IMPORT_PARTITIONS, definition.getInitialImportPartitions());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_INITIAL_IMPORT_THREADS, definition.getInitialImportThreads());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_INITIAL_IMPORT_CHECKPOINT_INTERVAL,
+                    definition.getInitialImportCheckpointInterval());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_HEARTBEAT_INTERVAL, definition.getHeartbeatInterval());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_CHECKPOINT_INTERVAL, definition.getCheckpointInterval());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_CHECKPOINT_DOCUMENTS, definition.getCheckpointDocuments());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_INITIAL_IMPORT_COLLECTIONS, definition.getInitialImportCollections());
+            Assert.assertFalse(definition.isBulkLoad());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_BULK_LOAD_MAX_SEGMENTS, definition.getBulkLoadMaxSegments());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_INDEXER_WORKERS, definition.getIndexerWorkers());
+            Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_ADVANCED_TRANSFORMATION_BATCH_SIZE,
+                    definition.getAdvancedTransformationBatchSize());
 
         } catch (Throwable t) {
             Assert.fail("testLoadMongoDBRiverSimpleDefinition failed", t);
@@ -71,6 +97,21 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(11000, definition.getConnectTimeout());
             Assert.assertEquals(riverName.getName(), definition.getRiverName());
             Assert.assertFalse(definition.isStoreStatistics());
+            Assert.assertEquals(50, definition.getUpdateBatchSize());
+            Assert.assertEquals(TimeValue.timeValueMillis(250), definition.getUpdateBatchInterval());
+            Assert.assertTrue(definition.isApplyUpdateModifiers());
+            Assert.assertEquals(4, definition.getOplogWorkers());
+            Assert.assertEquals(8, definition.getInitialImportPartitions());
+            Assert.assertEquals(2, definition.getInitialImportThreads());
+            Assert.assertEquals(TimeValue.timeValueSeconds(30).millis(), definition.getInitialImportCheckpointInterval().millis());
+            Assert.assertEquals(TimeValue.timeValueSeconds(10).millis(), definition.getHeartbeatInterval().millis());
+            Assert.assertEquals(TimeValue.timeValueSeconds(5).millis(), definition.getCheckpointInterval().millis());
+            Assert.assertEquals(10000, definition.getCheckpointDocuments());
+            Assert.assertEquals(3, definition.getInitialImportCollections());
+            Assert.assertTrue(definition.isBulkLoad());
+            Assert.assertEquals(5, definition.getBulkLoadMaxSegments());
+            Assert.assertEquals(6, definition.getIndexerWorkers());
+            Assert.assertEquals(20, definition.getAdvancedTransformationBatchSize());
             
             // Test bulk
             Assert.assertEquals(500, definition.getBulk().getBulkActions());
@@ -114,6 +155,16 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(40, definition.getBulk().getConcurrentRequests());
             Assert.assertEquals(ByteSizeValue.parseBytesSizeValue("20mb"), definition.getBulk().getBulkSize());
             Assert.assertEquals(TimeValue.timeValueMillis(50), definition.getBulk().getFlushInterval());
+            Assert.assertTrue(definition.getBulk().isAdaptive());
+            Assert.assertEquals(TimeValue.timeValueSeconds(2).millis(), definition.getBulk().getTargetLatency().millis());
+            Assert.assertEquals(3, definition.getBulk().getMaxRetries());
+            Assert.assertEquals(TimeValue.timeValueSeconds(1).millis(), definition.getBulk().getRetryBackoff().millis());
+            Assert.assertEquals("mongodb-failures", definition.getDeadLetterIndex());
+            Assert.assertEquals(ByteSizeValue.parseBytesSizeValue("64mb"), definition.getThrottleBytes());
+            Assert.assertTrue(definition.getBulk().isCoalesce());
+            Assert.assertEquals("/var/lib/elasticsearch/river-journal", definition.getJournalPath());
+            Assert.assertEquals(ByteSizeValue.parseBytesSizeValue("16mb"), definition.getJournalSegmentSize());
+            Assert.assertEquals(ByteSizeValue.parseBytesSizeValue("10gb"), definition.getJournalMaxSize());
 
         } catch (Throwable t) {
             Assert.fail("testLoadMongoDBRiverDefinition failed", t);
@@ -0,0 +1,114 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class OperationCoalescerTest {
+
+    private int time;
+
+    private OperationCoalescer createCoalescer(SharedContext context, String... parentTypes) {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().typeName("type").importAllCollections(true)
+                .parentTypes(parentTypes.length > 0 ? Collections.singleton(parentTypes[0]) : null)
+                .bulk(new MongoDBRiverDefinition.Bulk.Builder().coalesce(true).build()).build();
+        return new OperationCoalescer(definition, context);
+    }
+
+    private QueueEntry entry(Operation operation, Object id, String collection) {
+        time++;
+        return new QueueEntry(new Timestamp.BSON(new BSONTimestamp(time, 0)), operation, new BasicDBObject("_id", id).append("time",
+                time), collection);
+    }
+
+    private QueueEntry entry(Operation operation, Object id) {
+        return entry(operation, id, "collection");
+    }
+
+    public void testKeepsLastOperation() {
+        SharedContext context = new SharedContext(null, Status.RUNNING);
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.UPDATE, 2));
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.UPDATE, 1, "other"));
+        entries.add(entry(Operation.UPDATE, 1));
+        List<QueueEntry> result = createCoalescer(context).coalesce(entries);
+        Assert.assertEquals(result.size(), 3);
+        Assert.assertSame(result.get(0), entries.get(1));
+        Assert.assertSame(result.get(1), entries.get(3));
+        Assert.assertSame(result.get(2), entries.get(4));
+        Assert.assertEquals(context.getCoalescedOperations(), 2);
+    }
+
+    public void testInsertUpdateCollapsed() {
+        SharedContext context = new SharedContext(null, Status.RUNNING);
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(entry(Operation.INSERT, 2));
+        entries.add(entry(Operation.UPDATE, 2));
+        List<QueueEntry> result = createCoalescer(context).coalesce(entries);
+        Assert.assertEquals(result.size(), 1);
+        // Still an insert, with the last state of the document
+        Assert.assertEquals(result.get(0).getOperation(), Operation.INSERT);
+        Assert.assertSame(result.get(0).getData(), entries.get(1).getData());
+        Assert.assertEquals(result.get(0).getOplogTimestamp(), entries.get(1).getOplogTimestamp());
+        Assert.assertEquals(context.getCoalescedOperations(), 1);
+    }
+
+    /*
+     * After a restart the window is replayed from an older checkpoint: the
+     * insert may already be indexed, so the delete must still be sent.
+     */
+    public void testReplayedInsertDeleteKeepsDelete() {
+        SharedContext context = new SharedContext(null, Status.RUNNING);
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(entry(Operation.INSERT, 1));
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.DELETE, 1));
+        List<QueueEntry> result = createCoalescer(context).coalesce(entries);
+        Assert.assertEquals(result.size(), 1);
+        // Versioned with the timestamp of the delete
+        Assert.assertSame(result.get(0), entries.get(2));
+        Assert.assertEquals(context.getCoalescedOperations(), 2);
+
+        // Inserted again in the same window
+        entries.add(entry(Operation.INSERT, 1));
+        result = createCoalescer(context).coalesce(entries);
+        Assert.assertEquals(result.size(), 1);
+        Assert.assertSame(result.get(0), entries.get(3));
+    }
+
+    public void testPartialUpdatesKept() {
+        SharedContext context = new SharedContext(null, Status.RUNNING);
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.PARTIAL_UPDATE, 1));
+        entries.add(entry(Operation.PARTIAL_UPDATE, 1));
+        Assert.assertSame(createCoalescer(context).coalesce(entries), entries);
+
+        entries.add(entry(Operation.DELETE, 1));
+        List<QueueEntry> result = createCoalescer(context).coalesce(entries);
+        Assert.assertEquals(result.size(), 1);
+        Assert.assertEquals(result.get(0).getOperation(), Operation.DELETE);
+    }
+
+    public void testBarriersAndParentTypes() {
+        SharedContext context = new SharedContext(null, Status.RUNNING);
+        List<QueueEntry> entries = new ArrayList<QueueEntry>();
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.DROP_COLLECTION, null));
+        entries.add(entry(Operation.UPDATE, 1));
+        entries.add(entry(Operation.UPDATE, 2, "parent"));
+        entries.add(entry(Operation.UPDATE, 2, "parent"));
+        Assert.assertSame(createCoalescer(context, "parent").coalesce(entries), entries);
+        Assert.assertEquals(context.getCoalescedOperations(), 0);
+    }
+}
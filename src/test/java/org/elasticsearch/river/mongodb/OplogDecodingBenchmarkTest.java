@@ -0,0 +1,93 @@
+package org.elasticsearch.river.mongodb;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BasicBSONEncoder;
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.LazyDBDecoder;
+
+/**
+ * Compare the memory allocated to decode and validate oplog entries when most
+ * of them belong to other namespaces.
+ */
+public class OplogDecodingBenchmarkTest {
+
+    private static final int ENTRIES = 10000;
+    private static final int ROUNDS = 20;
+    private static final String NAMESPACE = "mydb.mycollection";
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test(groups = { "slow" })
+    public void testAllocations() {
+        List<byte[]> entries = createOplogEntries();
+        // Warm up
+        decode(entries, DefaultDBDecoder.FACTORY.create());
+        decode(entries, LazyDBDecoder.FACTORY.create());
+
+        long before = allocatedBytes();
+        int eager = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            eager += decode(entries, DefaultDBDecoder.FACTORY.create());
+        }
+        long eagerBytes = allocatedBytes() - before;
+
+        before = allocatedBytes();
+        int lazy = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            lazy += decode(entries, LazyDBDecoder.FACTORY.create());
+        }
+        long lazyBytes = allocatedBytes() - before;
+
+        logger.info("Eager decoding: {} bytes per entry - lazy decoding: {} bytes per entry", eagerBytes / (ENTRIES * ROUNDS),
+                lazyBytes / (ENTRIES * ROUNDS));
+        Assert.assertEquals(lazy, eager);
+        Assert.assertTrue(lazyBytes < eagerBytes);
+    }
+
+    private int decode(List<byte[]> entries, DBDecoder decoder) {
+        int valid = 0;
+        for (byte[] bytes : entries) {
+            DBObject entry = decoder.decode(bytes, (DBCollection) null);
+            Timestamp.on(entry);
+            if (NAMESPACE.equals(entry.get(MongoDBRiver.OPLOG_NAMESPACE))
+                    && MongoDBRiver.OPLOG_INSERT_OPERATION.equals(entry.get(MongoDBRiver.OPLOG_OPERATION))
+                    && !Boolean.TRUE.equals(entry.get(MongoDBRiver.OPLOG_FROM_MIGRATE))) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    private List<byte[]> createOplogEntries() {
+        BasicBSONEncoder encoder = new BasicBSONEncoder();
+        List<byte[]> entries = new ArrayList<byte[]>(ENTRIES);
+        for (int i = 0; i < ENTRIES; i++) {
+            DBObject object = new BasicDBObject("_id", i).append("name", "name-" + i).append("tags", new String[] { "a", "b", "c" })
+                    .append("address", new BasicDBObject("street", "street-" + i).append("city", "city-" + i));
+            DBObject entry = new BasicDBObject(MongoDBRiver.OPLOG_TIMESTAMP, new BSONTimestamp(i, 1)).append("h", (long) i)
+                    .append("v", 2).append(MongoDBRiver.OPLOG_OPERATION, MongoDBRiver.OPLOG_INSERT_OPERATION)
+                    .append(MongoDBRiver.OPLOG_NAMESPACE, i % 20 == 0 ? NAMESPACE : "otherdb.collection")
+                    .append(MongoDBRiver.OPLOG_OBJECT, object);
+            entries.add(encoder.encode(entry));
+        }
+        return entries;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread()
+                .getId());
+    }
+}
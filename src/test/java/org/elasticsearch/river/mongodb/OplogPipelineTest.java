@@ -0,0 +1,52 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+@Test
+public class OplogPipelineTest {
+
+    public void testEntriesAreReleasedInOplogOrder() throws Exception {
+        SharedContext context = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING);
+        final Random random = new Random();
+        OplogPipeline<Integer> pipeline = new OplogPipeline<Integer>(4, 10, EsExecutors.daemonThreadFactory("oplog_pipeline_test"),
+                context, new OplogPipeline.Processor<Integer>() {
+                    @Override
+                    public List<List<QueueEntry>> process(List<Integer> tasks) throws Exception {
+                        Thread.sleep(random.nextInt(3));
+                        List<List<QueueEntry>> results = new ArrayList<List<QueueEntry>>();
+                        for (Integer task : tasks) {
+                            results.add(Collections.singletonList(new QueueEntry(new Timestamp.BSON(new BSONTimestamp(task, 0)),
+                                    Operation.INSERT, new BasicDBObject("_id", task % 7), "items")));
+                        }
+                        return results;
+                    }
+                });
+        pipeline.start();
+        try {
+            for (int i = 1; i <= 500; i++) {
+                pipeline.submit(i % 7, i);
+            }
+            pipeline.drain();
+        } finally {
+            pipeline.close();
+        }
+
+        Assert.assertEquals(context.getStream().size(), 500);
+        int expected = 1;
+        for (QueueEntry entry : context.getStream()) {
+            Assert.assertEquals(entry.getOplogTimestamp(), new Timestamp.BSON(new BSONTimestamp(expected++, 0)));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.QueryOperators;
+
+@Test
+public class OplogQueryTest {
+
+    private static final DBObject FILTER = new Timestamp.BSON(new BSONTimestamp(1, 0)).getOplogFilter(false);
+
+    public void testSingleCollection() {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().mongoDb("mydb").mongoCollection("mycollection").build();
+        DBObject query = OplogSlurper.getOplogQuery(definition, FILTER);
+
+        Assert.assertEquals(query.get(MongoDBRiver.OPLOG_TIMESTAMP), FILTER.get(MongoDBRiver.OPLOG_TIMESTAMP));
+        DBObject namespaces = (DBObject) query.get(MongoDBRiver.OPLOG_NAMESPACE);
+        Assert.assertEquals(Arrays.asList((Object[]) namespaces.get(QueryOperators.IN)),
+                Arrays.asList("mydb.mycollection", "mydb.$cmd", MongoDBRiver.OPLOG_ADMIN_COMMAND));
+        assertOperationsAndMigrations(query);
+    }
+
+    public void testImportAllCollections() {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().mongoDb("mydb").mongoCollection("mycollection")
+                .importAllCollections(true).build();
+        DBObject query = OplogSlurper.getOplogQuery(definition, FILTER);
+
+        Assert.assertFalse(query.containsField(MongoDBRiver.OPLOG_NAMESPACE));
+        BasicDBObject[] or = (BasicDBObject[]) query.get(QueryOperators.OR);
+        Assert.assertEquals(or.length, 2);
+        Pattern namespaces = (Pattern) or[0].get(MongoDBRiver.OPLOG_NAMESPACE);
+        Assert.assertTrue(namespaces.matcher("mydb.books").find());
+        Assert.assertFalse(namespaces.matcher("otherdb.books").find());
+        Assert.assertFalse(namespaces.matcher("mydb.tmp.mr.books_0").find());
+        Assert.assertFalse(namespaces.matcher("mydb.fs" + MongoDBRiver.GRIDFS_CHUNKS_SUFFIX).find());
+        Assert.assertEquals(or[1].get(MongoDBRiver.OPLOG_NAMESPACE), MongoDBRiver.OPLOG_ADMIN_COMMAND);
+        assertOperationsAndMigrations(query);
+    }
+
+    public void testGridFS() {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().mongoDb("mydb").mongoCollection("fs")
+                .mongoGridFS(true).build();
+        DBObject query = OplogSlurper.getOplogQuery(definition, FILTER);
+
+        Assert.assertEquals(query.get(MongoDBRiver.OPLOG_NAMESPACE), "mydb.fs" + MongoDBRiver.GRIDFS_FILES_SUFFIX);
+        assertOperationsAndMigrations(query);
+    }
+
+    public void testTokuMX() {
+        MongoDBRiverDefinition definition = new MongoDBRiverDefinition.Builder().mongoDb("mydb").mongoCollection("mycollection").build();
+        DBObject filter = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GT, new byte[] { 1 }));
+        // Operations are wrapped in "ops": only the position is filtered
+        Assert.assertEquals(OplogSlurper.getOplogQuery(definition, filter).keySet(), filter.keySet());
+    }
+
+    private static void assertOperationsAndMigrations(DBObject query) {
+        DBObject operations = (DBObject) query.get(MongoDBRiver.OPLOG_OPERATION);
+        Assert.assertEquals((Iterable<?>) operations.get(QueryOperators.IN), Arrays.asList(MongoDBRiver.OPLOG_DELETE_OPERATION,
+                MongoDBRiver.OPLOG_UPDATE_ROW_OPERATION, MongoDBRiver.OPLOG_UPDATE_OPERATION, MongoDBRiver.OPLOG_INSERT_OPERATION,
+                MongoDBRiver.OPLOG_COMMAND_OPERATION));
+        DBObject fromMigrate = (DBObject) query.get(MongoDBRiver.OPLOG_FROM_MIGRATE);
+        Assert.assertEquals(fromMigrate.get(QueryOperators.NE), Boolean.TRUE);
+    }
+}
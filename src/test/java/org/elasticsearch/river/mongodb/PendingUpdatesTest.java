@@ -0,0 +1,111 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+@Test
+public class PendingUpdatesTest {
+
+    /*
+     * Documents of two collections, recording the $in queries and the
+     * updates added.
+     */
+    private static class Documents implements PendingUpdates.Documents {
+
+        private final List<Map<String, List<Object>>> queries = new ArrayList<Map<String, List<Object>>>();
+        private final List<String> added = new ArrayList<String>();
+        private final List<Timestamp<?>> timestamps = new ArrayList<Timestamp<?>>();
+
+        @Override
+        public Map<String, Map<Object, DBObject>> find(Map<String, List<Object>> idsByCollection) {
+            queries.add(idsByCollection);
+            Map<String, Map<Object, DBObject>> found = new LinkedHashMap<String, Map<Object, DBObject>>();
+            for (Map.Entry<String, List<Object>> ids : idsByCollection.entrySet()) {
+                Map<Object, DBObject> items = new LinkedHashMap<Object, DBObject>();
+                for (Object id : ids.getValue()) {
+                    // Deleted since the update
+                    if (!"deleted".equals(id)) {
+                        items.put(id, new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id));
+                    }
+                }
+                found.put(ids.getKey(), items);
+            }
+            return found;
+        }
+
+        @Override
+        public void add(Timestamp<?> oplogTimestamp, DBObject document, String collection) {
+            added.add(collection + "/" + document.get(MongoDBRiver.MONGODB_ID_FIELD));
+            timestamps.add(oplogTimestamp);
+        }
+    }
+
+    public void testBatchSize() throws Exception {
+        Documents documents = new Documents();
+        PendingUpdates updates = new PendingUpdates(3, 60000, documents);
+
+        Assert.assertEquals(updates.add(timestamp(1), "a", "books", timestamp(0), 0), timestamp(0));
+        Assert.assertEquals(updates.add(timestamp(2), "b", "authors", timestamp(0), 0), timestamp(0));
+        Assert.assertTrue(documents.queries.isEmpty());
+        Assert.assertEquals(updates.size(), 2);
+
+        // Full: one $in query per collection, the updates in oplog order
+        Assert.assertEquals(updates.add(timestamp(3), "c", "books", timestamp(0), 0), timestamp(3));
+        Assert.assertTrue(updates.isEmpty());
+        Assert.assertEquals(documents.queries.size(), 1);
+        Map<String, List<Object>> query = documents.queries.get(0);
+        Assert.assertEquals(new ArrayList<String>(query.keySet()), Arrays.asList("books", "authors"));
+        Assert.assertEquals(query.get("books"), Arrays.<Object> asList("a", "c"));
+        Assert.assertEquals(query.get("authors"), Arrays.<Object> asList("b"));
+        Assert.assertEquals(documents.added, Arrays.asList("books/a", "authors/b", "books/c"));
+        Assert.assertEquals(documents.timestamps, Arrays.asList(timestamp(1), timestamp(2), timestamp(3)));
+    }
+
+    public void testInterval() throws Exception {
+        Documents documents = new Documents();
+        PendingUpdates updates = new PendingUpdates(100, 1000, documents);
+
+        Assert.assertEquals(updates.add(timestamp(1), "a", "books", timestamp(0), 5000), timestamp(0));
+        Assert.assertEquals(updates.add(timestamp(2), "b", "books", timestamp(0), 5999), timestamp(0));
+        // The oldest update has waited for the interval
+        Assert.assertEquals(updates.add(timestamp(3), "c", "books", timestamp(0), 6000), timestamp(3));
+        Assert.assertEquals(documents.added, Arrays.asList("books/a", "books/b", "books/c"));
+
+        // The interval starts again with the next update
+        Assert.assertEquals(updates.add(timestamp(4), "d", "books", timestamp(3), 6500), timestamp(3));
+        Assert.assertEquals(updates.size(), 1);
+    }
+
+    public void testFlush() throws Exception {
+        Documents documents = new Documents();
+        PendingUpdates updates = new PendingUpdates(100, 60000, documents);
+
+        Assert.assertEquals(updates.flush(timestamp(0)), timestamp(0));
+        Assert.assertTrue(documents.queries.isEmpty());
+
+        updates.add(timestamp(1), "a", "books", timestamp(0), 0);
+        updates.add(timestamp(2), "deleted", "books", timestamp(0), 0);
+        // Deleted documents are skipped, their timestamp is still passed
+        Assert.assertEquals(updates.flush(timestamp(0)), timestamp(2));
+        Assert.assertEquals(documents.added, Arrays.asList("books/a"));
+
+        updates.add(timestamp(3), "b", "books", timestamp(2), 0);
+        updates.clear();
+        Assert.assertEquals(updates.flush(timestamp(2)), timestamp(2));
+        Assert.assertEquals(documents.queries.size(), 1);
+    }
+
+    private static Timestamp<?> timestamp(int time) {
+        return new Timestamp.BSON(new BSONTimestamp(time, 0));
+    }
+}
@@ -0,0 +1,83 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.elasticsearch.common.collect.ImmutableMap;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.groovy.GroovyScriptEngineService;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Compare the time spent per document by a script when an executable
+ * instance is created for each document, as the indexer used to, and when
+ * one instance is reused.
+ */
+public class ScriptBenchmarkTest {
+
+    private static final int DOCUMENTS = 20000;
+    private static final String SCRIPT = "ctx.document.title = ctx.document.title.toUpperCase(); ctx.ignore = ctx.document.count > 5";
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    @Test(groups = { "slow" })
+    public void testExecutableReuse() {
+        GroovyScriptEngineService engine = new GroovyScriptEngineService(ImmutableSettings.EMPTY);
+        try {
+            Object compiled = engine.compile(SCRIPT);
+            Map<String, Object> vars = ImmutableMap.<String, Object> of("logger", logger);
+            // Warm up
+            runPerDocument(engine, compiled, vars);
+            runReused(engine.executable(compiled, vars));
+
+            long start = System.nanoTime();
+            int perDocument = runPerDocument(engine, compiled, vars);
+            long perDocumentNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int reused = runReused(engine.executable(compiled, vars));
+            long reusedNanos = System.nanoTime() - start;
+
+            logger.info("Executable per document: {} ns per document - reused executable: {} ns per document", perDocumentNanos
+                    / DOCUMENTS, reusedNanos / DOCUMENTS);
+            Assert.assertEquals(reused, perDocument);
+            Assert.assertTrue(reusedNanos < perDocumentNanos);
+        } finally {
+            engine.close();
+        }
+    }
+
+    private int runPerDocument(GroovyScriptEngineService engine, Object compiled, Map<String, Object> vars) {
+        int ignored = 0;
+        for (int i = 0; i < DOCUMENTS; i++) {
+            ignored += run(engine.executable(compiled, vars), i);
+        }
+        return ignored;
+    }
+
+    private int runReused(ExecutableScript script) {
+        int ignored = 0;
+        for (int i = 0; i < DOCUMENTS; i++) {
+            ignored += run(script, i);
+        }
+        return ignored;
+    }
+
+    @SuppressWarnings("unchecked")
+    private int run(ExecutableScript script, int i) {
+        Map<String, Object> ctx = new HashMap<String, Object>();
+        ctx.put("document", new BasicDBObject("title", "title-" + i).append("count", i % 10));
+        ctx.put("operation", Operation.INSERT.getValue());
+        script.setNextVar("ctx", ctx);
+        script.run();
+        ctx = (Map<String, Object>) script.unwrap(ctx);
+        Assert.assertEquals(((Map<String, Object>) ctx.get("document")).get("title"), "TITLE-" + i);
+        return Boolean.TRUE.equals(ctx.get("ignore")) ? 1 : 0;
+    }
+}
@@ -0,0 +1,47 @@
+package org.elasticsearch.river.mongodb;
+
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class TimestampTest {
+
+    public void testVersionFollowsTimestampOrder() {
+        Timestamp.BSON first = new Timestamp.BSON(new BSONTimestamp(1400000000, 7));
+        Timestamp.BSON second = new Timestamp.BSON(new BSONTimestamp(1400000000, 8));
+        Timestamp.BSON third = new Timestamp.BSON(new BSONTimestamp(1400000001, 1));
+        Assert.assertTrue(first.getVersion() > 0);
+        Assert.assertTrue(first.getVersion() < second.getVersion());
+        Assert.assertTrue(second.getVersion() < third.getVersion());
+        Assert.assertEquals(new Timestamp.BSON(new BSONTimestamp(1400000000, 7)).getVersion(), first.getVersion());
+    }
+
+    public void testGTIDVersionFollowsGTIDOrder() {
+        Date second = new Date(1400000000000L);
+        // Same second, the low word of the sequence number wraps
+        Timestamp.GTID first = gtid(2, 0xffffffffL, second);
+        Timestamp.GTID next = gtid(2, 0x100000000L, new Date(second.getTime() + 500));
+        Assert.assertTrue(first.compareTo(next) < 0);
+        Assert.assertTrue(first.getVersion() < next.getVersion());
+
+        // New primary term, sequence number starting again
+        Timestamp.GTID elected = gtid(3, 1, second);
+        Assert.assertTrue(next.getVersion() < elected.getVersion());
+        Assert.assertEquals(gtid(2, 0xffffffffL, new Date(0)).getVersion(), first.getVersion());
+    }
+
+    public void testGTIDWithoutVersion() {
+        Date now = new Date();
+        Assert.assertEquals(gtid(2, 1L << Timestamp.GTID.SEQUENCE_BITS, now).getVersion(), Timestamp.NO_VERSION);
+        Assert.assertEquals(gtid(1L << (63 - Timestamp.GTID.SEQUENCE_BITS), 1, now).getVersion(), Timestamp.NO_VERSION);
+        Assert.assertEquals(gtid(-1, 1, now).getVersion(), Timestamp.NO_VERSION);
+    }
+
+    private static Timestamp.GTID gtid(long primary, long sequence, Date ts) {
+        return new Timestamp.GTID(ByteBuffer.allocate(16).putLong(primary).putLong(sequence).array(), ts);
+    }
+}
@@ -0,0 +1,39 @@
+package org.elasticsearch.river.mongodb;
+
+import org.elasticsearch.river.mongodb.util.MongoDBHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+@Test
+public class UpdateModifiersTest {
+
+    public void testSet() {
+        DBObject modifiers = (DBObject) JSON
+                .parse("{ \"$set\" : { \"name\" : \"Richard\", \"address.city\" : \"Paris\", \"tags\" : [\"a\", \"b\"] } }");
+        DBObject document = MongoDBHelper.toPartialDocument(modifiers);
+        Assert.assertNotNull(document);
+        Assert.assertEquals(document.get("name"), "Richard");
+        Assert.assertEquals(((DBObject) document.get("address")).get("city"), "Paris");
+        Assert.assertTrue(document.containsField("tags"));
+    }
+
+    public void testUnsetIsRefetched() {
+        // A merge would leave the unset fields in the indexed document, set to null
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON.parse("{ \"$unset\" : { \"age\" : 1 } }")));
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON
+                .parse("{ \"$set\" : { \"name\" : \"Richard\" }, \"$unset\" : { \"age\" : 1 } }")));
+    }
+
+    public void testUnsupportedModifiers() {
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON.parse("{ \"$inc\" : { \"count\" : 1 } }")));
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON.parse("{ \"$set\" : { \"tags.1\" : \"c\" } }")));
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON.parse("{ \"$set\" : { \"address\" : { \"city\" : \"Paris\" } } }")));
+    }
+
+    public void testDocumentReplacement() {
+        Assert.assertNull(MongoDBHelper.toPartialDocument((DBObject) JSON.parse("{ \"_id\" : 1, \"name\" : \"Richard\" }")));
+    }
+}
@@ -0,0 +1,69 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Map;
+
+import org.bson.types.BSONTimestamp;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class WatermarkTest {
+
+    public void testOutOfOrderCompletion() throws Exception {
+        Watermark watermark = new Watermark();
+        watermark.complete(1, timestamp(2));
+        watermark.complete(2, null);
+        Assert.assertEquals(watermark.getSequence(), 0);
+        Assert.assertNull(watermark.advance());
+        Assert.assertFalse(watermark.await(3, 10));
+
+        watermark.complete(0, timestamp(1));
+        Assert.assertEquals(watermark.getSequence(), 3);
+        Assert.assertEquals(watermark.getTimestamp(), timestamp(2));
+        Assert.assertTrue(watermark.await(3, 10));
+        Assert.assertEquals(watermark.advance(), timestamp(2));
+        Assert.assertNull(watermark.advance());
+
+        watermark.complete(4, timestamp(4));
+        watermark.complete(3, timestamp(3));
+        Assert.assertEquals(watermark.advance(), timestamp(4));
+    }
+
+    public void testShardTimestamps() {
+        Watermark watermark = new Watermark();
+        watermark.complete(0, timestamp(1), "shard1");
+        watermark.complete(2, timestamp(3), "shard1");
+        watermark.complete(3, timestamp(4), "shard2");
+        Map<String, Timestamp<?>> shards = watermark.advanceShards();
+        Assert.assertEquals(shards.size(), 1);
+        Assert.assertEquals(shards.get("shard1"), timestamp(1));
+
+        // The entries of a shard behind another one hold it back
+        watermark.complete(1, timestamp(2), "shard2");
+        shards = watermark.advanceShards();
+        Assert.assertEquals(shards.get("shard1"), timestamp(3));
+        Assert.assertEquals(shards.get("shard2"), timestamp(4));
+        Assert.assertTrue(watermark.advanceShards().isEmpty());
+    }
+
+    public void testAwaitWakesUp() throws Exception {
+        final Watermark watermark = new Watermark();
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                watermark.complete(0, timestamp(1));
+            }
+        };
+        worker.start();
+        long start = System.currentTimeMillis();
+        while (!watermark.await(1, 5000)) {
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+        worker.join();
+        Assert.assertEquals(watermark.getTimestamp(), timestamp(1));
+    }
+
+    private static Timestamp<?> timestamp(int time) {
+        return new Timestamp.BSON(new BSONTimestamp(time, 0));
+    }
+}